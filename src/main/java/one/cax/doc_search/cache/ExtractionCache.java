@@ -0,0 +1,273 @@
+package one.cax.doc_search.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import one.cax.doc_search.model.NameUtils;
+import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ExtractionCache keeps the text extracted from files, keyed by the SHA-256 of the file content,
+ * so the same file uploaded again is not parsed again.
+ *
+ * Documents are stored as gzip-compressed JSON payloads. Every lookup decodes a new XDoc, with a new id,
+ * so callers can modify what they get without affecting the cache.
+ *
+ * Key components:
+ * - memoryTier: A bounded in-memory LRU cache, weighted by payload size in bytes
+ * - diskTier: An optional directory of payloads that survives restarts, trimmed oldest first
+ * - maxEntryBytes: Payloads larger than this are not cached
+ * - metrics: Hits (per tier), misses, evictions, skipped documents and the size of each tier
+ */
+public class ExtractionCache {
+
+    private static final Logger logger = Logger.getLogger(ExtractionCache.class.getName());
+
+    private static final String SUFFIX = ".json.gz";
+
+    private final WeightedLruCache<String, byte[]> memoryTier;
+    private final long maxEntryBytes;
+    private final Path diskDirectory;
+    private final long diskMaxBytes;
+    private final AtomicLong diskBytes = new AtomicLong();
+
+    private final Counter memoryHits;
+    private final Counter diskHits;
+    private final Counter misses;
+    private final Counter skipped;
+
+    /**
+     * Create a new ExtractionCache.
+     *
+     * @param maxMemoryBytes - the maximum size of the payloads kept in memory, 0 to only use the disk
+     * @param maxEntryBytes  - the maximum size of a single payload
+     * @param diskDirectory  - the directory of the on-disk tier, or null to only cache in memory
+     * @param diskMaxBytes   - the maximum size of the on-disk tier
+     * @param meterRegistry  - the meter registry to register metrics with
+     * @throws IOException - if the directory of the on-disk tier cannot be created or read
+     */
+    public ExtractionCache(long maxMemoryBytes, long maxEntryBytes, Path diskDirectory, long diskMaxBytes, MeterRegistry meterRegistry) throws IOException {
+        this.memoryTier = new WeightedLruCache<>(maxMemoryBytes, v -> v.length);
+        this.maxEntryBytes = maxEntryBytes;
+        this.diskDirectory = diskDirectory;
+        this.diskMaxBytes = diskMaxBytes;
+        if (diskDirectory != null) {
+            Files.createDirectories(diskDirectory);
+            diskBytes.set(payloads().stream().mapToLong(ExtractionCache::sizeOf).sum());
+        }
+
+        this.memoryHits = Counter.builder("extractionCacheHits")
+                .description("Number of extractions served from the cache")
+                .tag("tier", "memory")
+                .register(meterRegistry);
+        this.diskHits = Counter.builder("extractionCacheHits")
+                .description("Number of extractions served from the cache")
+                .tag("tier", "disk")
+                .register(meterRegistry);
+        this.misses = Counter.builder("extractionCacheMisses")
+                .description("Number of extractions not found in the cache")
+                .register(meterRegistry);
+        this.skipped = Counter.builder("extractionCacheSkipped")
+                .description("Number of extractions too large to be cached")
+                .register(meterRegistry);
+        FunctionCounter.builder("extractionCacheEvictions", memoryTier, WeightedLruCache::evictionCount)
+                .description("Number of extractions evicted from the in-memory cache")
+                .register(meterRegistry);
+        Gauge.builder("extractionCacheBytes", memoryTier, WeightedLruCache::weight)
+                .description("Size of the compressed extractions in the in-memory cache")
+                .register(meterRegistry);
+        if (diskDirectory != null) {
+            Gauge.builder("extractionCacheDiskBytes", diskBytes, AtomicLong::get)
+                    .description("Size of the compressed extractions in the on-disk cache")
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Get the document extracted from a file.
+     *
+     * @param key - the hex encoded SHA-256 of the file content
+     * @return - a new copy of the document, or null if it is not cached
+     */
+    public XDoc get(String key) {
+        byte[] payload = memoryTier.get(key);
+        if (payload != null) {
+            memoryHits.increment();
+            return decode(payload);
+        }
+        if (diskDirectory != null) {
+            Path file = diskDirectory.resolve(key + SUFFIX);
+            try {
+                payload = Files.readAllBytes(file);
+                // mark the payload as recently used, the disk tier is trimmed oldest first
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                XDoc document = decode(payload);
+                if (document != null) {
+                    diskHits.increment();
+                    memoryTier.put(key, payload);
+                    return document;
+                }
+            } catch (IOException e) {
+                // not stored, or removed while reading
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Store the document extracted from a file, unless its payload is larger than the maximum entry size.
+     *
+     * @param key      - the hex encoded SHA-256 of the file content
+     * @param document - the extracted document
+     */
+    public void put(String key, XDoc document) {
+        byte[] payload;
+        try {
+            payload = encode(document);
+        } catch (IOException | JSONException e) {
+            logger.warning("Could not encode the extracted document: " + e.getMessage());
+            return;
+        }
+        if (payload.length > maxEntryBytes) {
+            skipped.increment();
+            return;
+        }
+        memoryTier.put(key, payload);
+        if (diskDirectory != null) {
+            store(key, payload);
+        }
+    }
+
+    /**
+     * @return - the number of documents in the in-memory tier
+     */
+    public int size() {
+        return memoryTier.size();
+    }
+
+    /**
+     * @return - the size of the payloads in the on-disk tier
+     */
+    public long diskBytes() {
+        return diskBytes.get();
+    }
+
+    /**
+     * Write a payload to the on-disk tier, then trim the tier to its maximum size.
+     * The payload is written to a temporary file first, so a torn write is never read back.
+     */
+    private void store(String key, byte[] payload) {
+        Path file = diskDirectory.resolve(key + SUFFIX);
+        try {
+            long previous = Files.exists(file) ? sizeOf(file) : 0;
+            Path temp = Files.createTempFile(diskDirectory, key, ".tmp");
+            Files.write(temp, payload);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            diskBytes.addAndGet(payload.length - previous);
+        } catch (IOException e) {
+            logger.warning("Could not store the extracted document on disk: " + e.getMessage());
+            return;
+        }
+        if (diskBytes.get() > diskMaxBytes) {
+            trim();
+        }
+    }
+
+    /**
+     * Delete the least recently used payloads until the on-disk tier fits its maximum size.
+     */
+    private synchronized void trim() {
+        List<Path> files = payloads();
+        files.sort(Comparator.comparingLong(ExtractionCache::lastModified));
+        long total = files.stream().mapToLong(ExtractionCache::sizeOf).sum();
+        for (Path file : files) {
+            if (total <= diskMaxBytes) {
+                break;
+            }
+            long size = sizeOf(file);
+            try {
+                Files.deleteIfExists(file);
+                total -= size;
+            } catch (IOException e) {
+                logger.warning("Could not delete a cached extraction: " + e.getMessage());
+            }
+        }
+        diskBytes.set(total);
+    }
+
+    private List<Path> payloads() {
+        try (Stream<Path> files = Files.list(diskDirectory)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.warning("Could not list the on-disk extraction cache: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] encode(XDoc document) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+            document.toJSON().write(writer);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static XDoc decode(byte[] payload) {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(payload))) {
+            var json = new JSONObject(new JSONTokener(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            var document = new XDoc();
+            document.setDocTitle(json.optString(NameUtils.DOC_TITLE, null));
+            document.setFilename(json.optString(NameUtils.DOC_FILENAME, null));
+            document.setPages(XPage.fromJSONArray(json.getJSONArray(NameUtils.DOC_PAGES)));
+            document.addDefaultMetadata();
+            return document;
+        } catch (IOException | JSONException e) {
+            logger.warning("Could not decode a cached extraction: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package one.cax.doc_search.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * MappedVectorStore is an append-only store of float vectors kept in a memory-mapped file.
+ *
+ * Vectors are addressed by a 32-byte key (a SHA-256 digest, as a hex string) and survive restarts:
+ * when the store is opened on an existing file, the records are scanned once to rebuild the key index.
+ * The file is mapped with a fixed capacity; once it is full new vectors are no longer stored.
+ *
+ * File layout:
+ * - header: magic (int), version (int), end of the last record (long)
+ * - records: key (32 bytes), dimension (int), dimension floats
+ */
+public class MappedVectorStore implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(MappedVectorStore.class.getName());
+
+    private static final int MAGIC = 0x56454331;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int END_OFFSET = 8;
+    private static final int KEY_SIZE = 32;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    /* The offset of every record, by key */
+    private final Map<String, Integer> offsets = new ConcurrentHashMap<>();
+
+    /* The end of the last record, where the next record is written */
+    private int end;
+
+    /* Whether the store has already reported it is full */
+    private boolean fullReported;
+
+    /**
+     * Open a store, creating the file if it does not exist.
+     *
+     * @param path     - the file backing the store
+     * @param maxBytes - the capacity of the store, at most 2GB
+     * @throws IOException - if the file cannot be opened or mapped
+     */
+    public MappedVectorStore(Path path, long maxBytes) throws IOException {
+        long existingSize = Files.exists(path) ? Files.size(path) : 0;
+        this.capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(Math.max(maxBytes, existingSize), HEADER_SIZE));
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        if (existingSize >= HEADER_SIZE && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) {
+            end = (int) Math.min(buffer.getLong(END_OFFSET), capacity);
+            scan();
+        } else {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            end = HEADER_SIZE;
+            buffer.putLong(END_OFFSET, end);
+        }
+    }
+
+    /**
+     * Get a vector.
+     *
+     * @param key - the hex encoded key
+     * @return - a copy of the vector, or null if it is not stored
+     */
+    public float[] get(String key) {
+        Integer offset = offsets.get(key);
+        if (offset == null) {
+            return null;
+        }
+        int dimension = buffer.getInt(offset + KEY_SIZE);
+        float[] vector = new float[dimension];
+        buffer.slice(offset + KEY_SIZE + Integer.BYTES, dimension * Float.BYTES).asFloatBuffer().get(vector);
+        return vector;
+    }
+
+    /**
+     * Store a vector, unless it is already stored or the store is full.
+     *
+     * @param key    - the hex encoded key
+     * @param vector - the vector
+     * @return - true if the vector is stored after the call
+     */
+    public synchronized boolean put(String key, float[] vector) {
+        if (offsets.containsKey(key)) {
+            return true;
+        }
+        long recordSize = KEY_SIZE + Integer.BYTES + (long) vector.length * Float.BYTES;
+        if (end + recordSize > capacity) {
+            if (!fullReported) {
+                logger.warning("Vector store is full, new vectors will not be stored");
+                fullReported = true;
+            }
+            return false;
+        }
+        int offset = end;
+        buffer.put(offset, HexFormat.of().parseHex(key));
+        buffer.putInt(offset + KEY_SIZE, vector.length);
+        buffer.slice(offset + KEY_SIZE + Integer.BYTES, vector.length * Float.BYTES).asFloatBuffer().put(vector);
+        end = (int) (offset + recordSize);
+        // the header is updated last, so a partially written record is never read back after a restart
+        buffer.putLong(END_OFFSET, end);
+        offsets.put(key, offset);
+        return true;
+    }
+
+    /**
+     * @return - the number of stored vectors
+     */
+    public int size() {
+        return offsets.size();
+    }
+
+    /**
+     * @return - the number of bytes used in the file
+     */
+    public synchronized long bytesUsed() {
+        return end;
+    }
+
+    /**
+     * Flush the mapped file to disk and close it.
+     *
+     * @throws IOException - if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Rebuild the key index from the records in the file.
+     * A record that runs past the recorded end is treated as a torn write and dropped.
+     */
+    private void scan() {
+        int position = HEADER_SIZE;
+        byte[] key = new byte[KEY_SIZE];
+        while (position + KEY_SIZE + Integer.BYTES <= end) {
+            buffer.get(position, key);
+            int dimension = buffer.getInt(position + KEY_SIZE);
+            long next = position + KEY_SIZE + Integer.BYTES + (long) dimension * Float.BYTES;
+            if (dimension < 0 || next > end) {
+                break;
+            }
+            offsets.put(HexFormat.of().formatHex(key), position);
+            position = (int) next;
+        }
+        if (position != end) {
+            logger.warning("Dropping a truncated record at the end of the vector store");
+            end = position;
+            buffer.putLong(END_OFFSET, end);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package one.cax.doc_search.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * QueryEmbeddingCache keeps the vectors of recent search queries, so repeated queries skip the embedder.
+ *
+ * Queries are keyed by model id and text with leading, trailing and repeated whitespace removed.
+ * The cache holds at most a fixed number of queries, evicting the least recently used, and
+ * every entry expires after a time to live so that stale vectors do not outlive a model update.
+ *
+ * Key components:
+ * - entries: A WeightedLruCache where every query weighs 1
+ * - metrics: Hits, misses, evictions and the hit ratio, registered with the MeterRegistry
+ */
+public class QueryEmbeddingCache {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final WeightedLruCache<String, float[]> entries;
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * Create a new QueryEmbeddingCache.
+     *
+     * @param maxEntries    - the maximum number of cached queries, 0 to disable the cache
+     * @param ttl           - how long a query vector stays valid
+     * @param meterRegistry - the meter registry to register metrics with
+     */
+    public QueryEmbeddingCache(int maxEntries, Duration ttl, MeterRegistry meterRegistry) {
+        this(maxEntries, ttl, meterRegistry, System::nanoTime);
+    }
+
+    /**
+     * Create a new QueryEmbeddingCache with a given source of time.
+     *
+     * @param maxEntries    - the maximum number of cached queries, 0 to disable the cache
+     * @param ttl           - how long a query vector stays valid
+     * @param meterRegistry - the meter registry to register metrics with
+     * @param ticker        - the source of time, in nanoseconds
+     */
+    public QueryEmbeddingCache(int maxEntries, Duration ttl, MeterRegistry meterRegistry, LongSupplier ticker) {
+        this.entries = new WeightedLruCache<>(maxEntries, v -> 1L, ttl, ticker);
+        this.hits = Counter.builder("queryEmbeddingCacheHits")
+                .description("Number of query embeddings served from the cache")
+                .register(meterRegistry);
+        this.misses = Counter.builder("queryEmbeddingCacheMisses")
+                .description("Number of query embeddings not found in the cache")
+                .register(meterRegistry);
+        FunctionCounter.builder("queryEmbeddingCacheEvictions", entries, WeightedLruCache::evictionCount)
+                .description("Number of query embeddings evicted or expired")
+                .register(meterRegistry);
+        Gauge.builder("queryEmbeddingCacheSize", entries, WeightedLruCache::size)
+                .description("Number of query embeddings in the cache")
+                .register(meterRegistry);
+        Gauge.builder("queryEmbeddingCacheHitRatio", this, QueryEmbeddingCache::hitRatio)
+                .description("Fraction of query embeddings served from the cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Get the vector of a query.
+     *
+     * @param modelId - the id of the embedding model
+     * @param query   - the query text
+     * @return - a copy of the vector, or null if it is not cached
+     */
+    public float[] get(String modelId, String query) {
+        float[] vector = entries.get(keyFor(modelId, query));
+        if (vector == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return vector.clone();
+    }
+
+    /**
+     * Cache the vector of a query.
+     *
+     * @param modelId - the id of the embedding model
+     * @param query   - the query text
+     * @param vector  - the vector
+     */
+    public void put(String modelId, String query, float[] vector) {
+        entries.put(keyFor(modelId, query), vector.clone());
+    }
+
+    /**
+     * @return - the fraction of lookups served from the cache, 0 before the first lookup
+     */
+    public double hitRatio() {
+        double lookups = hits.count() + misses.count();
+        return lookups == 0 ? 0.0 : hits.count() / lookups;
+    }
+
+    private static String keyFor(String modelId, String query) {
+        return (modelId == null ? "" : modelId) + '\0' + WHITESPACE.matcher(query.strip()).replaceAll(" ");
+    }
+}
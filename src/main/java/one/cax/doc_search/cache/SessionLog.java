@@ -0,0 +1,411 @@
+package one.cax.doc_search.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import one.cax.doc_search.exception.VectorSearchException;
+import one.cax.doc_search.index.SessionIndex;
+import one.cax.doc_search.model.XDoc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * SessionLog is the write-ahead log of the sessions: every session created, document added and session ended
+ * is appended to it before it is acknowledged, so that the sessions survive a crash between two snapshots.
+ *
+ * The log is shared by all the sessions and split into segment files. Appending a record only writes it to
+ * the current segment; callers then wait for it to be synced with {@link #sync(long)}. The first waiter syncs
+ * every record appended so far with a single fsync, and the ones arriving meanwhile wait for the next one,
+ * so concurrent ingests share their fsyncs (group commit).
+ *
+ * Compaction folds the log into the snapshots: the current segment is sealed with {@link #roll()}, the sessions
+ * with records in it are written to their snapshots, then the sealed segments are deleted. On startup the
+ * segments left, the tail of the log since the last compaction, are replayed.
+ *
+ * Key components:
+ * - segments: The files of the log, named after their sequence number, the last one is appended to
+ * - records: A length, a CRC32 of the payload and the payload; a torn or corrupt record ends the replay of its segment
+ * - lsn: The sequence number of the records appended by this process, used to wait for them to be synced
+ * - metrics: Appended records and bytes, fsyncs and their latency, and the size of the log
+ */
+public class SessionLog implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(SessionLog.class.getName());
+
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+
+    /* The types of the records */
+    private static final int CREATED = 1;
+    private static final int DOCUMENT_ADDED = 2;
+    private static final int ENDED = 3;
+
+    private final Path directory;
+    private final long segmentBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+
+    /* The segment being appended to and its sequence number */
+    private FileChannel current;
+    private long currentSequence;
+
+    /* The last record appended, the last record synced, and whether a sync is in progress */
+    private long appendedLsn;
+    private long syncedLsn;
+    private boolean syncing;
+
+    private final Counter appends;
+    private final Counter appendedBytes;
+    private final Counter syncs;
+    private final Timer syncLatency;
+
+    /**
+     * Open the log. Records are appended to a new segment after the existing ones, which are left for replay.
+     *
+     * @param directory     - the directory of the segments, created if needed
+     * @param segmentBytes  - the size at which the current segment is sealed and a new one started
+     * @param meterRegistry - the meter registry to register metrics with
+     * @throws IOException - if the directory or the first segment cannot be created
+     */
+    public SessionLog(Path directory, long segmentBytes, MeterRegistry meterRegistry) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(1, segmentBytes);
+        Files.createDirectories(directory);
+        List<Long> existing = sequences();
+        this.currentSequence = existing.isEmpty() ? 0 : existing.get(existing.size() - 1);
+        this.current = openSegment(++currentSequence);
+
+        this.appends = Counter.builder("walAppends")
+                .description("Number of records appended to the session write-ahead log")
+                .register(meterRegistry);
+        this.appendedBytes = Counter.builder("walAppendedBytes")
+                .description("Bytes appended to the session write-ahead log")
+                .register(meterRegistry);
+        this.syncs = Counter.builder("walSyncs")
+                .description("Number of fsyncs of the session write-ahead log, shared by the records appended meanwhile")
+                .register(meterRegistry);
+        this.syncLatency = Timer.builder("walSyncLatency")
+                .description("Time to fsync the session write-ahead log")
+                .register(meterRegistry);
+        Gauge.builder("walBytes", this, SessionLog::sizeBytes)
+                .description("Size of the session write-ahead log")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Append the creation of a session.
+     *
+     * @param sessionId - the session id
+     * @return - the sequence number of the record, to wait for with {@link #sync(long)}
+     * @throws IOException - if the record cannot be written
+     */
+    public long appendCreated(UUID sessionId) throws IOException {
+        return append(record(CREATED, sessionId, null, null));
+    }
+
+    /**
+     * Append a document added to a session, with the text and the vector of every page.
+     * Callers hold the session lock, so the record and the session change together.
+     *
+     * @param sessionId - the session id
+     * @param document  - the document
+     * @param index     - the index of the session, to read back the vectors released from the heap, or null
+     * @return - the sequence number of the record, to wait for with {@link #sync(long)}
+     * @throws IOException - if the record cannot be written
+     */
+    public long appendDocument(UUID sessionId, XDoc document, SessionIndex index) throws IOException {
+        return append(record(DOCUMENT_ADDED, sessionId, document, index));
+    }
+
+    /**
+     * Append the end of a session.
+     *
+     * @param sessionId - the session id
+     * @return - the sequence number of the record, to wait for with {@link #sync(long)}
+     * @throws IOException - if the record cannot be written
+     */
+    public long appendEnded(UUID sessionId) throws IOException {
+        return append(record(ENDED, sessionId, null, null));
+    }
+
+    /**
+     * Wait until a record is synced to disk, syncing it if no other caller is doing so.
+     *
+     * @param lsn - the sequence number of the record
+     * @throws IOException - if the log cannot be synced
+     */
+    public void sync(long lsn) throws IOException {
+        lock.lock();
+        try {
+            while (syncedLsn < lsn) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                // this caller syncs everything appended so far, for itself and the callers waiting behind it
+                syncing = true;
+                long target = appendedLsn;
+                FileChannel channel = current;
+                lock.unlock();
+                long start = System.nanoTime();
+                try {
+                    channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // the segment was sealed meanwhile, which syncs it
+                } finally {
+                    lock.lock();
+                    syncing = false;
+                    synced.signalAll();
+                }
+                syncLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                syncs.increment();
+                syncedLsn = Math.max(syncedLsn, target);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Seal the current segment and start a new one. The records appended from then on go to the new segment.
+     *
+     * @return - the sequence number of the sealed segment
+     * @throws IOException - if the segment cannot be synced or the new one created
+     */
+    public long roll() throws IOException {
+        lock.lock();
+        try {
+            return rollLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete the sealed segments up to a sequence number, once their records are in the snapshots.
+     *
+     * @param sequence - the sequence number of the last segment to delete
+     * @throws IOException - if the segments cannot be listed
+     */
+    public void deleteUpTo(long sequence) throws IOException {
+        long limit;
+        lock.lock();
+        try {
+            limit = Math.min(sequence, currentSequence - 1);
+        } finally {
+            lock.unlock();
+        }
+        for (long existing : sequences()) {
+            if (existing <= limit) {
+                Files.deleteIfExists(segment(existing));
+            }
+        }
+    }
+
+    /**
+     * Replay the records of the segments that were in the directory when the log was opened, in order.
+     * A torn or corrupt record, left by a crash in the middle of an append, ends the replay of its segment.
+     *
+     * @param handler - receives the records
+     * @return - the number of records replayed
+     * @throws IOException - if a segment cannot be read
+     */
+    public int replay(Handler handler) throws IOException {
+        int replayed = 0;
+        for (long sequence : sequences()) {
+            if (sequence >= currentSequence) {
+                break;
+            }
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment(sequence))))) {
+                byte[] payload;
+                while ((payload = next(in, sequence)) != null) {
+                    apply(payload, handler);
+                    replayed++;
+                }
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * @return - the size of the segments of the log
+     */
+    public long sizeBytes() {
+        long size = 0;
+        try {
+            for (long sequence : sequences()) {
+                size += Files.size(segment(sequence));
+            }
+        } catch (IOException e) {
+            // a segment deleted by a compaction meanwhile
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            current.force(false);
+            current.close();
+            syncedLsn = appendedLsn;
+            synced.signalAll();
+        } catch (IOException e) {
+            logger.warning("Error closing the session write-ahead log: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long append(byte[] payload) throws IOException {
+        var crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 2 + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        lock.lock();
+        try {
+            while (buffer.hasRemaining()) {
+                current.write(buffer);
+            }
+            appends.increment();
+            appendedBytes.increment(buffer.capacity());
+            long lsn = ++appendedLsn;
+            if (current.position() >= segmentBytes) {
+                rollLocked();
+            }
+            return lsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long rollLocked() throws IOException {
+        current.force(false);
+        current.close();
+        // everything appended so far was in the sealed segment
+        syncedLsn = appendedLsn;
+        synced.signalAll();
+        long sealed = currentSequence;
+        current = openSegment(++currentSequence);
+        return sealed;
+    }
+
+    private static byte[] record(int type, UUID sessionId, XDoc document, SessionIndex index) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(type);
+            SessionSpillStore.writeUuid(out, sessionId);
+            if (document != null) {
+                SessionSpillStore.writeDocument(out, document, index);
+            }
+        } catch (VectorSearchException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void apply(byte[] payload, Handler handler) throws IOException {
+        try (var in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            int type = in.readInt();
+            UUID sessionId = SessionSpillStore.readUuid(in);
+            switch (type) {
+                case CREATED -> handler.created(sessionId);
+                case DOCUMENT_ADDED -> handler.documentAdded(sessionId, SessionSpillStore.readDocument(in));
+                case ENDED -> handler.ended(sessionId);
+                default -> throw new IOException("Unknown record type " + type);
+            }
+        }
+    }
+
+    /**
+     * Read the next record of a segment.
+     *
+     * @return - the payload of the record, or null at the end of the segment or at a torn or corrupt record
+     */
+    private static byte[] next(DataInputStream in, long sequence) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0) {
+                throw new EOFException();
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            var crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                logger.warning("Corrupt record in the write-ahead log segment " + sequence + ", skipping the rest of it");
+                return null;
+            }
+            return payload;
+        } catch (EOFException e) {
+            // the end of the segment, or a record torn by a crash in the middle of its append
+            return null;
+        }
+    }
+
+    private FileChannel openSegment(long sequence) throws IOException {
+        return FileChannel.open(segment(sequence), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private Path segment(long sequence) {
+        return directory.resolve(String.format("%s%016d%s", PREFIX, sequence, SUFFIX));
+    }
+
+    /**
+     * @return - the sequence numbers of the segments in the directory, in order
+     */
+    private List<Long> sequences() throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    try {
+                        sequences.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        sequences.sort(null);
+        return sequences;
+    }
+
+    /**
+     * Receives the records of the log when it is replayed.
+     */
+    public interface Handler {
+
+        void created(UUID sessionId);
+
+        void documentAdded(UUID sessionId, XDoc document);
+
+        void ended(UUID sessionId);
+    }
+}
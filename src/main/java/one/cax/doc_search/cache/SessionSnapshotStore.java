@@ -0,0 +1,275 @@
+package one.cax.doc_search.cache;
+
+import io.github.jbellis.jvector.disk.RandomAccessReader;
+import io.github.jbellis.jvector.disk.SimpleMappedReader;
+import one.cax.doc_search.exception.SessionServiceException;
+import one.cax.doc_search.exception.VectorSearchException;
+import one.cax.doc_search.index.SessionIndex;
+import one.cax.doc_search.model.Session;
+import one.cax.doc_search.model.XDoc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * SessionSnapshotStore keeps the sessions across restarts, one directory per session,
+ * so that a redeploy does not have to embed and index the documents again.
+ *
+ * A snapshot holds the documents of the session and its index: the page texts, the compressed codes
+ * and the settings in a binary file, and the graphs with their vectors as jvector on-disk files.
+ * A session is restored by mapping the snapshot into memory: the graph files are served from where
+ * they are, so nothing is rebuilt, and the OS pages the graphs and vectors in as searches reach them.
+ *
+ * Key components:
+ * - directory: The directory of the snapshots, one sub-directory named after the id of each session
+ * - format: A versioned binary layout of the documents, in the record layout of {@link SessionSpillStore},
+ *   followed by the index, see {@link SessionIndex#writeSnapshot}
+ *
+ * A snapshot is written into a temporary directory, synced to disk, and replaces the previous snapshot
+ * once complete; the previous snapshot is set aside meanwhile and put back if the process stops in between.
+ * Restoring a session links the graph files into a directory owned by the restored index,
+ * so the snapshot stays on disk until it is replaced or deleted.
+ */
+public class SessionSnapshotStore {
+
+    private static final Logger logger = Logger.getLogger(SessionSnapshotStore.class.getName());
+
+    private static final int MAGIC = 0x534e4150;
+    private static final int VERSION = 1;
+    private static final String FILE = "session.snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String RESTORED_SUFFIX = ".restored";
+    private static final String OLD_SUFFIX = ".old";
+
+    private final Path directory;
+
+    /**
+     * Create a new SessionSnapshotStore, deleting what an interrupted snapshot or a previous run left behind.
+     * A previous snapshot set aside by a write that did not complete is put back in place.
+     *
+     * @param directory - the directory of the snapshots, created if needed
+     * @throws IOException - if the directory cannot be created or listed
+     */
+    public SessionSnapshotStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        try (Stream<Path> entries = Files.list(directory)) {
+            for (Path entry : entries.toList()) {
+                String name = entry.getFileName().toString();
+                if (name.endsWith(OLD_SUFFIX)) {
+                    Path target = directory.resolve(name.substring(0, name.length() - OLD_SUFFIX.length()));
+                    if (sessionId(entry, target.getFileName().toString()) != null && !Files.exists(target.resolve(FILE))) {
+                        deleteRecursively(target);
+                        Files.move(entry, target, StandardCopyOption.ATOMIC_MOVE);
+                        continue;
+                    }
+                }
+                if (sessionId(entry) == null) {
+                    deleteRecursively(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot of a session, replacing the previous one. Callers hold the session lock, under which
+     * a document is indexed and added to the session in one step, so the snapshot never holds part of a document.
+     *
+     * @param session - the session
+     * @return - the size of the written snapshot
+     * @throws SessionServiceException - if the snapshot cannot be written
+     */
+    public long write(Session session) throws SessionServiceException {
+        UUID sessionId = session.getSessionId();
+        Path temp = null;
+        try {
+            temp = Files.createTempDirectory(directory, sessionId + TEMP_SUFFIX);
+            SessionIndex index = session.getIndex();
+            Map<UUID, XDoc> documents = documentsById(session.getDocuments());
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.resolve(FILE))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                SessionSpillStore.writeUuid(out, sessionId);
+                out.writeInt(documents.size());
+                for (XDoc document : documents.values()) {
+                    // the vectors of indexed pages are in the index
+                    SessionSpillStore.writeDocument(out, document, null, index == null);
+                }
+                out.writeInt(index != null ? 1 : 0);
+                if (index != null) {
+                    index.writeSnapshot(temp, out, documents);
+                }
+            }
+            long size = sync(temp);
+            // the previous snapshot is set aside until the new one is in place, see the constructor
+            Path target = directoryFor(sessionId);
+            Path old = directory.resolve(sessionId + OLD_SUFFIX);
+            deleteRecursively(old);
+            if (Files.exists(target)) {
+                Files.move(target, old, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            deleteRecursively(old);
+            return size;
+        } catch (IOException | VectorSearchException | RuntimeException e) {
+            deleteRecursively(temp);
+            throw new SessionServiceException("Error writing the snapshot of the session " + sessionId + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Restore a session from its snapshot.
+     *
+     * @param sessionId - the session id
+     * @return - the session, with its index
+     * @throws SessionServiceException - if the snapshot cannot be read
+     */
+    public Session read(UUID sessionId) throws SessionServiceException {
+        Path restored = directory.resolve(sessionId + RESTORED_SUFFIX);
+        try {
+            deleteRecursively(restored);
+            Files.createDirectories(restored);
+            Path snapshot = directoryFor(sessionId);
+            try (Stream<Path> files = Files.list(snapshot)) {
+                for (Path file : files.toList()) {
+                    if (!file.getFileName().toString().equals(FILE)) {
+                        linkOrCopy(file, restored.resolve(file.getFileName()));
+                    }
+                }
+            }
+            Session session;
+            try (RandomAccessReader in = new SimpleMappedReader(snapshot.resolve(FILE))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new SessionServiceException("Not a session snapshot: " + sessionId);
+                }
+                session = new Session();
+                session.setSessionId(SessionSpillStore.readUuid(in));
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    session.addDocument(SessionSpillStore.readDocument(in));
+                }
+                if (in.readInt() == 1) {
+                    session.setIndex(SessionIndex.readSnapshot(restored, in, documentsById(session.getDocuments())));
+                }
+            }
+            return session;
+        } catch (IOException | RuntimeException e) {
+            deleteRecursively(restored);
+            throw new SessionServiceException("Error restoring the session " + sessionId + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return - the ids of the sessions with a snapshot
+     * @throws IOException - if the directory cannot be listed
+     */
+    public List<UUID> list() throws IOException {
+        List<UUID> sessions = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(directory)) {
+            for (Path entry : entries.toList()) {
+                UUID sessionId = sessionId(entry);
+                if (sessionId != null && Files.exists(entry.resolve(FILE))) {
+                    sessions.add(sessionId);
+                }
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Delete the snapshot of a session.
+     *
+     * @param sessionId - the session id
+     */
+    public void delete(UUID sessionId) {
+        deleteRecursively(directoryFor(sessionId));
+    }
+
+    /**
+     * @param sessionId - the session id
+     * @return - true if the session has a snapshot
+     */
+    public boolean contains(UUID sessionId) {
+        return Files.exists(directoryFor(sessionId).resolve(FILE));
+    }
+
+    private Path directoryFor(UUID sessionId) {
+        return directory.resolve(sessionId.toString());
+    }
+
+    /**
+     * @return - the id of the session an entry of the directory holds the snapshot of, or null
+     */
+    private static UUID sessionId(Path entry) {
+        return sessionId(entry, entry.getFileName().toString());
+    }
+
+    private static UUID sessionId(Path entry, String name) {
+        try {
+            return Files.isDirectory(entry) ? UUID.fromString(name) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static Map<UUID, XDoc> documentsById(List<XDoc> documents) {
+        Map<UUID, XDoc> byId = new LinkedHashMap<>();
+        for (XDoc document : documents) {
+            byId.put(document.getId(), document);
+        }
+        return byId;
+    }
+
+    /**
+     * Sync the files of a snapshot to disk, so that the write-ahead log can be truncated after it.
+     *
+     * @return - the size of the snapshot
+     */
+    private static long sync(Path snapshot) throws IOException {
+        try (Stream<Path> files = Files.list(snapshot)) {
+            long size = 0;
+            for (Path file : files.toList()) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+                size += Files.size(file);
+            }
+            return size;
+        }
+    }
+
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, target);
+        }
+    }
+
+    private static void deleteRecursively(Path path) {
+        if (path == null || !Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> entries = Files.walk(path)) {
+            for (Path entry : entries.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(entry);
+            }
+        } catch (IOException e) {
+            logger.warning("Could not delete " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package one.cax.doc_search.cache;
+
+import io.github.jbellis.jvector.disk.RandomAccessReader;
+import one.cax.doc_search.exception.SessionServiceException;
+import one.cax.doc_search.exception.VectorSearchException;
+import one.cax.doc_search.index.SessionIndex;
+import one.cax.doc_search.model.Session;
+import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * SessionSpillStore keeps sessions evicted from memory on disk, one file per session, so that
+ * they can be loaded back when they are used again.
+ *
+ * A spilled session holds its documents, with the text and the vector of every page. Vectors
+ * the index already released from the heap are read back from its segments. A loaded session has
+ * no index: it is rebuilt from the documents, with their vectors, the first time it is searched.
+ *
+ * Key components:
+ * - directory: The directory of the spilled sessions, named after their ids
+ * - format: A versioned binary layout of the documents and their pages, written through a temporary file
+ */
+public class SessionSpillStore {
+
+    private static final int MAGIC = 0x53455353;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".session";
+
+    private final Path directory;
+
+    /**
+     * Create a new SessionSpillStore.
+     *
+     * @param directory - the directory of the spilled sessions, created if needed
+     * @throws IOException - if the directory cannot be created
+     */
+    public SessionSpillStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Write a session to disk. Callers hold the session lock, so no page is added while it is written.
+     *
+     * @param session - the session
+     * @return - the size of the written file
+     * @throws SessionServiceException - if the session cannot be written
+     */
+    public long write(Session session) throws SessionServiceException {
+        Path file = fileFor(session.getSessionId());
+        try {
+            Path temp = Files.createTempFile(directory, session.getSessionId().toString(), ".tmp");
+            try (var stream = new FileOutputStream(temp.toFile());
+                 var out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeUuid(out, session.getSessionId());
+                List<XDoc> documents = session.getDocuments();
+                out.writeInt(documents.size());
+                for (XDoc document : documents) {
+                    writeDocument(out, document, session.getIndex());
+                }
+                out.flush();
+                // the write-ahead log may be truncated once the session is on disk
+                stream.getFD().sync();
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return Files.size(file);
+        } catch (IOException | VectorSearchException e) {
+            throw new SessionServiceException("Error spilling the session " + session.getSessionId() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read a session written to disk.
+     *
+     * @param sessionId - the session id
+     * @return - the session, without an index
+     * @throws SessionServiceException - if the session cannot be read
+     */
+    public Session read(UUID sessionId) throws SessionServiceException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(fileFor(sessionId))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new SessionServiceException("Not a spilled session: " + sessionId);
+            }
+            var session = new Session();
+            session.setSessionId(readUuid(in));
+            int documents = in.readInt();
+            for (int i = 0; i < documents; i++) {
+                session.addDocument(readDocument(in));
+            }
+            return session;
+        } catch (IOException e) {
+            throw new SessionServiceException("Error loading the spilled session " + sessionId + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Delete a spilled session.
+     *
+     * @param sessionId - the session id
+     */
+    public void delete(UUID sessionId) {
+        try {
+            Files.deleteIfExists(fileFor(sessionId));
+        } catch (IOException e) {
+            // removed on the next spill of the same session
+        }
+    }
+
+    /**
+     * @param sessionId - the session id
+     * @return - true if the session is on disk
+     */
+    public boolean contains(UUID sessionId) {
+        return Files.exists(fileFor(sessionId));
+    }
+
+    /**
+     * @return - the ids of the spilled sessions
+     * @throws IOException - if the directory cannot be listed
+     */
+    public List<UUID> list() throws IOException {
+        List<UUID> sessions = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        sessions.add(UUID.fromString(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (IllegalArgumentException e) {
+                        // not a spilled session
+                    }
+                }
+            }
+        }
+        return sessions;
+    }
+
+    private Path fileFor(UUID sessionId) {
+        return directory.resolve(sessionId + SUFFIX);
+    }
+
+    /**
+     * Write a document with the text and the vector of every page. Vectors the index already released
+     * from the heap are read back from its segments.
+     *
+     * @param out      - the output
+     * @param document - the document
+     * @param index    - the index of the session, or null
+     */
+    static void writeDocument(DataOutputStream out, XDoc document, SessionIndex index)
+            throws IOException, VectorSearchException {
+        writeDocument(out, document, index, true);
+    }
+
+    /**
+     * Write a document with the text of every page, and their vectors if asked to.
+     * This is the record layout shared by the spill files, the snapshots and the write-ahead log.
+     *
+     * @param out         - the output
+     * @param document    - the document
+     * @param index       - the index of the session, or null
+     * @param withVectors - whether to write the vectors of the pages
+     */
+    static void writeDocument(DataOutputStream out, XDoc document, SessionIndex index, boolean withVectors)
+            throws IOException, VectorSearchException {
+        Deque<Integer> ordinals = new ArrayDeque<>();
+        if (index != null && withVectors) {
+            for (int ordinal : index.ordinals(document.getId())) {
+                ordinals.add(ordinal);
+            }
+        }
+        writeUuid(out, document.getId());
+        writeString(out, document.getDocTitle());
+        writeString(out, document.getFilename());
+        writeString(out, document.getMetadata() == null ? null : new JSONObject(document.getMetadata()).toString());
+        List<XPage> pages = document.getPages();
+        out.writeInt(pages.size());
+        for (XPage page : pages) {
+            float[] vector = null;
+            if (withVectors) {
+                // pages were indexed in document order, skipping the ones without a vector
+                Integer ordinal = ordinals.peek();
+                boolean indexed = ordinal != null && index.getPage(ordinal).getPageNumber() == page.getPageNumber();
+                if (indexed) {
+                    ordinals.poll();
+                }
+                vector = page.getVector();
+                if (vector == null && indexed) {
+                    vector = index.vector(ordinal);
+                }
+            }
+            out.writeInt(page.getPageNumber());
+            writeString(out, page.getText());
+            out.writeInt(vector == null ? -1 : vector.length);
+            if (vector != null) {
+                for (float value : vector) {
+                    out.writeFloat(value);
+                }
+            }
+        }
+    }
+
+    static XDoc readDocument(DataInputStream in) throws IOException {
+        return readDocument(input(in));
+    }
+
+    static XDoc readDocument(RandomAccessReader in) throws IOException {
+        return readDocument(input(in));
+    }
+
+    static void writeUuid(DataOutputStream out, UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    static UUID readUuid(DataInputStream in) throws IOException {
+        return readUuid(input(in));
+    }
+
+    static UUID readUuid(RandomAccessReader in) throws IOException {
+        return readUuid(input(in));
+    }
+
+    /**
+     * The reads of the record layout, from a stream or from a memory-mapped file.
+     */
+    private interface RecordInput {
+
+        int readInt() throws IOException;
+
+        long readLong() throws IOException;
+
+        void readFully(byte[] bytes) throws IOException;
+
+        void readFully(float[] values) throws IOException;
+    }
+
+    private static RecordInput input(DataInputStream in) {
+        return new RecordInput() {
+            @Override
+            public int readInt() throws IOException {
+                return in.readInt();
+            }
+
+            @Override
+            public long readLong() throws IOException {
+                return in.readLong();
+            }
+
+            @Override
+            public void readFully(byte[] bytes) throws IOException {
+                in.readFully(bytes);
+            }
+
+            @Override
+            public void readFully(float[] values) throws IOException {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.readFloat();
+                }
+            }
+        };
+    }
+
+    private static RecordInput input(RandomAccessReader in) {
+        return new RecordInput() {
+            @Override
+            public int readInt() throws IOException {
+                return in.readInt();
+            }
+
+            @Override
+            public long readLong() throws IOException {
+                // the reader has no readLong
+                long[] value = new long[1];
+                in.readFully(value);
+                return value[0];
+            }
+
+            @Override
+            public void readFully(byte[] bytes) throws IOException {
+                in.readFully(bytes);
+            }
+
+            @Override
+            public void readFully(float[] values) throws IOException {
+                in.readFully(values);
+            }
+        };
+    }
+
+    private static XDoc readDocument(RecordInput in) throws IOException {
+        var document = new XDoc();
+        document.setId(readUuid(in));
+        document.setDocTitle(readString(in));
+        document.setFilename(readString(in));
+        String metadata = readString(in);
+        if (metadata != null) {
+            document.setMetadata(new HashMap<>(new JSONObject(metadata).toMap()));
+        }
+        int count = in.readInt();
+        List<XPage> pages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            var page = new XPage();
+            page.setPageNumber(in.readInt());
+            page.setText(readString(in));
+            int dimension = in.readInt();
+            if (dimension >= 0) {
+                float[] vector = new float[dimension];
+                in.readFully(vector);
+                page.setVector(vector);
+            }
+            pages.add(page);
+        }
+        document.setPages(pages);
+        return document;
+    }
+
+    private static UUID readUuid(RecordInput in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    /**
+     * Write a string as its length in UTF-8 bytes followed by the bytes, -1 for null.
+     * DataOutputStream.writeUTF is limited to 64KB, less than the text of a large page.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(RecordInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,174 @@
+package one.cax.doc_search.cache;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * WeightedLruCache is a bounded, thread-safe, least-recently-used cache.
+ *
+ * Every value has a weight (typically its size in bytes) and the cache evicts the least
+ * recently used entries once the total weight goes above the configured maximum.
+ * A value heavier than the maximum weight is never cached. Entries can also be given a time to live,
+ * after which they are treated as absent and dropped on their next lookup or eviction pass.
+ *
+ * Key components:
+ * - entries: An access-ordered LinkedHashMap, guarded by a lock
+ * - weigher: Computes the weight of a value when it is added
+ * - evictions: The number of entries evicted to stay within the maximum weight or because they expired
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class WeightedLruCache<K, V> {
+
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final long ttlNanos;
+    private final LongSupplier ticker;
+    private final AtomicLong evictions = new AtomicLong();
+    private long totalWeight;
+
+    /**
+     * Create a new WeightedLruCache whose entries never expire.
+     *
+     * @param maxWeight - the maximum total weight of the cached values
+     * @param weigher   - computes the weight of a value
+     */
+    public WeightedLruCache(long maxWeight, ToLongFunction<V> weigher) {
+        this(maxWeight, weigher, null, System::nanoTime);
+    }
+
+    /**
+     * Create a new WeightedLruCache.
+     *
+     * @param maxWeight - the maximum total weight of the cached values
+     * @param weigher   - computes the weight of a value
+     * @param ttl       - how long an entry stays valid after it is added, null for ever
+     * @param ticker    - the source of time, in nanoseconds
+     */
+    public WeightedLruCache(long maxWeight, ToLongFunction<V> weigher, Duration ttl, LongSupplier ticker) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.ttlNanos = ttl == null ? Long.MAX_VALUE : ttl.toNanos();
+        this.ticker = ticker;
+    }
+
+    /**
+     * Get a value, marking it as the most recently used.
+     *
+     * @param key - the key
+     * @return - the value, or null if it is not cached
+     */
+    public V get(K key) {
+        lock.lock();
+        try {
+            Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.isExpired(ticker.getAsLong())) {
+                entries.remove(key);
+                totalWeight -= entry.weight;
+                evictions.incrementAndGet();
+                return null;
+            }
+            return entry.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add or replace a value, evicting the least recently used entries if the cache gets too heavy.
+     *
+     * @param key   - the key
+     * @param value - the value
+     */
+    public void put(K key, V value) {
+        long weight = weigher.applyAsLong(value);
+        if (weight > maxWeight) {
+            return;
+        }
+        lock.lock();
+        try {
+            long now = ticker.getAsLong();
+            long expiresAt = ttlNanos == Long.MAX_VALUE ? Long.MAX_VALUE : now + ttlNanos;
+            Entry<V> previous = entries.put(key, new Entry<>(value, weight, expiresAt));
+            if (previous != null) {
+                totalWeight -= previous.weight;
+            }
+            totalWeight += weight;
+            Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+            while (totalWeight > maxWeight && eldest.hasNext()) {
+                totalWeight -= eldest.next().getValue().weight;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a value.
+     *
+     * @param key - the key
+     */
+    public void remove(K key) {
+        lock.lock();
+        try {
+            Entry<V> previous = entries.remove(key);
+            if (previous != null) {
+                totalWeight -= previous.weight;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return - the number of cached entries
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return - the total weight of the cached values
+     */
+    public long weight() {
+        lock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return - the number of entries evicted since the cache was created
+     */
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    private record Entry<V>(V value, long weight, long expiresAt) {
+
+        boolean isExpired(long now) {
+            return expiresAt != Long.MAX_VALUE && now - expiresAt >= 0;
+        }
+    }
+}
@@ -1,9 +1,25 @@
 package one.cax.doc_search.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import one.cax.doc_search.cache.ExtractionCache;
+import one.cax.doc_search.cache.MappedVectorStore;
+import one.cax.doc_search.cache.QueryEmbeddingCache;
+import one.cax.doc_search.service.AdaptiveConcurrencyLimiter;
+import one.cax.doc_search.service.CachingEmbedder;
+import one.cax.doc_search.service.CoalescingEmbedder;
+import one.cax.doc_search.service.ConcurrencyLimitedEmbedder;
+import one.cax.doc_search.service.Embedder;
 import one.cax.doc_search.service.OpenAIEmbedderService;
+import one.cax.doc_search.service.UploadAdmission;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 
 @Configuration
 public class AppConfig {
@@ -17,8 +33,161 @@ public class AppConfig {
     @Value("${openai.api.model}")
     private String model;
 
+    /* Whether to cache embeddings by content */
+    @Value("${doc_ext_search.embedding.cache.enabled}")
+    private boolean cacheEnabled;
+
+    /* The maximum size of the embeddings cached in memory */
+    @Value("${doc_ext_search.embedding.cache.max_bytes}")
+    private long cacheMaxBytes;
+
+    /* Whether to keep cached embeddings in a memory-mapped file that survives restarts */
+    @Value("${doc_ext_search.embedding.cache.disk_enabled}")
+    private boolean cacheDiskEnabled;
+
+    /* The file backing the on-disk embedding cache */
+    @Value("${doc_ext_search.embedding.cache.disk_path}")
+    private String cacheDiskPath;
+
+    /* The maximum size of the on-disk embedding cache */
+    @Value("${doc_ext_search.embedding.cache.disk_max_bytes}")
+    private long cacheDiskMaxBytes;
+
+    /* Whether to adapt the number of embedding requests in flight to the rate limits of the service */
+    @Value("${doc_ext_search.embedding.concurrency.enabled}")
+    private boolean concurrencyEnabled;
+
+    /* The number of embedding requests allowed in flight at startup */
+    @Value("${doc_ext_search.embedding.concurrency.initial_limit}")
+    private int concurrencyInitialLimit;
+
+    /* The lowest number of embedding requests allowed in flight */
+    @Value("${doc_ext_search.embedding.concurrency.min_limit}")
+    private int concurrencyMinLimit;
+
+    /* The highest number of embedding requests allowed in flight */
+    @Value("${doc_ext_search.embedding.concurrency.max_limit}")
+    private int concurrencyMaxLimit;
+
+    /* The factor applied to the limit when a request is rate limited or times out */
+    @Value("${doc_ext_search.embedding.concurrency.backoff_ratio}")
+    private double concurrencyBackoffRatio;
+
+    /* Whether to merge concurrent single-text embedding requests into batches */
+    @Value("${doc_ext_search.embedding.coalesce.enabled}")
+    private boolean coalesceEnabled;
+
+    /* The maximum time a text waits for other texts before its batch is sent */
+    @Value("${doc_ext_search.embedding.coalesce.max_wait_ms}")
+    private long coalesceMaxWaitMs;
+
+    /* The maximum number of texts in a merged batch */
+    @Value("${doc_ext_search.embedding.coalesce.max_batch_size}")
+    private int coalesceMaxBatchSize;
+
+    /* The maximum number of merged batches sent at the same time */
+    @Value("${doc_ext_search.embedding.coalesce.max_in_flight}")
+    private int coalesceMaxInFlight;
+
+    /* The maximum number of search queries whose vectors are cached, 0 to disable the cache */
+    @Value("${doc_ext_search.search.query_cache.max_entries}")
+    private int queryCacheMaxEntries;
+
+    /* How long the vector of a search query stays cached */
+    @Value("${doc_ext_search.search.query_cache.ttl_seconds}")
+    private long queryCacheTtlSeconds;
+
+    /* The maximum size of the extracted documents cached in memory, compressed */
+    @Value("${doc_ext_search.extraction.cache.max_bytes}")
+    private long extractionCacheMaxBytes;
+
+    /* The maximum size of a single cached extracted document, compressed */
+    @Value("${doc_ext_search.extraction.cache.max_entry_bytes}")
+    private long extractionCacheMaxEntryBytes;
+
+    /* Whether to also keep extracted documents on disk, where they survive restarts */
+    @Value("${doc_ext_search.extraction.cache.disk_enabled}")
+    private boolean extractionCacheDiskEnabled;
+
+    /* The directory of the on-disk extraction cache */
+    @Value("${doc_ext_search.extraction.cache.disk_dir}")
+    private String extractionCacheDiskDir;
+
+    /* The maximum size of the on-disk extraction cache */
+    @Value("${doc_ext_search.extraction.cache.disk_max_bytes}")
+    private long extractionCacheDiskMaxBytes;
+
+    /* The maximum size of the uploads extracted at the same time */
+    @Value("${doc_ext_search.admission.max_bytes}")
+    private long admissionMaxBytes;
+
+    /* The maximum number of pages extracted from uploads still in flight */
+    @Value("${doc_ext_search.admission.max_pages}")
+    private long admissionMaxPages;
+
+    /* The maximum time an upload waits for the budget before it is rejected */
+    @Value("${doc_ext_search.admission.max_wait_ms}")
+    private long admissionMaxWaitMs;
+
+    /* The maximum number of uploads waiting for the budget */
+    @Value("${doc_ext_search.admission.max_queued}")
+    private int admissionMaxQueued;
+
+    /* The time rejected uploads are asked to wait before trying again */
+    @Value("${doc_ext_search.admission.retry_after_seconds}")
+    private long admissionRetryAfterSeconds;
+
     @Bean
     public OpenAIEmbedderService openAIEmbedderService() {
         return new OpenAIEmbedderService(apiUrl, apiKey, model);
     }
-}
\ No newline at end of file
+
+    /**
+     * The Embedder used by the application: the OpenAI embedder, behind an adaptive concurrency limiter,
+     * a coalescer that merges concurrent requests and a content-addressed cache, each when enabled.
+     */
+    @Bean
+    @Primary
+    public Embedder embedder(OpenAIEmbedderService openAIEmbedderService, MeterRegistry meterRegistry) throws IOException {
+        Embedder embedder = openAIEmbedderService;
+        if (concurrencyEnabled) {
+            var limiter = new AdaptiveConcurrencyLimiter(concurrencyInitialLimit, concurrencyMinLimit, concurrencyMaxLimit, concurrencyBackoffRatio);
+            embedder = new ConcurrencyLimitedEmbedder(embedder, limiter, meterRegistry);
+        }
+        if (coalesceEnabled) {
+            embedder = new CoalescingEmbedder(embedder, coalesceMaxWaitMs, coalesceMaxBatchSize, coalesceMaxInFlight, meterRegistry);
+        }
+        if (cacheEnabled) {
+            MappedVectorStore diskTier = cacheDiskEnabled ? new MappedVectorStore(Path.of(cacheDiskPath), cacheDiskMaxBytes) : null;
+            embedder = new CachingEmbedder(embedder, cacheMaxBytes, diskTier, meterRegistry);
+        }
+        return embedder;
+    }
+
+    /**
+     * The cache of search query vectors used by VectorSearch.
+     */
+    @Bean
+    public QueryEmbeddingCache queryEmbeddingCache(MeterRegistry meterRegistry) {
+        return new QueryEmbeddingCache(queryCacheMaxEntries, Duration.ofSeconds(queryCacheTtlSeconds), meterRegistry);
+    }
+
+    /**
+     * The cache of extracted documents used by FileService, when enabled.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "doc_ext_search.extraction.cache.enabled", havingValue = "true")
+    public ExtractionCache extractionCache(MeterRegistry meterRegistry) throws IOException {
+        Path diskDirectory = extractionCacheDiskEnabled ? Path.of(extractionCacheDiskDir) : null;
+        return new ExtractionCache(extractionCacheMaxBytes, extractionCacheMaxEntryBytes, diskDirectory, extractionCacheDiskMaxBytes, meterRegistry);
+    }
+
+    /**
+     * The admission control of uploads, when enabled.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "doc_ext_search.admission.enabled", havingValue = "true")
+    public UploadAdmission uploadAdmission(MeterRegistry meterRegistry) {
+        return new UploadAdmission(admissionMaxBytes, admissionMaxPages, admissionMaxWaitMs, admissionMaxQueued, admissionRetryAfterSeconds, meterRegistry);
+    }
+}
@@ -3,34 +3,57 @@ package one.cax.doc_search.controller;
 
 import io.swagger.v3.oas.annotations.tags.Tag;
 import one.cax.doc_search.exception.FileServiceException;
+import one.cax.doc_search.exception.UploadRejectedException;
+import one.cax.doc_search.model.ExtractionJob;
+import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.service.ExtractionJobService;
 import one.cax.doc_search.service.FileService;
+import one.cax.doc_search.service.UploadAdmission;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
 /**
  * ExtractController is responsible for handling file upload and text extraction operations.
  * 
  * This controller provides endpoints for uploading files and extracting text content from them.
- * It supports both in-memory processing and temporary file storage based on configuration.
+ * It supports both in-memory processing and temporary file storage based on configuration; with temporary
+ * file storage the upload is streamed to disk and the PDF is read from the file, so the heap used by an
+ * upload does not grow with the size of the file.
  * 
  * Key functionalities:
  * - Uploading files (currently supporting PDF format)
  * - Extracting text content from uploaded files
+ * - Streaming the extracted pages as newline-delimited JSON, one line per page
+ * - Extracting large files as background jobs, with progress polling and paged results
+ * - Rejecting uploads with 429 and a Retry-After header while the extraction budget is used up
  * - Handling file processing errors
  * 
- * The controller uses FileService for text extraction and supports configurable
+ * The controller uses FileService for text extraction, ExtractionJobService for background jobs, and supports configurable
  * temporary file storage and in-memory processing options.
  */
 @RestController
@@ -41,6 +64,8 @@ public class ExtractController {
     private final Logger logger = Logger.getLogger(ExtractController.class.getName());
     /* The FileService - extracts text from PDFs */
     private final FileService fileService;
+    /* The ExtractionJobService - extracts text from PDFs in the background */
+    private final ExtractionJobService extractionJobService;
     /* The temporary folder to store the uploaded file */
     @Value("${doc_ext_search.temp_folder}")
     private String tempFolder;
@@ -49,9 +74,24 @@ public class ExtractController {
     private boolean fileInMemProcessing;
 
 
+    /* The number of seconds a client is asked to wait before submitting a job again when the queue is full */
+    @Value("${doc_ext_search.extraction.jobs.retry_after_seconds}")
+    private long retryAfterSeconds;
+
+
+    /* The admission control of uploads, null when uploads are not limited */
+    private UploadAdmission uploadAdmission;
+
+
     @Autowired
-    public ExtractController(FileService fileService) {
+    public ExtractController(FileService fileService, ExtractionJobService extractionJobService) {
         this.fileService = fileService;
+        this.extractionJobService = extractionJobService;
+    }
+
+    @Autowired(required = false)
+    public void setUploadAdmission(UploadAdmission uploadAdmission) {
+        this.uploadAdmission = uploadAdmission;
     }
 
     /**
@@ -67,22 +107,31 @@ public class ExtractController {
                 return new ResponseEntity<>("Please upload a file!", HttpStatus.BAD_REQUEST);
             }
 
-            if (fileInMemProcessing) {
-                byte[] bytes = file.getBytes();
-                String fileType = file.getContentType();
-                var xDoc = fileService.extractTextFrom(bytes, fileType);
-                JSONObject response = xDoc.toJSON();
-                return new ResponseEntity<>(response.toString(), HttpStatus.OK);
-            }
+            try (UploadAdmission.Permit permit = admit(file)) {
+                if (fileInMemProcessing) {
+                    byte[] bytes = file.getBytes();
+                    String fileType = file.getContentType();
+                    // the pages are counted as they are extracted and held until the response is built
+                    var xDoc = fileService.extractTextFrom(bytes, fileType, permit::addPages);
+                    JSONObject response = xDoc.toJSON();
+                    return new ResponseEntity<>(response.toString(), HttpStatus.OK);
+                }
 
-            String fileName = UUID.randomUUID().toString() + ".pdf";
-            // save file temp folder
-            String tempFilePath = tempFolder + fileName;
-            file.transferTo(new File(tempFilePath));
-            var xDoc = fileService.extractTextFrom(tempFilePath);
-            JSONObject response = xDoc.toJSON();
-            return new ResponseEntity<>(response.toString(), HttpStatus.OK);
+                String fileName = UUID.randomUUID().toString() + ".pdf";
+                // stream the upload to the temp folder, the PDF is then read from disk on demand
+                String tempFilePath = tempFolder + fileName;
+                try {
+                    file.transferTo(new File(tempFilePath));
+                    var xDoc = fileService.extractTextFrom(tempFilePath, permit::addPages);
+                    JSONObject response = xDoc.toJSON();
+                    return new ResponseEntity<>(response.toString(), HttpStatus.OK);
+                } finally {
+                    Files.deleteIfExists(Path.of(tempFilePath));
+                }
+            }
 
+        } catch (UploadRejectedException e) {
+            return tooManyUploads();
         } catch (FileServiceException e) {
             logger.severe(e.getMessage());
             return new ResponseEntity<>("Could not upload the file: " + file.getOriginalFilename() + "!", HttpStatus.EXPECTATION_FAILED);
@@ -92,4 +141,170 @@ public class ExtractController {
         }
     }
 
+    /**
+     * Extract text from a file, streaming the result as newline-delimited JSON.
+     * Selected with {@code Accept: application/x-ndjson}. The upload is streamed to the temp folder and
+     * one JSON line is written per page, in page order, as soon as the page is extracted. If the
+     * extraction fails after the response has started, a last line holding an error field is written.
+     *
+     * @param file - the file to extract text from
+     * @return the streamed pages
+     */
+    @PostMapping(value = "/upload", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<Object> uploadFileAsStream(@RequestParam("file") MultipartFile file) {
+        if (file.isEmpty()) {
+            return new ResponseEntity<>("Please upload a file!", HttpStatus.BAD_REQUEST);
+        }
+        UploadAdmission.Permit permit;
+        try {
+            permit = admit(file);
+        } catch (UploadRejectedException e) {
+            return tooManyUploads();
+        }
+        Path tempFile = Path.of(tempFolder, UUID.randomUUID() + ".pdf");
+        try {
+            file.transferTo(tempFile);
+        } catch (Exception e) {
+            logger.severe(e.getMessage());
+            permit.close();
+            return new ResponseEntity<>("An error occurred while processing the file: " + file.getOriginalFilename() + "!", HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+
+        // the permit is held until the last line is written
+        StreamingResponseBody body = out -> {
+            try (permit) {
+                fileService.extractTextFrom(tempFile.toString(), new XDoc(), permit.counting(page -> {
+                    try {
+                        writeLine(out, page.toJSON());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            } catch (UncheckedIOException e) {
+                // the client went away
+                throw e.getCause();
+            } catch (FileServiceException e) {
+                logger.severe(e.getMessage());
+                writeLine(out, new JSONObject().put("error", "Could not upload the file: " + file.getOriginalFilename() + "!"));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.severe("Interrupted while extracting the file: " + file.getOriginalFilename());
+                writeLine(out, new JSONObject().put("error", "An error occurred while processing the file: " + file.getOriginalFilename() + "!"));
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * Queue the extraction of a file and return at once.
+     * The job is polled with {@code GET /extract/jobs/{jobId}} and its pages read with
+     * {@code GET /extract/jobs/{jobId}/pages}.
+     *
+     * @param file - the file to extract text from
+     * @return the queued job, or 503 with a Retry-After header when too many jobs are queued
+     */
+    @PostMapping("/jobs")
+    public ResponseEntity<Object> submitJob(@RequestParam("file") MultipartFile file) {
+        if (file.isEmpty()) {
+            return new ResponseEntity<>("Please upload a file!", HttpStatus.BAD_REQUEST);
+        }
+        Path tempFile = Path.of(tempFolder, UUID.randomUUID() + ".pdf");
+        try {
+            file.transferTo(tempFile);
+            ExtractionJob job = extractionJobService.submit(tempFile, file.getOriginalFilename());
+            return ResponseEntity.accepted()
+                    .header(HttpHeaders.LOCATION, "/extract/jobs/" + job.getJobId())
+                    .body(job.toJSON().toString());
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+                    .body("Too many files waiting to be extracted, please try again later!");
+        } catch (Exception e) {
+            logger.severe(e.getMessage());
+            deleteQuietly(tempFile);
+            return new ResponseEntity<>("An error occurred while processing the file: " + file.getOriginalFilename() + "!", HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Get the progress of a job: its status, the number of pages extracted and the total number of pages.
+     *
+     * @param jobId - the job id
+     * @return the progress of the job
+     */
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<Object> getJob(@PathVariable UUID jobId) {
+        ExtractionJob job = extractionJobService.getJob(jobId);
+        if (job == null) {
+            return new ResponseEntity<>("Job not found", HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(job.toJSON().toString(), HttpStatus.OK);
+    }
+
+    /**
+     * Get a range of the pages extracted by a job. Pages can be read while the job is running;
+     * the response holds the offset of the next range until the last page has been read.
+     *
+     * @param jobId  - the job id
+     * @param offset - the index of the first page
+     * @param limit  - the maximum number of pages
+     * @return the pages
+     */
+    @GetMapping("/jobs/{jobId}/pages")
+    public ResponseEntity<Object> getJobPages(@PathVariable UUID jobId,
+                                              @RequestParam(value = "offset", defaultValue = "0") int offset,
+                                              @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        ExtractionJob job = extractionJobService.getJob(jobId);
+        if (job == null) {
+            return new ResponseEntity<>("Job not found", HttpStatus.NOT_FOUND);
+        }
+        if (offset < 0 || limit < 1) {
+            return new ResponseEntity<>("Invalid offset or limit", HttpStatus.BAD_REQUEST);
+        }
+        return new ResponseEntity<>(job.pagesToJSON(offset, limit).toString(), HttpStatus.OK);
+    }
+
+    /**
+     * Cancel a job and discard its pages.
+     *
+     * @param jobId - the job id
+     * @return 204, or 404 if the job does not exist
+     */
+    @DeleteMapping("/jobs/{jobId}")
+    public ResponseEntity<Object> cancelJob(@PathVariable UUID jobId) {
+        if (!extractionJobService.cancel(jobId)) {
+            return new ResponseEntity<>("Job not found", HttpStatus.NOT_FOUND);
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Get a permit for an upload from the admission control, when enabled.
+     */
+    private UploadAdmission.Permit admit(MultipartFile file) throws UploadRejectedException {
+        return uploadAdmission == null ? UploadAdmission.Permit.NONE : uploadAdmission.acquire(file.getSize());
+    }
+
+    private ResponseEntity<Object> tooManyUploads() {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(uploadAdmission.retryAfterSeconds()))
+                .body("Too many uploads in progress, please try again later!");
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warning(e.getMessage());
+        }
+    }
+
+    private static void writeLine(OutputStream out, JSONObject line) throws IOException {
+        out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+        out.flush();
+    }
+
 }
\ No newline at end of file
@@ -3,24 +3,32 @@ package one.cax.doc_search.controller;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import one.cax.doc_search.exception.UploadRejectedException;
 import one.cax.doc_search.exception.VectorSearchException;
 import one.cax.doc_search.model.AddTextRequest;
 import one.cax.doc_search.model.AddTextResponse;
+import one.cax.doc_search.model.BatchSearchRequest;
 import one.cax.doc_search.model.SearchRequest;
 import one.cax.doc_search.model.SearchResponse;
+import one.cax.doc_search.model.VectorEncoding;
 import one.cax.doc_search.model.XDoc;
-import one.cax.doc_search.service.ExtractorEngine;
+import one.cax.doc_search.service.FileService;
+import one.cax.doc_search.service.UploadAdmission;
 import one.cax.doc_search.service.VectorSearch;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.UUID;
 
 /**
@@ -28,12 +36,13 @@ import java.util.UUID;
  * 
  * This controller provides endpoints for adding documents to the vector space,
  * uploading files, and performing vector-based searches. It integrates with
- * ExtractorEngine for text extraction and VectorSearch for search operations.
+ * FileService for text extraction and VectorSearch for search operations.
  * 
  * Key functionalities:
  * - Adding documents to the vector space
- * - Uploading files and processing them for vector search
- * - Performing vector-based searches on added documents
+ * - Uploading files and processing them for vector search, within the extraction budget of the application
+ * - Adding documents with precomputed vectors sent as a binary blob
+ * - Performing vector-based searches on added documents, one query or a batch of queries at a time
  * 
  * The controller uses SessionService (indirectly through VectorSearch) to manage
  * user sessions and ensure proper isolation of search contexts.
@@ -43,14 +52,21 @@ import java.util.UUID;
 @Tag(name = "VectorController", description = "Controller for vector search operations")
 public class VectorController {
 
-    private final ExtractorEngine extractorEngine;
+    private final FileService fileService;
     @Value("${doc_ext_search.temp_folder}")
     private String tempFolder;
     private VectorSearch vectorService;
+    /* The admission control of uploads, null when uploads are not limited */
+    private UploadAdmission uploadAdmission;
 
     @Autowired
-    public VectorController(ExtractorEngine extractorEngine) {
-        this.extractorEngine = extractorEngine;
+    public VectorController(FileService fileService) {
+        this.fileService = fileService;
+    }
+
+    @Autowired(required = false)
+    public void setUploadAdmission(UploadAdmission uploadAdmission) {
+        this.uploadAdmission = uploadAdmission;
     }
 
     @Autowired
@@ -94,6 +110,63 @@ public class VectorController {
         }
     }
 
+    /**
+     * Add a document with precomputed vectors to the vector space.
+     * The document is sent in the addText JSON format, without page vectors; the vectors are sent as a
+     * binary part holding one vector per page, in page order, encoded as little-endian float32 or float16.
+     * The request is rejected when precomputed vectors are not accepted, the pages are never embedded again.
+     *
+     * @param document  - the document, as JSON
+     * @param vectors   - the page vectors, back to back
+     * @param dimension - the dimension of the vectors
+     * @param encoding  - the encoding of the vectors, float32 or float16
+     * @param sessionId - session id
+     * @return - response entity
+     */
+    @PostMapping(value = "/{sessionId}/addVectors", consumes = MediaType.MULTIPART_FORM_DATA_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    @Operation(summary = "Adds pre-embedded text to the session", description = "Adds a document and its binary page vectors to the vector space (session)")
+    public ResponseEntity<AddTextResponse> addVectors(@RequestParam("document") String document,
+                                                      @RequestParam("vectors") MultipartFile vectors,
+                                                      @RequestParam("dimension") int dimension,
+                                                      @RequestParam(value = "encoding", defaultValue = "float32") String encoding,
+                                                      @PathVariable("sessionId") String sessionId) {
+        var response = new AddTextResponse();
+        response.setSessionId(sessionId);
+        try {
+            if (!vectorService.acceptsPrecomputed()) {
+                throw new IllegalArgumentException("Precomputed vectors are not accepted");
+            }
+            var xDoc = XDoc.fromText(document);
+            var vectorEncoding = VectorEncoding.fromName(encoding);
+            var pages = xDoc.getPages();
+            long expectedBytes = (long) pages.size() * dimension * vectorEncoding.bytesPerValue();
+            if (dimension <= 0 || vectors.getSize() != expectedBytes) {
+                throw new IllegalArgumentException(String.format("Expected %d bytes of vectors for %d pages of dimension %d but got %d",
+                        expectedBytes, pages.size(), dimension, vectors.getSize()));
+            }
+            float[][] decoded;
+            try (InputStream in = vectors.getInputStream()) {
+                decoded = vectorEncoding.decode(in, pages.size(), dimension);
+            }
+            for (int i = 0; i < pages.size(); i++) {
+                pages.get(i).setVector(decoded[i]);
+            }
+
+            var docId = vectorService.addDocument(UUID.fromString(sessionId), xDoc);
+            response.setTextId(docId.toString());
+            response.setResponseText("text added successfully!");
+            return new ResponseEntity<>(response, HttpStatus.OK);
+
+        } catch (VectorSearchException | JSONException | IllegalArgumentException e) {
+            response.setResponseText("An error occurred while adding the document: " + e.getMessage());
+            return new ResponseEntity<>(response, HttpStatus.BAD_REQUEST);
+
+        } catch (Exception e) {
+            response.setResponseText("An internal server error occurred while adding the document.");
+            return new ResponseEntity<>(response, HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
     /**
      * Upload a document to the vector space.
      *
@@ -113,14 +186,33 @@ public class VectorController {
                 return new ResponseEntity<>(response, HttpStatus.OK);
             }
 
-            var xDoc = extractorEngine.extractTextFromPDF(file.getBytes());
-            var docId = vectorService.addDocument(UUID.fromString(sessionId), xDoc);
+            // stream the upload to the temp folder, the PDF is then read from disk on demand
+            Path tempFile = Path.of(tempFolder, UUID.randomUUID() + ".pdf");
+            UUID docId;
+            try (UploadAdmission.Permit permit = uploadAdmission == null ? UploadAdmission.Permit.NONE : uploadAdmission.acquire(file.getSize())) {
+                file.transferTo(tempFile);
+                var xDoc = new XDoc();
+                if (file.getOriginalFilename() != null && !file.getOriginalFilename().isBlank()) {
+                    xDoc.setFilename(file.getOriginalFilename());
+                }
+                docId = vectorService.addDocument(UUID.fromString(sessionId), xDoc,
+                        pages -> fileService.extractTextFrom(tempFile.toString(), xDoc, permit.counting(pages)));
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
             var response = new AddTextResponse();
             response.setSessionId(sessionId);
             response.setTextId(docId.toString());
             response.setResponseText("File uploaded and added successfully!");
             return new ResponseEntity<>(response, HttpStatus.OK);
 
+        } catch (UploadRejectedException e) {
+            var response = new AddTextResponse();
+            response.setSessionId(sessionId);
+            response.setResponseText("Too many uploads in progress, please try again later!");
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(uploadAdmission.retryAfterSeconds()))
+                    .body(response);
         } catch (Exception e) {
             
             var response = new AddTextResponse();
@@ -140,7 +232,7 @@ public class VectorController {
     @Operation(summary = "Search for relevant data based on the query", description = "Searches for relevant data in the vector space based on the query")
     public ResponseEntity<SearchResponse> search(@Schema(implementation = SearchRequest.class) @RequestBody SearchRequest searchRequest, @PathVariable("sessionId") String sessionId) {
         try {
-            JSONObject response = vectorService.search(UUID.fromString(sessionId), searchRequest.getQuery());
+            JSONObject response = vectorService.search(UUID.fromString(sessionId), searchRequest.getQuery(), searchRequest.getFilter(), searchRequest.getMode());
             SearchResponse searchResponse = new SearchResponse();
             searchResponse.setSessionId(sessionId);
             searchResponse.setResponseText(response.toString());
@@ -161,4 +253,35 @@ public class VectorController {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Search for several queries in the vector space.
+     * The queries are embedded in one request and searched against the same snapshot of the session.
+     *
+     * @param batchRequest - queries to search
+     * @return - response entity, with the results of every query
+     */
+    @PostMapping(value = "/{sessionId}/runBatch", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    @Operation(summary = "Search for relevant data based on several queries", description = "Searches for relevant data in the vector space for every query of the batch")
+    public ResponseEntity<SearchResponse> searchBatch(@Schema(implementation = BatchSearchRequest.class) @RequestBody BatchSearchRequest batchRequest, @PathVariable("sessionId") String sessionId) {
+        try {
+            JSONObject response = vectorService.searchBatch(UUID.fromString(sessionId), batchRequest.getQueries(), batchRequest.getFilter(), batchRequest.getMode(), batchRequest.isParallel());
+            SearchResponse searchResponse = new SearchResponse();
+            searchResponse.setSessionId(sessionId);
+            searchResponse.setResponseText(response.toString());
+            return new ResponseEntity<>(searchResponse, HttpStatus.OK);
+
+        } catch (VectorSearchException ve) {
+            SearchResponse searchResponse = new SearchResponse();
+            searchResponse.setSessionId(sessionId);
+            searchResponse.setResponseText("An error occurred while processing the queries: " + ve.getMessage());
+            return new ResponseEntity<>(searchResponse, HttpStatus.BAD_REQUEST);
+
+        } catch (Exception e) {
+            SearchResponse searchResponse = new SearchResponse();
+            searchResponse.setSessionId(sessionId);
+            searchResponse.setResponseText("An unexpected error occurred while processing the queries: " + e.getMessage());
+            return new ResponseEntity<>(searchResponse, HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+}
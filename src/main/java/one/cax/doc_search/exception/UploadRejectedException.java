@@ -0,0 +1,13 @@
+package one.cax.doc_search.exception;
+
+public class UploadRejectedException extends Exception {
+
+    public UploadRejectedException(String message) {
+        super(message);
+    }
+
+    public UploadRejectedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,122 @@
+package one.cax.doc_search.index;
+
+import one.cax.doc_search.exception.VectorSearchException;
+import one.cax.doc_search.model.SearchFilter;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * The bitset indexes of a SessionIndex, used to turn a SearchFilter into the set of ordinals a search may return.
+ *
+ * Key components:
+ * - byDocument: The ordinals of the pages of every document
+ * - byPageNumber: The ordinals of the pages with a given page number, ordered to answer ranges
+ * - byMetadataKey: The ordinals of the pages whose document has a metadata key
+ * - byMetadataValue: The ordinals of the pages whose document has a metadata key with a given value
+ */
+class FilterIndex {
+
+    private final Map<UUID, BitSet> byDocument = new HashMap<>();
+    private final NavigableMap<Integer, BitSet> byPageNumber = new TreeMap<>();
+    private final Map<String, BitSet> byMetadataKey = new HashMap<>();
+    private final Map<String, Map<String, BitSet>> byMetadataValue = new HashMap<>();
+
+    /**
+     * Index a page.
+     *
+     * @param ordinal    - the ordinal of the page
+     * @param docId      - the id of the document of the page
+     * @param pageNumber - the page number
+     * @param metadata   - the metadata of the document, may be null
+     */
+    synchronized void add(int ordinal, UUID docId, int pageNumber, Map<String, Object> metadata) {
+        byDocument.computeIfAbsent(docId, k -> new BitSet()).set(ordinal);
+        byPageNumber.computeIfAbsent(pageNumber, k -> new BitSet()).set(ordinal);
+        if (metadata != null) {
+            for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+                byMetadataKey.computeIfAbsent(entry.getKey(), k -> new BitSet()).set(ordinal);
+                byMetadataValue.computeIfAbsent(entry.getKey(), k -> new HashMap<>())
+                        .computeIfAbsent(String.valueOf(entry.getValue()), k -> new BitSet())
+                        .set(ordinal);
+            }
+        }
+    }
+
+    /**
+     * @param docId - the id of a document
+     * @return - the ordinals of the pages of the document
+     */
+    synchronized int[] ordinalsOf(UUID docId) {
+        BitSet pages = byDocument.get(docId);
+        return pages == null ? new int[0] : pages.stream().toArray();
+    }
+
+    /**
+     * Compile a filter into the set of ordinals below the limit that satisfy it.
+     *
+     * @param filter - the filter
+     * @param limit  - the number of ordinals visible to the search
+     * @return - the accepted ordinals, or null if the filter accepts every page
+     * @throws VectorSearchException - if the filter is invalid
+     */
+    synchronized BitSet compile(SearchFilter filter, int limit) throws VectorSearchException {
+        if (isUnconstrained(filter)) {
+            return null;
+        }
+        BitSet accepted = new BitSet(limit);
+        accepted.set(0, limit);
+
+        if (!isEmpty(filter.getDocIds())) {
+            BitSet documents = new BitSet();
+            for (UUID docId : filter.getDocIds()) {
+                BitSet pages = byDocument.get(docId);
+                if (pages != null) {
+                    documents.or(pages);
+                }
+            }
+            accepted.and(documents);
+        }
+
+        if (!isEmpty(filter.getPageRanges())) {
+            BitSet ranges = new BitSet();
+            for (SearchFilter.PageRange range : filter.getPageRanges()) {
+                int from = range.getFrom() == null ? Integer.MIN_VALUE : range.getFrom();
+                int to = range.getTo() == null ? Integer.MAX_VALUE : range.getTo();
+                if (from > to) {
+                    throw new VectorSearchException(String.format("Invalid page range %d-%d", from, to));
+                }
+                byPageNumber.subMap(from, true, to, true).values().forEach(ranges::or);
+            }
+            accepted.and(ranges);
+        }
+
+        if (filter.getMetadata() != null) {
+            for (Map.Entry<String, String> entry : filter.getMetadata().entrySet()) {
+                BitSet pages = entry.getValue() == null
+                        ? byMetadataKey.get(entry.getKey())
+                        : byMetadataValue.getOrDefault(entry.getKey(), Map.of()).get(entry.getValue());
+                if (pages == null) {
+                    accepted.clear();
+                    break;
+                }
+                accepted.and(pages);
+            }
+        }
+        return accepted;
+    }
+
+    private static boolean isUnconstrained(SearchFilter filter) {
+        return filter == null || (isEmpty(filter.getDocIds()) && isEmpty(filter.getPageRanges())
+                && (filter.getMetadata() == null || filter.getMetadata().isEmpty()));
+    }
+
+    private static boolean isEmpty(List<?> values) {
+        return values == null || values.isEmpty();
+    }
+}
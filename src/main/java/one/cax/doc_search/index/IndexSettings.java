@@ -0,0 +1,49 @@
+package one.cax.doc_search.index;
+
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.nio.file.Path;
+
+/**
+ * Settings shared by the SessionIndex instances of the application.
+ *
+ * Key components:
+ * - similarityFunction: The similarity function used to build and search the graphs
+ * - exactScanThreshold: The number of vectors up to which a segment is scanned exactly instead of searched through a graph
+ * - onDiskThreshold: The number of vectors at which the on-heap segment is written to disk, 0 to stay on heap
+ * - directory: The directory the on-disk segments are written to
+ * - pqEnabled: Whether on-disk segments are searched with product-quantized vectors
+ * - pqCompressionRatio: The size of a full vector divided by the size of its compressed code
+ * - pqMinVectors: The minimum number of vectors needed to train the codebook
+ * - rerankDepth: The number of candidates re-ranked with full-precision vectors
+ */
+@Getter
+@Setter
+public class IndexSettings {
+
+    /* The similarity function used to build and search the graphs */
+    private VectorSimilarityFunction similarityFunction = VectorSimilarityFunction.EUCLIDEAN;
+
+    /* The number of vectors up to which a segment is scanned exactly instead of searched through a graph */
+    private int exactScanThreshold;
+
+    /* The number of vectors at which the on-heap segment is written to disk, 0 to stay on heap */
+    private int onDiskThreshold;
+
+    /* The directory the on-disk segments are written to */
+    private Path directory;
+
+    /* Whether on-disk segments are searched with product-quantized vectors */
+    private boolean pqEnabled;
+
+    /* The size of a full vector divided by the size of its compressed code */
+    private int pqCompressionRatio = 16;
+
+    /* The minimum number of vectors needed to train the codebook */
+    private int pqMinVectors = 1024;
+
+    /* The number of candidates re-ranked with full-precision vectors */
+    private int rerankDepth = 100;
+}
@@ -0,0 +1,34 @@
+package one.cax.doc_search.index;
+
+import lombok.Getter;
+
+import java.util.UUID;
+
+/**
+ * Describes a page that has been added to a SessionIndex.
+ * The position of an IndexedPage in the index is the ordinal of its vector in the graph,
+ * which lets search results be mapped back to the document and page they came from.
+ *
+ * Key components:
+ * - docId: The id of the document the page belongs to
+ * - pageNumber: The number of the page within the document
+ * - text: The textual content of the page
+ */
+@Getter
+public class IndexedPage {
+
+    /* The id of the document the page belongs to */
+    private final UUID docId;
+
+    /* The number of the page within the document */
+    private final int pageNumber;
+
+    /* The text of the page */
+    private final String text;
+
+    public IndexedPage(UUID docId, int pageNumber, String text) {
+        this.docId = docId;
+        this.pageNumber = pageNumber;
+        this.text = text;
+    }
+}
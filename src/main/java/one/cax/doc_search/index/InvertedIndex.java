@@ -0,0 +1,197 @@
+package one.cax.doc_search.index;
+
+import io.github.jbellis.jvector.graph.NodeQueue;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.util.BoundedLongHeap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The lexical index of a SessionIndex: an inverted index over the page texts, scored with BM25.
+ *
+ * Terms are lower-cased runs of letters and digits. Runs joined by '-', '_', '.' or '/' are also
+ * indexed as a whole, so identifiers such as part numbers or clause ids match exactly.
+ * Posting lists are pairs of primitive arrays (ordinals and term frequencies) that grow
+ * as pages are appended, so ordinals in a posting list are always increasing.
+ *
+ * Key components:
+ * - postings: The posting list of every term
+ * - lengths: The number of terms of every page, by ordinal
+ * - totalLength: The number of terms of all the pages, for the average page length
+ */
+class InvertedIndex {
+
+    /* BM25 parameters */
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+
+    private static final Pattern TOKEN = Pattern.compile("[\\p{L}\\p{N}]+(?:[-_./][\\p{L}\\p{N}]+)*");
+    private static final Pattern PART = Pattern.compile("[\\p{L}\\p{N}]+");
+
+    private final Map<String, PostingList> postings = new HashMap<>();
+    private int[] lengths = new int[16];
+    private int pageCount;
+    private long totalLength;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Index the text of a page. Pages must be added in ordinal order.
+     *
+     * @param ordinal - the ordinal of the page
+     * @param text    - the text of the page, may be null
+     */
+    void add(int ordinal, String text) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        int length = 0;
+        for (String term : tokenize(text)) {
+            frequencies.merge(term, 1, Integer::sum);
+            length++;
+        }
+        lock.writeLock().lock();
+        try {
+            if (ordinal >= lengths.length) {
+                lengths = Arrays.copyOf(lengths, Math.max(ordinal + 1, lengths.length * 2));
+            }
+            lengths[ordinal] = length;
+            pageCount = Math.max(pageCount, ordinal + 1);
+            totalLength += length;
+            frequencies.forEach((term, frequency) -> postings.computeIfAbsent(term, t -> new PostingList()).add(ordinal, frequency));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Search the pages below the limit for the query terms.
+     *
+     * @param query    - the query text
+     * @param topK     - the number of results to return
+     * @param limit    - the number of ordinals visible to the search
+     * @param accepted - the ordinals that may be returned, or null to accept every ordinal below the limit
+     * @return - the pages with the best BM25 scores, best first
+     */
+    SearchResult search(String query, int topK, int limit, BitSet accepted) {
+        Map<String, Integer> terms = new LinkedHashMap<>();
+        for (String term : tokenize(query)) {
+            terms.merge(term, 1, Integer::sum);
+        }
+        float[] scores = new float[limit];
+        BitSet touched = new BitSet(limit);
+        int visited = 0;
+
+        lock.readLock().lock();
+        try {
+            if (pageCount == 0) {
+                return new SearchResult(new SearchResult.NodeScore[0], 0, 0, Float.NEGATIVE_INFINITY);
+            }
+            float averageLength = Math.max(1f, (float) totalLength / pageCount);
+            for (Map.Entry<String, Integer> term : terms.entrySet()) {
+                PostingList list = postings.get(term.getKey());
+                if (list == null) {
+                    continue;
+                }
+                float idf = (float) Math.log(1 + (pageCount - list.size + 0.5) / (list.size + 0.5));
+                for (int i = 0; i < list.size; i++) {
+                    int ordinal = list.ordinals[i];
+                    if (ordinal >= limit) {
+                        break;
+                    }
+                    if (accepted != null && !accepted.get(ordinal)) {
+                        continue;
+                    }
+                    int frequency = list.frequencies[i];
+                    float norm = K1 * (1 - B + B * lengths[ordinal] / averageLength);
+                    touched.set(ordinal);
+                    scores[ordinal] += term.getValue() * idf * frequency * (K1 + 1) / (frequency + norm);
+                    visited++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        var best = new NodeQueue(new BoundedLongHeap(Math.max(topK, 1)), NodeQueue.Order.MIN_HEAP);
+        for (int ordinal = touched.nextSetBit(0); ordinal >= 0; ordinal = touched.nextSetBit(ordinal + 1)) {
+            best.push(ordinal, scores[ordinal]);
+        }
+        var nodes = new SearchResult.NodeScore[topK > 0 ? best.size() : 0];
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            float score = best.topScore();
+            nodes[i] = new SearchResult.NodeScore(best.pop(), score);
+        }
+        float worstScore = nodes.length > 0 ? nodes[nodes.length - 1].score : Float.NEGATIVE_INFINITY;
+        return new SearchResult(nodes, visited, 0, worstScore);
+    }
+
+    /**
+     * @return - the number of distinct terms in the index
+     */
+    int termCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Split a text into terms: every run of letters and digits, plus every compound
+     * identifier made of such runs joined by '-', '_', '.' or '/'.
+     *
+     * @param text - the text, may be null
+     * @return - the terms, lower-cased
+     */
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return terms;
+        }
+        Matcher matcher = TOKEN.matcher(text.toLowerCase(Locale.ROOT));
+        while (matcher.find()) {
+            String token = matcher.group();
+            Matcher parts = PART.matcher(token);
+            int count = 0;
+            while (parts.find()) {
+                terms.add(parts.group());
+                count++;
+            }
+            if (count > 1) {
+                terms.add(token);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * The pages containing a term, as parallel arrays of ordinals and term frequencies.
+     */
+    private static final class PostingList {
+
+        private int[] ordinals = new int[4];
+        private int[] frequencies = new int[4];
+        private int size;
+
+        void add(int ordinal, int frequency) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            ordinals[size] = ordinal;
+            frequencies[size] = frequency;
+            size++;
+        }
+    }
+}
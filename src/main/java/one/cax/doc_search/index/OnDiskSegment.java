@@ -0,0 +1,133 @@
+package one.cax.doc_search.index;
+
+import io.github.jbellis.jvector.disk.ReaderSupplier;
+import io.github.jbellis.jvector.disk.SimpleMappedReader;
+import io.github.jbellis.jvector.graph.GraphSearcher;
+import io.github.jbellis.jvector.graph.RandomAccessVectorValues;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
+import io.github.jbellis.jvector.graph.similarity.SearchScoreProvider;
+import io.github.jbellis.jvector.pq.PQVectors;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * An immutable segment of a SessionIndex, stored in the jvector on-disk graph format with inline vectors.
+ * The file is memory-mapped, so neither the graph nor the vectors are kept on the heap:
+ * the OS page cache decides what stays in memory.
+ *
+ * When the segment has product-quantized vectors, the graph is traversed with approximate scores
+ * computed from the compressed codes held on the heap, and the best candidates are re-ranked
+ * exactly with the full vectors read from the mapped file.
+ */
+class OnDiskSegment implements Segment {
+
+    private static final Logger logger = Logger.getLogger(OnDiskSegment.class.getName());
+
+    private final int base;
+    private final Path path;
+    private final VectorSimilarityFunction similarityFunction;
+    private final ReaderSupplier readerSupplier;
+    private final OnDiskGraphIndex graph;
+
+    /* The compressed vectors of the segment, null when the segment is searched with full vectors only */
+    private final PQVectors compressed;
+    private final int rerankDepth;
+
+    private OnDiskSegment(int base, Path path, VectorSimilarityFunction similarityFunction,
+                          ReaderSupplier readerSupplier, OnDiskGraphIndex graph, PQVectors compressed, int rerankDepth) {
+        this.base = base;
+        this.path = path;
+        this.similarityFunction = similarityFunction;
+        this.readerSupplier = readerSupplier;
+        this.graph = graph;
+        this.compressed = compressed;
+        this.rerankDepth = rerankDepth;
+    }
+
+    /**
+     * Open a segment written by OnHeapSegment.writeTo.
+     *
+     * @param base               - the ordinal of the first vector of the segment
+     * @param path               - the segment file
+     * @param similarityFunction - the similarity function used to search the graph
+     * @param compressed         - the compressed vectors of the segment, or null
+     * @param rerankDepth        - the number of candidates re-ranked when searching compressed vectors
+     * @return - the segment
+     * @throws IOException - if the file cannot be mapped
+     */
+    static OnDiskSegment open(int base, Path path, VectorSimilarityFunction similarityFunction,
+                              PQVectors compressed, int rerankDepth) throws IOException {
+        ReaderSupplier readerSupplier = new SimpleMappedReader.Supplier(path);
+        return new OnDiskSegment(base, path, similarityFunction, readerSupplier, OnDiskGraphIndex.load(readerSupplier), compressed, rerankDepth);
+    }
+
+    /**
+     * @return - the segment file
+     */
+    Path path() {
+        return path;
+    }
+
+    /**
+     * @return - the compressed vectors of the segment, or null
+     */
+    PQVectors compressed() {
+        return compressed;
+    }
+
+    /**
+     * @return - true if the segment has compressed vectors
+     */
+    boolean isCompressed() {
+        return compressed != null;
+    }
+
+    @Override
+    public int base() {
+        return base;
+    }
+
+    @Override
+    public int size() {
+        return graph.size();
+    }
+
+    @Override
+    public VectorFloat<?> vector(int node) throws IOException {
+        try (var view = graph.getView()) {
+            return view.getVector(node);
+        }
+    }
+
+    @Override
+    public SearchResult search(VectorFloat<?> query, int topK, Bits acceptOrds, boolean useCompressed) throws IOException {
+        try (GraphSearcher searcher = new GraphSearcher(graph)) {
+            var vectors = (RandomAccessVectorValues) searcher.getView();
+            if (useCompressed && compressed != null) {
+                var approximate = compressed.precomputedScoreFunctionFor(query, similarityFunction);
+                var ssp = new SearchScoreProvider(approximate, vectors.rerankerFor(query, similarityFunction));
+                return searcher.search(ssp, topK, Math.max(topK, rerankDepth), 0.0f, 0.0f, acceptOrds);
+            }
+            SearchScoreProvider ssp = SearchScoreProvider.exact(query, similarityFunction, vectors);
+            return searcher.search(ssp, topK, acceptOrds);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            graph.close();
+            readerSupplier.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warning("error closing the on-disk segment " + path + ": " + e.getMessage());
+        }
+    }
+}
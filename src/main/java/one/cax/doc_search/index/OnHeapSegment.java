@@ -0,0 +1,199 @@
+package one.cax.doc_search.index;
+
+import io.github.jbellis.jvector.graph.GraphIndexBuilder;
+import io.github.jbellis.jvector.graph.GraphSearcher;
+import io.github.jbellis.jvector.graph.MapRandomAccessVectorValues;
+import io.github.jbellis.jvector.graph.NodeQueue;
+import io.github.jbellis.jvector.graph.RandomAccessVectorValues;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
+import io.github.jbellis.jvector.graph.similarity.BuildScoreProvider;
+import io.github.jbellis.jvector.graph.similarity.SearchScoreProvider;
+import io.github.jbellis.jvector.pq.PQVectors;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.util.BoundedLongHeap;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * The mutable segment of a SessionIndex: a graph that lives on the heap and grows one node at a time.
+ *
+ * While the segment holds no more vectors than the exact scan threshold, no graph is built and
+ * searches compare the query with every vector, keeping the best ones in a bounded heap. Scoring goes
+ * through VectorSimilarityFunction, which uses the SIMD implementation of the vectorization provider
+ * when it is available. The first vector past the threshold builds the graph from the existing vectors.
+ */
+class OnHeapSegment implements Segment {
+
+    private static final Logger logger = Logger.getLogger(OnHeapSegment.class.getName());
+
+    /* Graph construction parameters */
+    private static final int MAX_DEGREE = 16;
+    private static final int BEAM_WIDTH = 100;
+    private static final float NEIGHBOR_OVERFLOW = 1.2f;
+    private static final float ALPHA = 1.2f;
+
+    private final int base;
+    private final int dimension;
+    private final VectorSimilarityFunction similarityFunction;
+
+    /* The number of vectors up to which the segment is scanned instead of searched through a graph */
+    private final int exactScanThreshold;
+
+    /* The vectors of the segment, keyed by local ordinal */
+    private final Map<Integer, VectorFloat<?>> vectors = new ConcurrentHashMap<>();
+    private final RandomAccessVectorValues ravv;
+
+    /* The graph builder, published once it holds every vector of the segment */
+    private volatile GraphIndexBuilder builder;
+
+    OnHeapSegment(int base, int dimension, VectorSimilarityFunction similarityFunction, int exactScanThreshold) {
+        this.base = base;
+        this.dimension = dimension;
+        this.similarityFunction = similarityFunction;
+        this.exactScanThreshold = exactScanThreshold;
+        this.ravv = new MapRandomAccessVectorValues(vectors, dimension);
+    }
+
+    /**
+     * Add a vector to the segment. Not thread-safe, callers must serialize additions.
+     *
+     * @param vector - the vector to add
+     */
+    void add(VectorFloat<?> vector) {
+        int ordinal = vectors.size();
+        vectors.put(ordinal, vector);
+        if (builder != null) {
+            builder.addGraphNode(ordinal, vector);
+        } else if (vectors.size() > exactScanThreshold) {
+            buildGraph();
+        }
+    }
+
+    /**
+     * @return - true if the segment is searched through a graph
+     */
+    boolean hasGraph() {
+        return builder != null;
+    }
+
+    /**
+     * Write the graph and its vectors to disk in the jvector on-disk format.
+     *
+     * @param path        - the file to write
+     * @param compressed  - the compressed vectors of the segment, or null to search with full vectors only
+     * @param rerankDepth - the number of candidates re-ranked with full vectors when searching compressed vectors
+     * @return - the segment served from the written file
+     * @throws IOException - if the file cannot be written or read back
+     */
+    OnDiskSegment writeTo(Path path, PQVectors compressed, int rerankDepth) throws IOException {
+        if (builder == null) {
+            buildGraph();
+        }
+        writeGraph(path);
+        return OnDiskSegment.open(base, path, similarityFunction, compressed, rerankDepth);
+    }
+
+    /**
+     * Write the graph built so far and its vectors to disk in the jvector on-disk format,
+     * leaving the segment on the heap. Callers serialize this with additions.
+     *
+     * @param path - the file to write
+     * @throws IOException - if the file cannot be written
+     */
+    void writeGraph(Path path) throws IOException {
+        builder.cleanup();
+        OnDiskGraphIndex.write(builder.getGraph(), ravv, path);
+    }
+
+    /**
+     * @return - the vectors of the segment
+     */
+    RandomAccessVectorValues vectors() {
+        return ravv;
+    }
+
+    @Override
+    public int base() {
+        return base;
+    }
+
+    @Override
+    public int size() {
+        return vectors.size();
+    }
+
+    @Override
+    public VectorFloat<?> vector(int node) {
+        return vectors.get(node);
+    }
+
+    @Override
+    public SearchResult search(VectorFloat<?> query, int topK, Bits acceptOrds, boolean compressed) throws IOException {
+        GraphIndexBuilder graphBuilder = builder;
+        if (graphBuilder == null) {
+            return scan(query, topK, acceptOrds);
+        }
+        try (GraphSearcher searcher = new GraphSearcher(graphBuilder.getGraph())) {
+            SearchScoreProvider ssp = SearchScoreProvider.exact(query, similarityFunction, ravv);
+            return searcher.search(ssp, topK, acceptOrds);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (builder == null) {
+            return;
+        }
+        try {
+            builder.close();
+        } catch (IOException e) {
+            logger.warning("error closing the graph index builder: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Score every vector of the segment against the query and keep the top K.
+     *
+     * @param query - the query vector
+     * @param topK       - the number of results to return
+     * @param acceptOrds - the ordinals that may be returned
+     * @return - the search result, with exact scores
+     */
+    private SearchResult scan(VectorFloat<?> query, int topK, Bits acceptOrds) {
+        int count = vectors.size();
+        var best = new NodeQueue(new BoundedLongHeap(Math.max(topK, 1)), NodeQueue.Order.MIN_HEAP);
+        for (int ordinal = 0; ordinal < count; ordinal++) {
+            VectorFloat<?> vector = vectors.get(ordinal);
+            if (vector != null && acceptOrds.get(ordinal)) {
+                best.push(ordinal, similarityFunction.compare(query, vector));
+            }
+        }
+        // the queue pops the worst result first
+        var nodes = new SearchResult.NodeScore[topK > 0 ? best.size() : 0];
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            float score = best.topScore();
+            nodes[i] = new SearchResult.NodeScore(best.pop(), score);
+        }
+        float worstScore = nodes.length > 0 ? nodes[nodes.length - 1].score : Float.NEGATIVE_INFINITY;
+        return new SearchResult(nodes, count, 0, worstScore);
+    }
+
+    /**
+     * Build the graph from the vectors already in the segment, then publish it to searches.
+     */
+    private void buildGraph() {
+        BuildScoreProvider bsp = BuildScoreProvider.randomAccessScoreProvider(ravv, similarityFunction);
+        var graphBuilder = new GraphIndexBuilder(bsp, dimension, MAX_DEGREE, BEAM_WIDTH, NEIGHBOR_OVERFLOW, ALPHA);
+        for (int ordinal = 0; ordinal < vectors.size(); ordinal++) {
+            graphBuilder.addGraphNode(ordinal, vectors.get(ordinal));
+        }
+        builder = graphBuilder;
+    }
+}
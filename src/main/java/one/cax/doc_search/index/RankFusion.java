@@ -0,0 +1,93 @@
+package one.cax.doc_search.index;
+
+import io.github.jbellis.jvector.graph.SearchResult;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RankFusion merges the rankings of a vector search and a lexical search of the same index.
+ *
+ * Two methods are supported:
+ * - reciprocal rank fusion: every page scores the sum of 1 / (k + rank) over the rankings it appears in
+ * - weighted: the scores of each ranking are min-max normalized, then combined with a weight per ranking
+ */
+public final class RankFusion {
+
+    private RankFusion() {
+    }
+
+    /**
+     * The method used to fuse the rankings.
+     */
+    public enum Method {
+        RRF,
+        WEIGHTED
+    }
+
+    /**
+     * Fuse rankings with reciprocal rank fusion.
+     *
+     * @param k        - the rank constant, larger values flatten the contribution of the top ranks
+     * @param topK     - the number of results to return
+     * @param rankings - the rankings to fuse, best first
+     * @return - the fused ranking, with fused scores
+     */
+    public static SearchResult reciprocalRank(int k, int topK, SearchResult... rankings) {
+        Map<Integer, Float> fused = new HashMap<>();
+        int visited = 0;
+        for (SearchResult ranking : rankings) {
+            SearchResult.NodeScore[] nodes = ranking.getNodes();
+            for (int rank = 0; rank < nodes.length; rank++) {
+                fused.merge(nodes[rank].node, 1f / (k + rank + 1), Float::sum);
+            }
+            visited += ranking.getVisitedCount();
+        }
+        return top(fused, topK, visited);
+    }
+
+    /**
+     * Fuse a vector ranking and a lexical ranking with a weighted sum of their normalized scores.
+     *
+     * @param vectorWeight - the weight of the vector scores, the lexical scores get the rest
+     * @param topK         - the number of results to return
+     * @param vector       - the vector ranking
+     * @param lexical      - the lexical ranking
+     * @return - the fused ranking, with fused scores between 0 and 1
+     */
+    public static SearchResult weighted(float vectorWeight, int topK, SearchResult vector, SearchResult lexical) {
+        Map<Integer, Float> fused = new HashMap<>();
+        addNormalized(fused, vector, vectorWeight);
+        addNormalized(fused, lexical, 1f - vectorWeight);
+        return top(fused, topK, vector.getVisitedCount() + lexical.getVisitedCount());
+    }
+
+    private static void addNormalized(Map<Integer, Float> fused, SearchResult ranking, float weight) {
+        SearchResult.NodeScore[] nodes = ranking.getNodes();
+        if (nodes.length == 0) {
+            return;
+        }
+        float max = Float.NEGATIVE_INFINITY;
+        float min = Float.POSITIVE_INFINITY;
+        for (SearchResult.NodeScore ns : nodes) {
+            max = Math.max(max, ns.score);
+            min = Math.min(min, ns.score);
+        }
+        float range = max - min;
+        for (SearchResult.NodeScore ns : nodes) {
+            float normalized = range > 0 ? (ns.score - min) / range : 1f;
+            fused.merge(ns.node, weight * normalized, Float::sum);
+        }
+    }
+
+    private static SearchResult top(Map<Integer, Float> fused, int topK, int visited) {
+        var nodes = fused.entrySet().stream()
+                .sorted(Map.Entry.<Integer, Float>comparingByValue(Comparator.reverseOrder()).thenComparing(Map.Entry.comparingByKey()))
+                .limit(Math.max(topK, 0))
+                .map(e -> new SearchResult.NodeScore(e.getKey(), e.getValue()))
+                .toArray(SearchResult.NodeScore[]::new);
+        float worstScore = nodes.length > 0 ? nodes[nodes.length - 1].score : Float.NEGATIVE_INFINITY;
+        return new SearchResult(nodes, visited, 0, worstScore);
+    }
+}
@@ -0,0 +1,52 @@
+package one.cax.doc_search.index;
+
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A segment holds the graph of a contiguous range of ordinals of a SessionIndex.
+ * Node ids in the results of a segment are local: the ordinal in the index is base() + node.
+ */
+interface Segment extends Closeable {
+
+    /**
+     * @return - the ordinal of the first vector of the segment
+     */
+    int base();
+
+    /**
+     * @return - the number of vectors in the segment
+     */
+    int size();
+
+    /**
+     * Search the segment for the vectors closest to the query.
+     *
+     * @param query      - the query vector
+     * @param topK       - the number of results to return
+     * @param acceptOrds - the node ids, local to the segment, that may be returned
+     * @param compressed - whether to use compressed vectors, if the segment has them
+     * @return - the search result, with node ids local to the segment
+     * @throws IOException - if the segment cannot be read
+     */
+    SearchResult search(VectorFloat<?> query, int topK, Bits acceptOrds, boolean compressed) throws IOException;
+
+    /**
+     * Get a vector of the segment.
+     *
+     * @param node - the node id, local to the segment
+     * @return - the vector
+     * @throws IOException - if the segment cannot be read
+     */
+    VectorFloat<?> vector(int node) throws IOException;
+
+    /**
+     * Release the segment and the files backing it.
+     */
+    @Override
+    void close();
+}
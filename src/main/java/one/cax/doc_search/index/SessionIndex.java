@@ -0,0 +1,723 @@
+package one.cax.doc_search.index;
+
+import io.github.jbellis.jvector.disk.RandomAccessReader;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.graph.disk.OnDiskGraphIndex;
+import io.github.jbellis.jvector.pq.PQVectors;
+import io.github.jbellis.jvector.pq.ProductQuantization;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import io.github.jbellis.jvector.vector.VectorizationProvider;
+import io.github.jbellis.jvector.vector.types.VectorFloat;
+import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+import one.cax.doc_search.exception.VectorSearchException;
+import one.cax.doc_search.model.SearchFilter;
+import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * SessionIndex is the long-lived vector index of a single Session.
+ *
+ * The graph is built once and grows incrementally: every page added through
+ * {@link #add(XDoc)} is inserted into the graph as a new node, so queries only
+ * need to run a GraphSearcher against the existing graphs instead of rebuilding them.
+ *
+ * The index is made of segments covering contiguous ranges of ordinals. New pages go to
+ * an on-heap segment; when the on-disk threshold is set and the on-heap segment reaches it,
+ * the segment is written to disk in the jvector on-disk format and served from a memory-mapped
+ * file from then on, and the page vectors are released from the heap. Small on-heap segments
+ * skip the graph altogether and are searched with an exact scan.
+ *
+ * With product quantization enabled, a codebook is trained once per index from the first
+ * segment written to disk that is large enough, and every on-disk segment keeps the compressed
+ * codes of its vectors on the heap. Searches traverse those segments with the compressed scores
+ * and re-rank the best candidates with the full vectors from the mapped file.
+ *
+ * Key components:
+ * - pages: The page information, where the position in the list is the ordinal
+ * - segments: The segments of the index, the last one is the on-heap segment
+ * - settings: The similarity function, the on-disk and the compression settings
+ * - codebook: The product quantization codebook, trained on first use
+ * - filterIndex: The bitset indexes of documents, page numbers and metadata, used to filter searches
+ * - lexicalIndex: The inverted index of the page texts, for BM25 searches
+ *
+ * Pages are appended under the index lock, while searches run concurrently
+ * against the segments published at the time the search starts.
+ *
+ * An index can be written into a snapshot and restored from it without rebuilding its graphs:
+ * the restored segments are served from their memory-mapped files.
+ */
+public class SessionIndex implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(SessionIndex.class.getName());
+    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+
+    /* The number of centroids per subspace, so that every code fits in a byte */
+    private static final int PQ_CLUSTERS = 256;
+
+    /* The kinds of segments in a snapshot: a graph file, or vectors written inline */
+    private static final int SNAPSHOT_GRAPH = 1;
+    private static final int SNAPSHOT_VECTORS = 2;
+
+    private final IndexSettings settings;
+
+    /* The indexed pages, the position in the list is the ordinal */
+    private final List<IndexedPage> pages = Collections.synchronizedList(new ArrayList<>());
+
+    /* The ordinals of the pages by document, page number and metadata */
+    private final FilterIndex filterIndex = new FilterIndex();
+
+    /* The terms of the page texts, by ordinal */
+    private final InvertedIndex lexicalIndex = new InvertedIndex();
+
+    /* The pages whose vectors are held by the on-heap segment */
+    private final List<XPage> heapPages = new ArrayList<>();
+
+    /* The published segments, replaced as a whole when a segment is written to disk */
+    private volatile List<Segment> segments = List.of();
+
+    /* The segment new vectors are added to */
+    private OnHeapSegment active;
+
+    /* The dimension of the vectors, set by the first page added */
+    private volatile int dimension;
+
+    /* The directory of the on-disk segments of this index, created on first use */
+    private Path directory;
+
+    /* The codebook used to compress the on-disk segments, null until trained */
+    private ProductQuantization codebook;
+
+    /* The estimated heap used by the page texts, the vectors on the heap and the compressed codes */
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    /**
+     * Create a new, empty SessionIndex that stays on the heap.
+     *
+     * @param similarityFunction - the similarity function to use
+     */
+    public SessionIndex(VectorSimilarityFunction similarityFunction) {
+        this(onHeapSettings(similarityFunction));
+    }
+
+    /**
+     * Create a new, empty SessionIndex.
+     *
+     * @param settings - the index settings
+     */
+    public SessionIndex(IndexSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Add the pages of a document to the index.
+     * Pages without a vector are skipped.
+     *
+     * @param document - the document to add
+     * @return - the number of pages added to the index
+     * @throws VectorSearchException - if a page vector does not match the index dimension
+     */
+    public synchronized int add(XDoc document) throws VectorSearchException {
+        return add(document, document.getPages());
+    }
+
+    /**
+     * Add some pages of a document to the index.
+     * Pages without a vector are skipped. The dimensions are checked before any page is added, so a failed
+     * call leaves the index unchanged; a segment that cannot be written to disk stays on the heap.
+     *
+     * @param document - the document the pages belong to
+     * @param docPages - the pages to add
+     * @return - the number of pages added to the index
+     * @throws VectorSearchException - if a page vector does not match the index dimension
+     */
+    public synchronized int add(XDoc document, List<XPage> docPages) throws VectorSearchException {
+        int expected = dimension;
+        for (XPage page : docPages) {
+            if (page.getVector() == null) {
+                continue;
+            }
+            if (expected == 0) {
+                expected = page.getVector().length;
+            } else if (page.getVector().length != expected) {
+                throw new VectorSearchException(String.format("Vector dimension %d does not match index dimension %d", page.getVector().length, expected));
+            }
+        }
+        int added = 0;
+        boolean writable = true;
+        for (XPage page : docPages) {
+            if (page.getVector() == null) {
+                continue;
+            }
+            int ordinal = pages.size();
+            addVector(vts.createFloatVector(page.getVector()),
+                    new IndexedPage(document.getId(), page.getPageNumber(), page.getText()));
+            filterIndex.add(ordinal, document.getId(), page.getPageNumber(), document.getMetadata());
+            lexicalIndex.add(ordinal, page.getText());
+            heapPages.add(page);
+            estimatedBytes.addAndGet((page.getText() == null ? 0 : (long) page.getText().length() * Character.BYTES)
+                    + (long) dimension * Float.BYTES);
+            added++;
+            if (writable && settings.getOnDiskThreshold() > 0 && active.size() >= settings.getOnDiskThreshold()) {
+                try {
+                    writeActiveSegment();
+                } catch (VectorSearchException e) {
+                    // the pages are indexed on the heap, the segment is written again by a later call
+                    logger.warning(e.getMessage());
+                    writable = false;
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Search the index for the pages closest to the query,
+     * using the compressed vectors of the segments that have them.
+     *
+     * @param query - the query vector
+     * @param topK  - the number of results to return
+     * @return - the search result, node ids are ordinals in this index
+     * @throws VectorSearchException - if the index is empty or the search fails
+     */
+    public SearchResult search(float[] query, int topK) throws VectorSearchException {
+        return search(query, topK, true);
+    }
+
+    /**
+     * Search the index for the pages closest to the query.
+     *
+     * @param query      - the query vector
+     * @param topK       - the number of results to return
+     * @param compressed - whether to use the compressed vectors of the segments that have them
+     * @return - the search result, node ids are ordinals in this index
+     * @throws VectorSearchException - if the index is empty or the search fails
+     */
+    public SearchResult search(float[] query, int topK, boolean compressed) throws VectorSearchException {
+        return snapshot().search(query, topK, compressed);
+    }
+
+    /**
+     * Capture the pages indexed so far, so that several searches run against the same content
+     * while documents keep being added.
+     *
+     * @return - the snapshot of the index
+     */
+    public Snapshot snapshot() {
+        List<Segment> published = segments;
+        // pages are appended before their nodes, so every node below the limit resolves to a page
+        int limit = published.isEmpty() ? 0 : published.get(published.size() - 1).base() + published.get(published.size() - 1).size();
+        return new Snapshot(published, limit);
+    }
+
+    /**
+     * Get the page stored at the given ordinal.
+     *
+     * @param ordinal - the ordinal of the page
+     * @return - the indexed page
+     */
+    public IndexedPage getPage(int ordinal) {
+        return pages.get(ordinal);
+    }
+
+    /**
+     * @return - the number of pages in the index
+     */
+    public int size() {
+        return pages.size();
+    }
+
+    /**
+     * @return - the dimension of the vectors in the index, 0 while the index is empty
+     */
+    public int dimension() {
+        return dimension;
+    }
+
+    /**
+     * Get the vector stored at the given ordinal, from the heap or from the mapped file of its segment.
+     *
+     * @param ordinal - the ordinal of the page
+     * @return - a copy of the vector
+     * @throws VectorSearchException - if the segment cannot be read
+     */
+    public float[] vector(int ordinal) throws VectorSearchException {
+        for (Segment segment : segments) {
+            if (ordinal >= segment.base() && ordinal < segment.base() + segment.size()) {
+                try {
+                    VectorFloat<?> vector = segment.vector(ordinal - segment.base());
+                    float[] copy = new float[vector.length()];
+                    for (int i = 0; i < copy.length; i++) {
+                        copy[i] = vector.get(i);
+                    }
+                    return copy;
+                } catch (IOException e) {
+                    throw new VectorSearchException("Error reading a vector of the graph index: " + e.getMessage(), e);
+                }
+            }
+        }
+        throw new VectorSearchException("No vector at ordinal " + ordinal);
+    }
+
+    /**
+     * Get the ordinals of the pages of a document, in the order they were added.
+     *
+     * @param docId - the id of the document
+     * @return - the ordinals
+     */
+    public int[] ordinals(UUID docId) {
+        return filterIndex.ordinalsOf(docId);
+    }
+
+    /**
+     * Estimate the heap used by the index: the page texts, the vectors still on the heap
+     * and the compressed codes of the on-disk segments.
+     *
+     * @return - the estimated size in bytes
+     */
+    public long estimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    /**
+     * @return - the number of vectors served from on-disk segments
+     */
+    public int onDiskSize() {
+        return segments.stream().filter(OnDiskSegment.class::isInstance).mapToInt(Segment::size).sum();
+    }
+
+    /**
+     * @return - the number of vectors searched through their compressed codes
+     */
+    public int compressedSize() {
+        return segments.stream()
+                .filter(s -> s instanceof OnDiskSegment disk && disk.isCompressed())
+                .mapToInt(Segment::size)
+                .sum();
+    }
+
+    /**
+     * Write the index into a snapshot, without changing it. The graphs of the segments go to files
+     * of the snapshot directory, in the jvector on-disk format: on-disk segments are linked, or copied
+     * when they cannot be linked, and an on-heap segment with a graph is written out. Everything else
+     * goes to the output: the settings, the pages, the codebook and compressed codes, and the vectors
+     * of an on-heap segment still scanned exactly. The text of a page held by one of the documents is
+     * written as a reference to it.
+     *
+     * @param directory - the directory of the snapshot
+     * @param out       - the output
+     * @param documents - the documents of the session, by id
+     * @throws IOException - if the snapshot cannot be written
+     */
+    public synchronized void writeSnapshot(Path directory, DataOutputStream out, Map<UUID, XDoc> documents) throws IOException {
+        writeString(out, settings.getSimilarityFunction().name());
+        out.writeInt(settings.getExactScanThreshold());
+        out.writeInt(settings.getOnDiskThreshold());
+        out.writeInt(settings.isPqEnabled() ? 1 : 0);
+        out.writeInt(settings.getPqCompressionRatio());
+        out.writeInt(settings.getPqMinVectors());
+        out.writeInt(settings.getRerankDepth());
+        out.writeInt(dimension);
+
+        Map<UUID, Map<Integer, XPage>> documentPages = pagesByNumber(documents);
+        int count = pages.size();
+        out.writeInt(count);
+        for (int ordinal = 0; ordinal < count; ordinal++) {
+            IndexedPage page = pages.get(ordinal);
+            out.writeLong(page.getDocId().getMostSignificantBits());
+            out.writeLong(page.getDocId().getLeastSignificantBits());
+            out.writeInt(page.getPageNumber());
+            XPage held = documentPages.getOrDefault(page.getDocId(), Map.of()).get(page.getPageNumber());
+            boolean shared = held != null && Objects.equals(held.getText(), page.getText());
+            out.writeInt(shared ? 1 : 0);
+            if (!shared) {
+                writeString(out, page.getText());
+            }
+        }
+
+        out.writeInt(codebook != null ? 1 : 0);
+        if (codebook != null) {
+            codebook.write(out, OnDiskGraphIndex.CURRENT_VERSION);
+        }
+        List<Segment> published = segments;
+        out.writeInt(published.size());
+        for (Segment segment : published) {
+            out.writeInt(segment.base());
+            out.writeInt(segment.size());
+            Path file = directory.resolve("segment-" + segment.base() + ".jvx");
+            if (segment instanceof OnDiskSegment disk) {
+                out.writeInt(SNAPSHOT_GRAPH);
+                linkOrCopy(disk.path(), file);
+                out.writeInt(disk.isCompressed() ? 1 : 0);
+                if (disk.isCompressed()) {
+                    disk.compressed().write(out, OnDiskGraphIndex.CURRENT_VERSION);
+                }
+            } else if (segment instanceof OnHeapSegment heap && heap.hasGraph()) {
+                out.writeInt(SNAPSHOT_GRAPH);
+                heap.writeGraph(file);
+                out.writeInt(0);
+            } else {
+                out.writeInt(SNAPSHOT_VECTORS);
+                for (int node = 0; node < segment.size(); node++) {
+                    VectorFloat<?> vector = segment.vector(node);
+                    for (int i = 0; i < dimension; i++) {
+                        out.writeFloat(vector.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Restore an index written by {@link #writeSnapshot}. The graph files are memory-mapped where they are,
+     * so nothing is rebuilt and the graphs and vectors are paged in as searches reach them; only the vectors
+     * of an on-heap segment scanned exactly are read back onto the heap. The index owns the directory
+     * from then on, and deletes it when closed.
+     *
+     * @param directory - the directory of the graph files, owned by the restored index
+     * @param in        - the snapshot, positioned after what the caller wrote before the index
+     * @param documents - the restored documents of the session, by id
+     * @return - the index
+     * @throws IOException - if the snapshot cannot be read
+     */
+    public static SessionIndex readSnapshot(Path directory, RandomAccessReader in, Map<UUID, XDoc> documents) throws IOException {
+        var settings = new IndexSettings();
+        settings.setSimilarityFunction(VectorSimilarityFunction.valueOf(readString(in)));
+        settings.setExactScanThreshold(in.readInt());
+        settings.setOnDiskThreshold(in.readInt());
+        settings.setPqEnabled(in.readInt() == 1);
+        settings.setPqCompressionRatio(in.readInt());
+        settings.setPqMinVectors(in.readInt());
+        settings.setRerankDepth(in.readInt());
+        settings.setDirectory(directory.getParent());
+
+        var index = new SessionIndex(settings);
+        index.directory = directory;
+        index.dimension = in.readInt();
+
+        Map<UUID, Map<Integer, XPage>> documentPages = pagesByNumber(documents);
+        int count = in.readInt();
+        long[] id = new long[2];
+        for (int ordinal = 0; ordinal < count; ordinal++) {
+            in.readFully(id);
+            var docId = new UUID(id[0], id[1]);
+            int pageNumber = in.readInt();
+            String text = in.readInt() == 1 ? documentPages.get(docId).get(pageNumber).getText() : readString(in);
+            XDoc document = documents.get(docId);
+            index.pages.add(new IndexedPage(docId, pageNumber, text));
+            index.filterIndex.add(ordinal, docId, pageNumber, document == null ? null : document.getMetadata());
+            index.lexicalIndex.add(ordinal, text);
+            index.estimatedBytes.addAndGet(text == null ? 0 : (long) text.length() * Character.BYTES);
+        }
+
+        if (in.readInt() == 1) {
+            index.codebook = ProductQuantization.load(in);
+        }
+        int segmentCount = in.readInt();
+        List<Segment> restored = new ArrayList<>(segmentCount + 1);
+        for (int i = 0; i < segmentCount; i++) {
+            int base = in.readInt();
+            int size = in.readInt();
+            if (in.readInt() == SNAPSHOT_GRAPH) {
+                PQVectors compressed = in.readInt() == 1 ? PQVectors.load(in) : null;
+                restored.add(OnDiskSegment.open(base, directory.resolve("segment-" + base + ".jvx"),
+                        settings.getSimilarityFunction(), compressed, settings.getRerankDepth()));
+                index.estimatedBytes.addAndGet(compressed == null ? 0 : (long) index.codebook.getSubspaceCount() * size);
+            } else {
+                var heap = new OnHeapSegment(base, index.dimension, settings.getSimilarityFunction(), settings.getExactScanThreshold());
+                for (int node = 0; node < size; node++) {
+                    float[] vector = new float[index.dimension];
+                    in.readFully(vector);
+                    heap.add(vts.createFloatVector(vector));
+                }
+                restored.add(heap);
+                index.estimatedBytes.addAndGet((long) size * index.dimension * Float.BYTES);
+            }
+        }
+        if (!restored.isEmpty()) {
+            Segment last = restored.get(restored.size() - 1);
+            if (last instanceof OnHeapSegment heap) {
+                index.active = heap;
+            } else {
+                index.active = new OnHeapSegment(last.base() + last.size(), index.dimension,
+                        settings.getSimilarityFunction(), settings.getExactScanThreshold());
+                restored.add(index.active);
+            }
+        }
+        index.segments = List.copyOf(restored);
+        return index;
+    }
+
+    /**
+     * Release the segments of this index and delete its on-disk files.
+     */
+    @Override
+    public synchronized void close() {
+        segments.forEach(Segment::close);
+        segments = List.of();
+        if (directory != null) {
+            try {
+                Files.deleteIfExists(directory);
+            } catch (IOException e) {
+                logger.warning("error deleting the index directory " + directory + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void addVector(VectorFloat<?> vector, IndexedPage page) throws VectorSearchException {
+        if (active == null) {
+            dimension = vector.length();
+            active = new OnHeapSegment(0, dimension, settings.getSimilarityFunction(), settings.getExactScanThreshold());
+            segments = List.of(active);
+        } else if (vector.length() != dimension) {
+            throw new VectorSearchException(String.format("Vector dimension %d does not match index dimension %d", vector.length(), dimension));
+        }
+        // the page must be visible before the node, so that searches can resolve every node they reach
+        pages.add(page);
+        active.add(vector);
+    }
+
+    /**
+     * Write the on-heap segment to disk, publish the on-disk segment in its place
+     * and start a new on-heap segment after it.
+     *
+     * @throws VectorSearchException - if the segment cannot be written
+     */
+    private void writeActiveSegment() throws VectorSearchException {
+        try {
+            if (directory == null) {
+                Files.createDirectories(settings.getDirectory());
+                directory = Files.createTempDirectory(settings.getDirectory(), "session-");
+            }
+            OnDiskSegment written = active.writeTo(directory.resolve("segment-" + active.base() + ".jvx"),
+                    compress(active), settings.getRerankDepth());
+            var next = new OnHeapSegment(active.base() + active.size(), dimension, settings.getSimilarityFunction(),
+                    settings.getExactScanThreshold());
+
+            List<Segment> published = new ArrayList<>(segments.subList(0, segments.size() - 1));
+            published.add(written);
+            published.add(next);
+            segments = List.copyOf(published);
+
+            // the full vectors leave the heap, the compressed codes stay
+            long codeBytes = written.isCompressed() ? (long) codebook.getSubspaceCount() * active.size() : 0;
+            estimatedBytes.addAndGet(codeBytes - (long) active.size() * dimension * Float.BYTES);
+            active.close();
+            active = next;
+            // the vectors are now read from the mapped file, so the heap copies can go
+            heapPages.forEach(p -> p.setVector(null));
+            heapPages.clear();
+        } catch (IOException e) {
+            throw new VectorSearchException("Error writing the graph index to disk: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Compress the vectors of a segment with the codebook of the index,
+     * training the codebook first if the segment is the first one large enough.
+     *
+     * @param segment - the segment to compress
+     * @return - the compressed vectors, or null if compression is disabled or there is no codebook yet
+     */
+    private PQVectors compress(OnHeapSegment segment) {
+        if (!settings.isPqEnabled()) {
+            return null;
+        }
+        if (codebook == null) {
+            // k-means needs at least as many vectors as clusters
+            if (segment.size() < Math.max(settings.getPqMinVectors(), PQ_CLUSTERS)) {
+                return null;
+            }
+            int subspaces = Math.min(dimension, Math.max(1, dimension * Float.BYTES / Math.max(1, settings.getPqCompressionRatio())));
+            boolean center = settings.getSimilarityFunction() == VectorSimilarityFunction.EUCLIDEAN;
+            codebook = ProductQuantization.compute(segment.vectors(), subspaces, PQ_CLUSTERS, center);
+            logger.info(String.format("Trained a product quantization codebook with %d subspaces on %d vectors", subspaces, segment.size()));
+        }
+        return new PQVectors(codebook, codebook.encodeAll(segment.vectors(), ForkJoinPool.commonPool()));
+    }
+
+    /**
+     * A consistent view of a SessionIndex: the segments published and the number of pages
+     * indexed when the snapshot was taken. Pages added afterwards are not returned by its searches.
+     */
+    public final class Snapshot {
+
+        private final List<Segment> segments;
+        private final int limit;
+
+        private Snapshot(List<Segment> segments, int limit) {
+            this.segments = segments;
+            this.limit = limit;
+        }
+
+        /**
+         * @return - the number of pages in the snapshot
+         */
+        public int size() {
+            return limit;
+        }
+
+        /**
+         * Search the snapshot for the pages closest to the query,
+         * using the compressed vectors of the segments that have them.
+         *
+         * @param query - the query vector
+         * @param topK  - the number of results to return
+         * @return - the search result, node ids are ordinals in the index
+         * @throws VectorSearchException - if the snapshot is empty or the search fails
+         */
+        public SearchResult search(float[] query, int topK) throws VectorSearchException {
+            return search(query, topK, null, true);
+        }
+
+        /**
+         * Search the snapshot for the pages closest to the query.
+         *
+         * @param query      - the query vector
+         * @param topK       - the number of results to return
+         * @param compressed - whether to use the compressed vectors of the segments that have them
+         * @return - the search result, node ids are ordinals in the index
+         * @throws VectorSearchException - if the snapshot is empty or the search fails
+         */
+        public SearchResult search(float[] query, int topK, boolean compressed) throws VectorSearchException {
+            return search(query, topK, null, compressed);
+        }
+
+        /**
+         * Search the snapshot for the pages closest to the query among the pages accepted by the filter.
+         * The filter is compiled into a bitset of ordinals that the graph traversal checks,
+         * so the top K is made of accepted pages only.
+         *
+         * @param query      - the query vector
+         * @param topK       - the number of results to return
+         * @param filter     - the filter, or null to search every page
+         * @param compressed - whether to use the compressed vectors of the segments that have them
+         * @return - the search result, node ids are ordinals in the index
+         * @throws VectorSearchException - if the snapshot is empty, the filter is invalid or the search fails
+         */
+        public SearchResult search(float[] query, int topK, SearchFilter filter, boolean compressed) throws VectorSearchException {
+            if (limit == 0) {
+                throw new VectorSearchException("No documents to search!");
+            }
+            if (query.length != dimension) {
+                throw new VectorSearchException(String.format("Query dimension %d does not match index dimension %d", query.length, dimension));
+            }
+            BitSet accepted = filterIndex.compile(filter, limit);
+            if (accepted != null && accepted.isEmpty()) {
+                return new SearchResult(new SearchResult.NodeScore[0], 0, 0, Float.NEGATIVE_INFINITY);
+            }
+            var vQuery = vts.createFloatVector(query);
+            List<SearchResult.NodeScore> merged = new ArrayList<>();
+            int visited = 0;
+            try {
+                for (Segment segment : segments) {
+                    if (segment.size() == 0 || segment.base() >= limit) {
+                        continue;
+                    }
+                    int base = segment.base();
+                    int localLimit = limit - base;
+                    Bits acceptOrds;
+                    if (accepted != null) {
+                        // the compiled filter only holds ordinals below the limit
+                        acceptOrds = ordinal -> accepted.get(base + ordinal);
+                    } else {
+                        acceptOrds = localLimit >= segment.size() ? Bits.ALL : ordinal -> ordinal < localLimit;
+                    }
+                    SearchResult sr = segment.search(vQuery, topK, acceptOrds, compressed);
+                    visited += sr.getVisitedCount();
+                    for (SearchResult.NodeScore ns : sr.getNodes()) {
+                        merged.add(new SearchResult.NodeScore(base + ns.node, ns.score));
+                    }
+                }
+            } catch (IOException e) {
+                throw new VectorSearchException("Error searching the graph index: " + e.getMessage(), e);
+            }
+            merged.sort(Comparator.comparingDouble((SearchResult.NodeScore ns) -> ns.score).reversed());
+            var nodes = merged.subList(0, Math.min(Math.max(topK, 0), merged.size())).toArray(new SearchResult.NodeScore[0]);
+            float worstScore = nodes.length > 0 ? nodes[nodes.length - 1].score : Float.NEGATIVE_INFINITY;
+            return new SearchResult(nodes, visited, 0, worstScore);
+        }
+
+        /**
+         * Search the page texts of the snapshot for the query terms, ranked with BM25.
+         *
+         * @param query  - the query text
+         * @param topK   - the number of results to return
+         * @param filter - the filter, or null to search every page
+         * @return - the search result, node ids are ordinals in the index and scores are BM25 scores
+         * @throws VectorSearchException - if the snapshot is empty or the filter is invalid
+         */
+        public SearchResult searchLexical(String query, int topK, SearchFilter filter) throws VectorSearchException {
+            if (limit == 0) {
+                throw new VectorSearchException("No documents to search!");
+            }
+            return lexicalIndex.search(query, topK, limit, filterIndex.compile(filter, limit));
+        }
+    }
+
+    private static Map<UUID, Map<Integer, XPage>> pagesByNumber(Map<UUID, XDoc> documents) {
+        Map<UUID, Map<Integer, XPage>> pagesByNumber = new HashMap<>();
+        documents.forEach((id, document) -> {
+            Map<Integer, XPage> byNumber = new HashMap<>();
+            document.getPages().forEach(page -> byNumber.put(page.getPageNumber(), page));
+            pagesByNumber.put(id, byNumber);
+        });
+        return pagesByNumber;
+    }
+
+    /**
+     * Link a segment file into a snapshot, copying it when the snapshot is on another file system.
+     */
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, target);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(RandomAccessReader in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static IndexSettings onHeapSettings(VectorSimilarityFunction similarityFunction) {
+        var settings = new IndexSettings();
+        settings.setSimilarityFunction(similarityFunction);
+        return settings;
+    }
+}
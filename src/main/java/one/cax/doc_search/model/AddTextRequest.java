@@ -10,7 +10,7 @@ public class AddTextRequest {
     @Schema(description = "The title of the document")
     private String title;
 
-    @Schema(description = "The content of the document", example = "This is the content of the sample document.")
+    @Schema(description = "The content of the document, as JSON; pages may carry a precomputed pageVector of the session dimension", example = "This is the content of the sample document.")
     private String content;
 
     /**
@@ -0,0 +1,38 @@
+package one.cax.doc_search.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class BatchSearchRequest {
+
+    /**
+     * The query strings to be searched.
+     * They are embedded together and searched against the same index snapshot.
+     */
+    @Schema(description = "query strings to be searched", example = "[\"first question\", \"second question\"]")
+    private List<String> queries;
+
+    /**
+     * The filter applied to every query of the batch.
+     */
+    @Schema(description = "filter on documents, page ranges and metadata, applied to every query")
+    private SearchFilter filter;
+
+    /**
+     * How the queries are matched: by embedding (the default), by terms with BM25, or both fused.
+     */
+    @Schema(description = "how the queries are matched: VECTOR (default), LEXICAL or HYBRID")
+    private SearchMode mode;
+
+    /**
+     * Whether the searches run in parallel.
+     */
+    @Schema(description = "whether the searches run in parallel")
+    private boolean parallel;
+
+}
@@ -0,0 +1,170 @@
+package one.cax.doc_search.model;
+
+import lombok.Getter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Represents a file being extracted in the background.
+ * The pages are collected as they are extracted, so the progress of a job, and the pages
+ * extracted so far, can be read while the job is still running.
+ *
+ * Key components:
+ * - jobId: A unique identifier for the job
+ * - status: Where the job is, from QUEUED to COMPLETED or FAILED
+ * - totalPages: The number of pages of the file, known once the extraction starts
+ * - pages: The pages extracted so far, in page order
+ * - error: The reason a job failed
+ *
+ * The ExtractionJob class uses Lombok's @Getter annotation for automatic generation
+ * of getter methods for its fields.
+ */
+@Getter
+public class ExtractionJob {
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    /* The job id */
+    private final UUID jobId = UUID.randomUUID();
+
+    /* The name of the uploaded file */
+    private final String filename;
+
+    /* When the job was submitted, in nanoseconds */
+    private final long submittedNanos = System.nanoTime();
+
+    /* The status of the job */
+    private volatile Status status = Status.QUEUED;
+
+    /* The title of the document, known once the extraction completes */
+    private volatile String docTitle;
+
+    /* The number of pages of the file, -1 until the extraction starts */
+    private volatile int totalPages = -1;
+
+    /* The reason the job failed */
+    private volatile String error;
+
+    /* When the job completed or failed, in nanoseconds */
+    private volatile long finishedNanos;
+
+    /* The pages extracted so far, guarded by itself */
+    @Getter(lombok.AccessLevel.NONE)
+    private final List<XPage> pages = new ArrayList<>();
+
+    /**
+     * Create a new job, queued.
+     *
+     * @param filename - the name of the uploaded file
+     */
+    public ExtractionJob(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * @return - the number of pages extracted so far
+     */
+    public int getPagesDone() {
+        synchronized (pages) {
+            return pages.size();
+        }
+    }
+
+    /**
+     * Get a range of the pages extracted so far.
+     *
+     * @param offset - the index of the first page
+     * @param limit  - the maximum number of pages
+     * @return - the pages, empty when the offset is past the pages extracted so far
+     */
+    public List<XPage> getPages(int offset, int limit) {
+        synchronized (pages) {
+            int from = Math.min(Math.max(0, offset), pages.size());
+            int to = (int) Math.min(pages.size(), (long) from + Math.max(0, limit));
+            return new ArrayList<>(pages.subList(from, to));
+        }
+    }
+
+    /**
+     * @return - true if the job completed or failed
+     */
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.FAILED;
+    }
+
+    public void start(int totalPages) {
+        this.totalPages = totalPages;
+    }
+
+    public void running() {
+        this.status = Status.RUNNING;
+    }
+
+    public void addPage(XPage page) {
+        synchronized (pages) {
+            pages.add(page);
+        }
+    }
+
+    public void complete(String docTitle) {
+        this.docTitle = docTitle;
+        this.finishedNanos = System.nanoTime();
+        this.status = Status.COMPLETED;
+    }
+
+    public void fail(String error) {
+        this.error = error;
+        this.finishedNanos = System.nanoTime();
+        this.status = Status.FAILED;
+    }
+
+    /**
+     * Converts the progress of the job to a JSONObject, without its pages.
+     *
+     * @return JSONObject
+     */
+    public JSONObject toJSON() {
+        var json = new JSONObject();
+        json.put("jobId", jobId.toString());
+        json.put("status", status.name());
+        json.put("filename", filename);
+        json.put("pagesDone", getPagesDone());
+        json.put("totalPages", totalPages);
+        if (docTitle != null) {
+            json.put(NameUtils.DOC_TITLE, docTitle);
+        }
+        if (error != null) {
+            json.put("error", error);
+        }
+        return json;
+    }
+
+    /**
+     * Converts a range of the pages extracted so far to a JSONObject.
+     *
+     * @param offset - the index of the first page
+     * @param limit  - the maximum number of pages
+     * @return JSONObject with the pages, and the offset of the next range while pages remain
+     */
+    public JSONObject pagesToJSON(int offset, int limit) {
+        List<XPage> range = getPages(offset, limit);
+        var array = new JSONArray();
+        range.forEach(page -> array.put(page.toJSON()));
+        var json = new JSONObject();
+        json.put("jobId", jobId.toString());
+        json.put("status", status.name());
+        json.put("offset", Math.max(0, offset));
+        json.put(NameUtils.DOC_PAGES, array);
+        int next = Math.max(0, offset) + range.size();
+        if (!isFinished() || next < getPagesDone()) {
+            json.put("nextOffset", next);
+        }
+        return json;
+    }
+}
@@ -8,6 +8,9 @@ public class NameUtils {
     public static final String DOC_METADATA = "docMetadata";
     public static final String DOC_PAGES = "docPages";
 
+    public static final String META_TITLE = "title";
+    public static final String META_FILENAME = "filename";
+
     public static final String PAGE_NUMBER = "pageNumber";
     public static final String PAGE_TEXT = "pageText";
     public static final String PAGE_VECTOR = "pageVector";
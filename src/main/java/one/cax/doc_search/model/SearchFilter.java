@@ -0,0 +1,66 @@
+package one.cax.doc_search.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Restricts a search to a subset of the pages of a session.
+ *
+ * Every constraint that is set must hold for a page to be returned; within a constraint,
+ * any of the listed values is enough. Constraints left null do not restrict the search.
+ *
+ * Key components:
+ * - docIds: The documents the pages must belong to
+ * - pageRanges: The page number ranges the pages must fall in
+ * - metadata: The metadata the documents of the pages must have
+ */
+@Getter
+@Setter
+public class SearchFilter {
+
+    /**
+     * The ids of the documents to search.
+     */
+    @Schema(description = "ids of the documents to search")
+    private List<UUID> docIds;
+
+    /**
+     * The page number ranges to search, a page must fall in at least one of them.
+     */
+    @Schema(description = "page number ranges to search")
+    private List<PageRange> pageRanges;
+
+    /**
+     * The metadata the documents must have. A null value only requires the key to be present.
+     * Documents carry their title and filename, plus the docMetadata they were added with.
+     */
+    @Schema(description = "metadata values the documents must have, a null value only requires the key; "
+            + "documents carry their title and filename, plus the docMetadata they were added with", example = "{\"filename\": \"contract.pdf\"}")
+    private Map<String, String> metadata;
+
+    /**
+     * An inclusive range of page numbers; a null bound leaves that side open.
+     */
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    public static class PageRange {
+
+        @Schema(description = "first page of the range, inclusive")
+        private Integer from;
+
+        @Schema(description = "last page of the range, inclusive")
+        private Integer to;
+
+        public PageRange(Integer from, Integer to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
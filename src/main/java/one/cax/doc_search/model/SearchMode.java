@@ -0,0 +1,14 @@
+package one.cax.doc_search.model;
+
+/**
+ * How the pages of a session are matched against a query.
+ *
+ * - VECTOR: by similarity between the query embedding and the page embeddings
+ * - LEXICAL: by BM25 score of the query terms in the page texts
+ * - HYBRID: by fusing the vector and the lexical rankings
+ */
+public enum SearchMode {
+    VECTOR,
+    LEXICAL,
+    HYBRID
+}
@@ -20,5 +20,16 @@ public class SearchRequest {
      */
     @Schema(description = "number of top results to return")
     private int topK;
+    /**
+     * The filter restricting the search to some documents, page ranges or metadata values.
+     * When absent, every page of the session is searched.
+     */
+    @Schema(description = "filter on documents, page ranges and metadata")
+    private SearchFilter filter;
+    /**
+     * How the query is matched: by embedding (the default), by terms with BM25, or both fused.
+     */
+    @Schema(description = "how the query is matched: VECTOR (default), LEXICAL or HYBRID")
+    private SearchMode mode;
 
 }
@@ -1,10 +1,12 @@
 package one.cax.doc_search.model;
 
+import lombok.AccessLevel;
 import lombok.Getter;
+import one.cax.doc_search.index.SessionIndex;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a session that contains multiple documents.
@@ -13,7 +15,13 @@ import java.util.UUID;
  *
  * Key components:
  * - sessionId: A unique identifier for the session
- * - documents: A list of XDoc objects representing the documents in the session
+ * - documents: The XDoc objects representing the documents in the session, as an immutable point-in-time list
+ * - index: The long-lived vector index built over the pages of the documents
+ * - lastAccessNanos: When the session was last used, to expire idle sessions and evict the least recently used
+ * - users: The number of operations using the session, a session in use is never evicted
+ *
+ * Documents are added copy-on-write: each addition publishes a new immutable list through a volatile field,
+ * so readers iterate a consistent view without locking while uploads keep adding documents.
  *
  * The Session class uses Lombok's @Getter annotation for automatic generation
  * of getter methods for its fields.
@@ -24,9 +32,25 @@ public class Session {
     /* The session id */
     private UUID sessionId;
 
-    /* The documents in the session */
-    private List<XDoc> documents = new ArrayList<>();
+    /* The documents in the session, replaced as a whole when a document is added */
+    private volatile List<XDoc> documents = List.of();
+
+    /* The vector index of the session, created on first use */
+    private SessionIndex index;
+
+    /* When the session was last used, in nanoseconds */
+    private volatile long lastAccessNanos = System.nanoTime();
 
+    /* Whether the session was evicted; an evicted session must be looked up again */
+    private volatile boolean evicted;
+
+    /* The number of operations using the session */
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger users = new AtomicInteger();
+
+    /* Whether the index is closed when the last operation using the session ends, guarded by the session lock */
+    @Getter(AccessLevel.NONE)
+    private boolean closeOnRelease;
 
     /**
      * Sets the session ID.
@@ -37,7 +61,104 @@ public class Session {
         this.sessionId = sessionId;
     }
 
-    public void addDocument(XDoc document) {
-        this.documents.add(document);
+    /**
+     * Sets the vector index of the session.
+     *
+     * @param index The index built over the documents in the session.
+     */
+    public void setIndex(SessionIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Adds a document to the session. Readers holding the previous list keep seeing it unchanged.
+     *
+     * @param document The document to add.
+     */
+    public synchronized void addDocument(XDoc document) {
+        List<XDoc> current = documents;
+        XDoc[] next = current.toArray(new XDoc[current.size() + 1]);
+        next[current.size()] = document;
+        this.documents = List.of(next);
+    }
+
+    /**
+     * Mark the session as used now.
+     */
+    public void touch() {
+        this.lastAccessNanos = System.nanoTime();
+    }
+
+    /**
+     * Mark the session as evicted. Callers hold the session lock and checked that it is not in use.
+     */
+    public void evict() {
+        this.evicted = true;
+    }
+
+    /**
+     * Register an operation using the session, so that it is not evicted until the operation ends.
+     */
+    public void retain() {
+        users.incrementAndGet();
+        touch();
+    }
+
+    /**
+     * Register the end of an operation using the session.
+     * The last operation using an evicted session closes its index.
+     */
+    public void release() {
+        if (users.decrementAndGet() == 0) {
+            synchronized (this) {
+                if (closeOnRelease && !isInUse()) {
+                    closeOnRelease = false;
+                    index.close();
+                }
+            }
+        }
+        touch();
+    }
+
+    /**
+     * Close the index of the session, now or when the last operation using it ends,
+     * so that a search or an ingest in progress never reads a closed index. Callers hold the session lock.
+     */
+    public void closeIndex() {
+        if (index == null) {
+            return;
+        }
+        if (isInUse()) {
+            closeOnRelease = true;
+        } else {
+            index.close();
+        }
+    }
+
+    /**
+     * @return - true if an operation is using the session
+     */
+    public boolean isInUse() {
+        return users.get() > 0;
+    }
+
+    /**
+     * Estimate the heap used by the session: the page texts and the vectors held on the heap.
+     *
+     * @return - the estimated size in bytes
+     */
+    public long estimatedBytes() {
+        SessionIndex sessionIndex = index;
+        if (sessionIndex != null) {
+            return sessionIndex.estimatedBytes();
+        }
+        long bytes = 0;
+        for (XDoc document : documents) {
+            for (XPage page : document.getPages()) {
+                bytes += page.getText() == null ? 0 : (long) page.getText().length() * Character.BYTES;
+                bytes += page.getVector() == null ? 0 : (long) page.getVector().length * Float.BYTES;
+            }
+        }
+        return bytes;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,108 @@
+package one.cax.doc_search.model;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Locale;
+
+/**
+ * The binary encodings accepted for uploaded page vectors.
+ *
+ * - FLOAT32: little-endian IEEE 754 single precision, 4 bytes per value
+ * - FLOAT16: little-endian IEEE 754 half precision, 2 bytes per value, widened to float32 on decoding
+ *
+ * Vectors are stored back to back, one per page, without any header.
+ * Values are decoded in bulk from a byte buffer straight into float arrays, without boxing.
+ */
+public enum VectorEncoding {
+    FLOAT32(Float.BYTES),
+    FLOAT16(Short.BYTES);
+
+    private final int bytesPerValue;
+
+    VectorEncoding(int bytesPerValue) {
+        this.bytesPerValue = bytesPerValue;
+    }
+
+    /**
+     * @return the number of bytes of one vector component
+     */
+    public int bytesPerValue() {
+        return bytesPerValue;
+    }
+
+    /**
+     * Get an encoding by name, ignoring case.
+     *
+     * @param name - the name of the encoding, float32 or float16
+     * @return the encoding
+     * @throws IllegalArgumentException if the encoding is not supported
+     */
+    public static VectorEncoding fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IllegalArgumentException("Unsupported vector encoding: " + name);
+        }
+    }
+
+    /**
+     * Decode vectors from a stream, one vector at a time, so only one encoded vector is buffered.
+     *
+     * @param in        - the encoded vectors
+     * @param count     - the number of vectors to read
+     * @param dimension - the dimension of every vector
+     * @return the decoded vectors
+     * @throws IOException if the stream ends before all vectors are read
+     */
+    public float[][] decode(InputStream in, int count, int dimension) throws IOException {
+        if (dimension <= 0) {
+            throw new IllegalArgumentException("Vector dimension must be positive");
+        }
+        var data = new DataInputStream(in);
+        byte[] encoded = new byte[dimension * bytesPerValue];
+        ByteBuffer buffer = ByteBuffer.wrap(encoded).order(ByteOrder.LITTLE_ENDIAN);
+        float[][] vectors = new float[count][];
+        for (int i = 0; i < count; i++) {
+            data.readFully(encoded);
+            float[] vector = new float[dimension];
+            if (this == FLOAT32) {
+                buffer.asFloatBuffer().get(vector);
+            } else {
+                ShortBuffer halves = buffer.asShortBuffer();
+                for (int d = 0; d < dimension; d++) {
+                    vector[d] = halfToFloat(halves.get(d));
+                }
+            }
+            vectors[i] = vector;
+        }
+        return vectors;
+    }
+
+    /**
+     * Widen an IEEE 754 half precision value to a float.
+     *
+     * @param half - the bits of the half precision value
+     * @return the float value
+     */
+    static float halfToFloat(short half) {
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+        if (exponent == 0x1f) {
+            // infinity or NaN
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            // zero or subnormal, mantissa * 2^-24
+            float value = mantissa * 0x1p-24f;
+            return sign == 0 ? value : -value;
+        }
+        // rebias the exponent from 15 to 127
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+}
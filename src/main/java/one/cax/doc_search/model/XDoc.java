@@ -26,7 +26,7 @@ import java.util.concurrent.atomic.AtomicReference;
  * - id: A unique identifier for the document
  * - docTitle: The title of the document
  * - filename: The name of the file from which the document was extracted
- * - metadata: Additional information about the document
+ * - metadata: Additional information about the document, including its title and filename, used to filter searches
  * - pages: The content of the document, divided into pages
  */
 @Setter
@@ -70,10 +70,33 @@ public class XDoc {
         var json = new JSONObject(document);
         var xDoc = new XDoc();
         xDoc.setDocTitle(json.getString(NameUtils.DOC_TITLE));
+        xDoc.setFilename(json.optString(NameUtils.DOC_FILENAME, null));
+        JSONObject metadata = json.optJSONObject(NameUtils.DOC_METADATA);
+        if (metadata != null) {
+            xDoc.setMetadata(new HashMap<>(metadata.toMap()));
+        }
         xDoc.setPages(XPage.fromJSONArray(json.getJSONArray(NameUtils.DOC_PAGES)));
+        xDoc.addDefaultMetadata();
         return xDoc;
     }
 
+    /**
+     * Add the title and the filename of the document to its metadata, so that searches can be filtered on them.
+     * Values already in the metadata are kept. Called before the pages are indexed, which copies the metadata.
+     */
+    public void addDefaultMetadata() {
+        var values = this.metadata != null ? this.metadata : new HashMap<String, Object>();
+        if (this.docTitle != null) {
+            values.putIfAbsent(NameUtils.META_TITLE, this.docTitle);
+        }
+        if (this.filename != null) {
+            values.putIfAbsent(NameUtils.META_FILENAME, this.filename);
+        }
+        if (!values.isEmpty()) {
+            this.metadata = values;
+        }
+    }
+
     /**
      * @return
      */
@@ -0,0 +1,105 @@
+package one.cax.doc_search.service;
+
+/**
+ * AdaptiveConcurrencyLimiter bounds the number of calls in flight to a rate-limited service,
+ * adjusting the bound with additive increase / multiplicative decrease (AIMD).
+ *
+ * Every successful call raises the limit by 1 / limit, so the limit grows by one after a full
+ * round of successful calls. A throttled call (rate limited or timed out) multiplies the limit by
+ * the backoff ratio. Calls that started before the last decrease do not decrease it again, so a
+ * burst of throttled responses to the same round cuts the limit only once.
+ *
+ * Key components:
+ * - limit: The current number of calls allowed in flight, between the minimum and the maximum
+ * - inFlight: The number of calls currently in flight
+ * - epoch: Incremented on every decrease, to recognise calls started before it
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+
+    private double limit;
+    private int inFlight;
+    private long epoch;
+    private long throttledCount;
+
+    /**
+     * Create a new AdaptiveConcurrencyLimiter.
+     *
+     * @param initialLimit - the limit to start with
+     * @param minLimit     - the lowest limit, at least 1
+     * @param maxLimit     - the highest limit
+     * @param backoffRatio - the factor applied to the limit when a call is throttled, between 0 and 1
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.backoffRatio = backoffRatio;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * Wait until a call may start.
+     *
+     * @return - the permit of the call, to pass back to {@link #release(long, boolean)}
+     * @throws InterruptedException - if the thread is interrupted while waiting
+     */
+    public synchronized long acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+        return epoch;
+    }
+
+    /**
+     * Report the end of a call.
+     *
+     * @param permit    - the permit returned by acquire
+     * @param throttled - true if the call was rate limited or timed out
+     */
+    public synchronized void release(long permit, boolean throttled) {
+        inFlight--;
+        if (throttled) {
+            throttledCount++;
+            if (permit == epoch) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                epoch++;
+            }
+        } else {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Report the end of a call that failed for a reason unrelated to load, leaving the limit unchanged.
+     */
+    public synchronized void releaseIgnored() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * @return - the number of calls allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return - the number of calls in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return - the number of throttled calls reported since the limiter was created
+     */
+    public synchronized long getThrottledCount() {
+        return throttledCount;
+    }
+}
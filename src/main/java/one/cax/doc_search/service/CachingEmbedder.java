@@ -0,0 +1,203 @@
+package one.cax.doc_search.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import one.cax.doc_search.cache.MappedVectorStore;
+import one.cax.doc_search.cache.WeightedLruCache;
+import one.cax.doc_search.exception.EmbedderException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * CachingEmbedder is an Embedder decorator that caches vectors by content.
+ *
+ * Vectors are keyed by the SHA-256 of the model id and the normalized text, so the same page
+ * uploaded twice, or boilerplate shared across documents, is only embedded once.
+ *
+ * Key components:
+ * - memoryTier: A bounded in-memory LRU cache, weighted by vector size in bytes
+ * - diskTier: An optional memory-mapped store that survives restarts
+ * - metrics: Hits (per tier), misses and evictions, registered with the MeterRegistry
+ *
+ * Only cache misses reach the delegate Embedder; a batch is reduced to its distinct missing texts.
+ */
+public class CachingEmbedder implements Embedder, Closeable {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final Embedder delegate;
+    private final WeightedLruCache<String, float[]> memoryTier;
+    private final MappedVectorStore diskTier;
+
+    private final Counter memoryHits;
+    private final Counter diskHits;
+    private final Counter misses;
+
+    /**
+     * Create a new CachingEmbedder.
+     *
+     * @param delegate       - the embedder used on cache misses
+     * @param maxMemoryBytes - the maximum size of the vectors kept in memory
+     * @param diskTier       - the on-disk tier, or null to only cache in memory
+     * @param meterRegistry  - the meter registry to register metrics with
+     */
+    public CachingEmbedder(Embedder delegate, long maxMemoryBytes, MappedVectorStore diskTier, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.memoryTier = new WeightedLruCache<>(maxMemoryBytes, v -> (long) v.length * Float.BYTES);
+        this.diskTier = diskTier;
+
+        this.memoryHits = Counter.builder("embeddingCacheHits")
+                .description("Number of embeddings served from the cache")
+                .tag("tier", "memory")
+                .register(meterRegistry);
+        this.diskHits = Counter.builder("embeddingCacheHits")
+                .description("Number of embeddings served from the cache")
+                .tag("tier", "disk")
+                .register(meterRegistry);
+        this.misses = Counter.builder("embeddingCacheMisses")
+                .description("Number of embeddings not found in the cache")
+                .register(meterRegistry);
+        FunctionCounter.builder("embeddingCacheEvictions", memoryTier, WeightedLruCache::evictionCount)
+                .description("Number of embeddings evicted from the in-memory cache")
+                .register(meterRegistry);
+        Gauge.builder("embeddingCacheBytes", memoryTier, WeightedLruCache::weight)
+                .description("Size of the embeddings in the in-memory cache")
+                .register(meterRegistry);
+        if (diskTier != null) {
+            Gauge.builder("embeddingCacheDiskBytes", diskTier, MappedVectorStore::bytesUsed)
+                    .description("Size of the on-disk embedding cache")
+                    .register(meterRegistry);
+        }
+    }
+
+    @Override
+    public float[] embed(String text) throws EmbedderException {
+        if (text == null || text.isEmpty()) {
+            return delegate.embed(text);
+        }
+        String key = keyFor(text);
+        float[] vector = lookup(key);
+        if (vector == null) {
+            misses.increment();
+            vector = delegate.embed(text);
+            store(key, vector);
+        }
+        return vector.clone();
+    }
+
+    @Override
+    public float[][] embedBatch(List<String> texts) throws EmbedderException {
+        if (texts == null || texts.isEmpty() || texts.stream().anyMatch(t -> t == null || t.isEmpty())) {
+            return delegate.embedBatch(texts);
+        }
+        float[][] vectors = new float[texts.size()][];
+        // distinct missing keys, with the text to embed and the positions waiting for it
+        Map<String, List<Integer>> missing = new LinkedHashMap<>();
+        Map<String, String> missingTexts = new LinkedHashMap<>();
+        for (int i = 0; i < texts.size(); i++) {
+            String text = texts.get(i);
+            String key = keyFor(text);
+            float[] vector = missing.containsKey(key) ? null : lookup(key);
+            if (vector != null) {
+                vectors[i] = vector.clone();
+            } else {
+                missing.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+                missingTexts.putIfAbsent(key, text);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            misses.increment(missing.size());
+            List<String> keys = new ArrayList<>(missing.keySet());
+            float[][] embedded = delegate.embedBatch(new ArrayList<>(missingTexts.values()));
+            if (embedded == null || embedded.length != keys.size()) {
+                throw new EmbedderException(String.format("Expected %d embeddings but got %d", keys.size(), embedded == null ? 0 : embedded.length));
+            }
+            for (int k = 0; k < keys.size(); k++) {
+                store(keys.get(k), embedded[k]);
+                for (int position : missing.get(keys.get(k))) {
+                    vectors[position] = embedded[k].clone();
+                }
+            }
+        }
+        return vectors;
+    }
+
+    @Override
+    public String getModelId() {
+        return delegate.getModelId();
+    }
+
+    /**
+     * Flush and close the on-disk tier, then close the delegate if it holds resources.
+     *
+     * @throws IOException - if the on-disk tier or the delegate cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (diskTier != null) {
+            diskTier.close();
+        }
+        if (delegate instanceof Closeable closeable) {
+            closeable.close();
+        }
+    }
+
+    private float[] lookup(String key) {
+        float[] vector = memoryTier.get(key);
+        if (vector != null) {
+            memoryHits.increment();
+            return vector;
+        }
+        if (diskTier != null) {
+            vector = diskTier.get(key);
+            if (vector != null) {
+                diskHits.increment();
+                memoryTier.put(key, vector);
+                return vector;
+            }
+        }
+        return null;
+    }
+
+    private void store(String key, float[] vector) {
+        float[] copy = vector.clone();
+        memoryTier.put(key, copy);
+        if (diskTier != null) {
+            diskTier.put(key, copy);
+        }
+    }
+
+    /**
+     * Compute the cache key of a text: the SHA-256 of the model id and the text with
+     * leading, trailing and repeated whitespace removed.
+     *
+     * @param text - the text
+     * @return - the hex encoded key
+     */
+    private String keyFor(String text) {
+        String normalized = WHITESPACE.matcher(text.strip()).replaceAll(" ");
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String modelId = getModelId();
+            digest.update((modelId == null ? "" : modelId).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(normalized.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package one.cax.doc_search.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import one.cax.doc_search.exception.EmbedderException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * CoalescingEmbedder is an Embedder decorator that merges concurrent single-text requests into batches.
+ *
+ * Every call to {@link #embed(String)} queues its text and waits on a future. A dispatcher thread
+ * collects the queued texts until the batch is full or the oldest text has waited the maximum wait time,
+ * then sends them to the delegate in one embedBatch call and completes every future with its own vector.
+ * Batches are sent from a small pool, so a slow batch does not hold back the next one.
+ *
+ * Key components:
+ * - pending: The texts waiting to be sent, with their futures
+ * - dispatcher: The thread that cuts the pending texts into batches
+ * - senders: The pool that sends the batches to the delegate
+ * - metrics: The size of the coalesced batches and the number of failed batches
+ *
+ * Calls to {@link #embedBatch(List)} are already batched and go straight to the delegate.
+ */
+public class CoalescingEmbedder implements Embedder, Closeable {
+
+    private static final Logger logger = Logger.getLogger(CoalescingEmbedder.class.getName());
+
+    private final Embedder delegate;
+    private final long maxWaitNanos;
+    private final int maxBatchSize;
+
+    private final BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private final ExecutorService senders;
+
+    private final DistributionSummary batchSizes;
+    private final Counter failedBatches;
+
+    private volatile boolean closed;
+
+    /**
+     * Create a new CoalescingEmbedder and start its dispatcher.
+     *
+     * @param delegate      - the embedder the batches are sent to
+     * @param maxWaitMillis - the maximum time a text waits for other texts before its batch is sent
+     * @param maxBatchSize  - the maximum number of texts in a batch
+     * @param maxInFlight   - the maximum number of batches sent at the same time
+     * @param meterRegistry - the meter registry to register metrics with
+     */
+    public CoalescingEmbedder(Embedder delegate, long maxWaitMillis, int maxBatchSize, int maxInFlight, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.senders = Executors.newFixedThreadPool(Math.max(1, maxInFlight), senderThreadFactory());
+
+        this.batchSizes = DistributionSummary.builder("coalescedEmbedBatchSize")
+                .description("Number of texts merged into one embedding request")
+                .register(meterRegistry);
+        this.failedBatches = Counter.builder("coalescedEmbedBatchFailures")
+                .description("Number of merged embedding requests that failed")
+                .register(meterRegistry);
+
+        this.dispatcher = new Thread(this::dispatch, "embed-coalescer");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    @Override
+    public float[] embed(String text) throws EmbedderException {
+        if (text == null || text.isEmpty() || closed) {
+            return delegate.embed(text);
+        }
+        var request = new Request(text, new CompletableFuture<>());
+        pending.add(request);
+        if (closed && pending.remove(request)) {
+            // closed while queuing, the dispatcher may already be gone
+            return delegate.embed(text);
+        }
+        try {
+            return request.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmbedderException("Interrupted while waiting for the embedding", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EmbedderException ee) {
+                throw ee;
+            }
+            throw new EmbedderException("Error embedding the text: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    @Override
+    public float[][] embedBatch(List<String> texts) throws EmbedderException {
+        return delegate.embedBatch(texts);
+    }
+
+    @Override
+    public String getModelId() {
+        return delegate.getModelId();
+    }
+
+    /**
+     * Stop the dispatcher and the senders. Texts still waiting fail with an EmbedderException.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+        senders.shutdown();
+        List<Request> abandoned = new ArrayList<>();
+        pending.drainTo(abandoned);
+        abandoned.forEach(r -> r.result.completeExceptionally(new EmbedderException("Embedder is closed")));
+    }
+
+    /**
+     * Cut the pending texts into batches until the embedder is closed.
+     */
+    private void dispatch() {
+        while (!closed) {
+            List<Request> batch = new ArrayList<>();
+            try {
+                batch.add(pending.take());
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    // take what is already queued, then wait for more until the deadline
+                    if (pending.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                try {
+                    senders.execute(() -> send(batch));
+                } catch (RejectedExecutionException e) {
+                    logger.warning("embedding requests dropped after close: " + batch.size());
+                    batch.forEach(r -> r.result.completeExceptionally(new EmbedderException("Embedder is closed")));
+                }
+            } catch (InterruptedException e) {
+                // closed while collecting a batch, its texts were already taken from the pending queue
+                batch.forEach(r -> r.result.completeExceptionally(new EmbedderException("Embedder is closed")));
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send a batch to the delegate and complete the futures of its texts.
+     *
+     * @param batch - the batch
+     */
+    private void send(List<Request> batch) {
+        batchSizes.record(batch.size());
+        try {
+            float[][] vectors = delegate.embedBatch(batch.stream().map(Request::text).toList());
+            if (vectors == null || vectors.length != batch.size()) {
+                throw new EmbedderException(String.format("Expected %d embeddings but got %d", batch.size(), vectors == null ? 0 : vectors.length));
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(vectors[i]);
+            }
+        } catch (Exception e) {
+            failedBatches.increment();
+            batch.forEach(r -> r.result.completeExceptionally(e));
+        }
+    }
+
+    private static ThreadFactory senderThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "embed-coalescer-send-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A text waiting to be embedded, and the future its caller waits on.
+     */
+    private record Request(String text, CompletableFuture<float[]> result) {
+    }
+}
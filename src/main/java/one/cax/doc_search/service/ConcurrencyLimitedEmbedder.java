@@ -0,0 +1,118 @@
+package one.cax.doc_search.service;
+
+import com.azure.core.exception.HttpResponseException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import one.cax.doc_search.exception.EmbedderException;
+
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * ConcurrencyLimitedEmbedder is an Embedder decorator that lets an AdaptiveConcurrencyLimiter
+ * decide how many embedding calls are in flight at once.
+ *
+ * Calls answered with HTTP 429 (too many requests) or that time out are reported as throttled and
+ * cut the limit; successful calls raise it. Runtime errors of the Azure OpenAI client are turned
+ * into EmbedderExceptions, so callers handle them like any other embedding failure.
+ *
+ * Metrics: the calls in flight, the current limit and the number of throttled calls.
+ */
+public class ConcurrencyLimitedEmbedder implements Embedder {
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final Embedder delegate;
+    private final AdaptiveConcurrencyLimiter limiter;
+
+    /**
+     * Create a new ConcurrencyLimitedEmbedder.
+     *
+     * @param delegate      - the embedder that calls the service
+     * @param limiter       - the limiter of the calls in flight
+     * @param meterRegistry - the meter registry to register metrics with
+     */
+    public ConcurrencyLimitedEmbedder(Embedder delegate, AdaptiveConcurrencyLimiter limiter, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+        Gauge.builder("embeddingInFlight", limiter, AdaptiveConcurrencyLimiter::getInFlight)
+                .description("Number of embedding requests in flight")
+                .register(meterRegistry);
+        Gauge.builder("embeddingConcurrencyLimit", limiter, AdaptiveConcurrencyLimiter::getLimit)
+                .description("Number of embedding requests allowed in flight")
+                .register(meterRegistry);
+        FunctionCounter.builder("embeddingThrottled", limiter, AdaptiveConcurrencyLimiter::getThrottledCount)
+                .description("Number of embedding requests rate limited or timed out")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public float[] embed(String text) throws EmbedderException {
+        return call(() -> delegate.embed(text));
+    }
+
+    @Override
+    public float[][] embedBatch(List<String> texts) throws EmbedderException {
+        return call(() -> delegate.embedBatch(texts));
+    }
+
+    @Override
+    public String getModelId() {
+        return delegate.getModelId();
+    }
+
+    private <T> T call(EmbedderCall<T> call) throws EmbedderException {
+        long permit;
+        try {
+            permit = limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmbedderException("Interrupted while waiting to send the embedding request", e);
+        }
+        try {
+            T result = call.run();
+            limiter.release(permit, false);
+            return result;
+        } catch (EmbedderException | RuntimeException e) {
+            if (isThrottled(e)) {
+                limiter.release(permit, true);
+            } else {
+                limiter.releaseIgnored();
+            }
+            if (e instanceof EmbedderException ee) {
+                throw ee;
+            }
+            throw new EmbedderException("Error calling the embedding service: " + e.getMessage(), e);
+        } catch (Error e) {
+            limiter.releaseIgnored();
+            throw e;
+        }
+    }
+
+    /**
+     * @param e - the failure of a call
+     * @return - true if the failure, or one of its causes, is a rate limit response or a timeout
+     */
+    static boolean isThrottled(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpResponseException hre && hre.getResponse() != null
+                    && hre.getResponse().getStatusCode() == TOO_MANY_REQUESTS) {
+                return true;
+            }
+            if (cause instanceof TimeoutException || cause instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    @FunctionalInterface
+    private interface EmbedderCall<T> {
+        T run() throws EmbedderException;
+    }
+}
@@ -24,4 +24,12 @@ public interface Embedder {
      * @throws EmbedderException
      */
     float[][] embedBatch(List<String> texts) throws EmbedderException;
+
+    /**
+     * Returns the id of the model used to create the embeddings.
+     * Vectors created by different models are not comparable.
+     *
+     * @return The model id.
+     */
+    String getModelId();
 }
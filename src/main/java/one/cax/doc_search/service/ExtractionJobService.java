@@ -0,0 +1,267 @@
+package one.cax.doc_search.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import one.cax.doc_search.exception.FileServiceException;
+import one.cax.doc_search.model.ExtractionJob;
+import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * ExtractionJobService extracts uploaded files in the background.
+ *
+ * A job is queued on a bounded executor and its id returned at once, so a large file does not hold
+ * a request thread for the whole extraction. The pages are collected on the job as they are extracted,
+ * so clients can poll the progress and read the pages extracted so far.
+ *
+ * Key components:
+ * - executor: A fixed number of workers and a bounded queue; jobs are rejected when the queue is full
+ * - jobs: The jobs by id; finished jobs are forgotten after the retention time
+ * - metrics: Queue depth, running jobs, time spent queued, job latency per outcome and rejected jobs
+ *
+ * The uploaded file is owned by the job and deleted once the job finishes. When admission control is
+ * enabled, a job waits for the extraction budget before it starts, instead of being rejected.
+ */
+@Service
+public class ExtractionJobService {
+
+    private static final Logger logger = Logger.getLogger(ExtractionJobService.class.getName());
+
+    private final FileService fileService;
+    private final ThreadPoolExecutor executor;
+    /* How long a finished job, and its pages, are kept */
+    private final long retentionNanos;
+
+    private final Map<UUID, ExtractionJob> jobs = new ConcurrentHashMap<>();
+    /* The jobs not finished yet, with their uploaded files */
+    private final Map<UUID, Pending> pending = new ConcurrentHashMap<>();
+
+    private final Timer queueWait;
+    private final Timer completedLatency;
+    private final Timer failedLatency;
+    private final Counter rejected;
+
+    /* The admission control of uploads, null when uploads are not limited */
+    private UploadAdmission uploadAdmission;
+
+    /**
+     * Create a new ExtractionJobService.
+     *
+     * @param fileService      - extracts the text of the files
+     * @param threads          - the number of jobs extracted at the same time
+     * @param queueSize        - the maximum number of jobs waiting for a worker
+     * @param retentionSeconds - how long a finished job is kept
+     * @param meterRegistry    - the meter registry to register metrics with
+     */
+    @Autowired
+    public ExtractionJobService(FileService fileService,
+                                @Value("${doc_ext_search.extraction.jobs.threads}") int threads,
+                                @Value("${doc_ext_search.extraction.jobs.queue_size}") int queueSize,
+                                @Value("${doc_ext_search.extraction.jobs.retention_seconds}") long retentionSeconds,
+                                MeterRegistry meterRegistry) {
+        this.fileService = fileService;
+        this.retentionNanos = TimeUnit.SECONDS.toNanos(retentionSeconds);
+        int workers = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), jobThreadFactory());
+
+        Gauge.builder("extractionJobQueueDepth", executor, e -> e.getQueue().size())
+                .description("Number of extraction jobs waiting for a worker")
+                .register(meterRegistry);
+        Gauge.builder("extractionJobsRunning", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Number of extraction jobs being extracted")
+                .register(meterRegistry);
+        this.queueWait = Timer.builder("extractionJobQueueWait")
+                .description("Time an extraction job waits for a worker")
+                .register(meterRegistry);
+        this.completedLatency = Timer.builder("extractionJobLatency")
+                .description("Time from the submission of an extraction job to its end")
+                .tag("outcome", "completed")
+                .register(meterRegistry);
+        this.failedLatency = Timer.builder("extractionJobLatency")
+                .description("Time from the submission of an extraction job to its end")
+                .tag("outcome", "failed")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("extractionJobsRejected")
+                .description("Number of extraction jobs rejected because the queue was full")
+                .register(meterRegistry);
+    }
+
+    @Autowired(required = false)
+    public void setUploadAdmission(UploadAdmission uploadAdmission) {
+        this.uploadAdmission = uploadAdmission;
+    }
+
+    /**
+     * Queue the extraction of a file.
+     *
+     * @param file     - the uploaded file, deleted once the job finishes
+     * @param filename - the name of the uploaded file
+     * @return - the queued job
+     * @throws RejectedExecutionException - if the queue is full; the file is deleted
+     */
+    public ExtractionJob submit(Path file, String filename) {
+        expire();
+        var job = new ExtractionJob(filename);
+        jobs.put(job.getJobId(), job);
+        try {
+            pending.put(job.getJobId(), new Pending(executor.submit(() -> run(job, file)), file));
+            if (job.isFinished()) {
+                // finished before it was registered
+                pending.remove(job.getJobId());
+            }
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getJobId());
+            rejected.increment();
+            delete(file);
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * Get a job
+     *
+     * @param jobId - the job id
+     * @return - the job, or null if it does not exist or was forgotten
+     */
+    public ExtractionJob getJob(UUID jobId) {
+        expire();
+        return jobs.get(jobId);
+    }
+
+    /**
+     * Cancel a job and forget it. A running extraction stops at its next page.
+     *
+     * @param jobId - the job id
+     * @return - true if the job existed
+     */
+    public boolean cancel(UUID jobId) {
+        ExtractionJob job = jobs.remove(jobId);
+        Pending task = pending.remove(jobId);
+        if (task != null && task.future().cancel(true) && job != null && job.getStatus() == ExtractionJob.Status.QUEUED) {
+            // a queued job never runs, so its file is not deleted by the worker
+            delete(task.file());
+        }
+        return job != null;
+    }
+
+    /**
+     * @return - the number of jobs waiting for a worker
+     */
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void run(ExtractionJob job, Path file) {
+        var document = new XDoc();
+        document.setFilename(job.getFilename());
+        try (UploadAdmission.Permit permit = admit(file)) {
+            queueWait.record(System.nanoTime() - job.getSubmittedNanos(), TimeUnit.NANOSECONDS);
+            job.running();
+            fileService.extractTextFrom(file.toString(), document, permit.counting(new PageConsumer() {
+                @Override
+                public void begin(int totalPages) {
+                    job.start(totalPages);
+                }
+
+                @Override
+                public void accept(XPage page) throws InterruptedException {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException("Extraction job cancelled");
+                    }
+                    job.addPage(page);
+                }
+            }));
+            job.complete(document.getDocTitle());
+            completedLatency.record(job.getFinishedNanos() - job.getSubmittedNanos(), TimeUnit.NANOSECONDS);
+        } catch (FileServiceException e) {
+            logger.severe(e.getMessage());
+            job.fail("Could not extract the file: " + job.getFilename() + "!");
+            failedLatency.record(job.getFinishedNanos() - job.getSubmittedNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            job.fail("Extraction job cancelled");
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.severe(e.getMessage());
+            job.fail("An error occurred while processing the file: " + job.getFilename() + "!");
+            failedLatency.record(job.getFinishedNanos() - job.getSubmittedNanos(), TimeUnit.NANOSECONDS);
+        } finally {
+            pending.remove(job.getJobId());
+            delete(file);
+        }
+    }
+
+    /**
+     * Wait for the extraction budget, when admission control is enabled.
+     */
+    private UploadAdmission.Permit admit(Path file) throws InterruptedException {
+        if (uploadAdmission == null) {
+            return UploadAdmission.Permit.NONE;
+        }
+        long bytes;
+        try {
+            bytes = Files.size(file);
+        } catch (IOException e) {
+            bytes = 0;
+        }
+        return uploadAdmission.await(bytes);
+    }
+
+    /**
+     * Forget the jobs that finished longer ago than the retention time.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        jobs.values().removeIf(job -> job.isFinished() && now - job.getFinishedNanos() > retentionNanos);
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warning("Could not delete the uploaded file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A job not finished yet: the task running it and the uploaded file.
+     */
+    private record Pending(Future<?> future, Path file) {
+    }
+
+    private static ThreadFactory jobThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "extraction-job-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -3,23 +3,39 @@ package one.cax.doc_search.service;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import one.cax.doc_search.exception.DocumentExtractionException;
 import one.cax.doc_search.model.NameUtils;
 import one.cax.doc_search.model.XDoc;
 import one.cax.doc_search.model.XPage;
 import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.RandomAccessReadBufferedFile;
+import org.apache.pdfbox.io.RandomAccessStreamCache;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.text.PDFTextStripper;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 /**
  * ExtractorEngine is responsible for extracting text from PDF documents.
@@ -31,6 +47,8 @@ import java.util.List;
  * Key functionalities:
  * - Extracting text from PDF files specified by file path
  * - Extracting text from PDF files provided as byte arrays
+ * - Reading PDF files on disk on demand, with the decoded streams spilling to a scratch file
+ * - Extracting the pages of large documents in parallel on a bounded worker pool
  * - Measuring extraction time and success rate using Micrometer metrics
  * 
  * The extracted text is returned as either a JSONObject or an XDoc object,
@@ -39,16 +57,62 @@ import java.util.List;
 @Service
 public class ExtractorEngine {
 
+    /* Ignores the pages extracted, for callers that do not count them */
+    private static final IntConsumer NO_COUNT = count -> {
+    };
+
     private final Timer extractTextFromTimer;
     private final Counter successfulExtractsCounter;
 
+    /* The number of workers used to extract the pages of a large document */
+    private final int parallelism;
+    /* The minimum number of pages for a document to be extracted in parallel */
+    private final int parallelThreshold;
+    /* The worker pool for parallel extraction, null when extraction is single-threaded */
+    private final ExecutorService extractionPool;
+    /* The heap used by PDFBox for the decoded streams of a document before it spills to a scratch file, negative to stay in memory */
+    private final long scratchMemoryBytes;
+
 
     /**
-     * Create a new ExtractorEngine.
+     * Create a new ExtractorEngine that extracts every document on the calling thread.
      *
      * @param meterRegistry The meter registry to register metrics with.
      */
     public ExtractorEngine(MeterRegistry meterRegistry) {
+        this(meterRegistry, 1, Integer.MAX_VALUE, -1);
+    }
+
+    /**
+     * Create a new ExtractorEngine.
+     *
+     * @param meterRegistry     The meter registry to register metrics with.
+     * @param parallelism       The number of workers used to extract the pages of a large document.
+     * @param parallelThreshold The minimum number of pages for a document to be extracted in parallel.
+     */
+    public ExtractorEngine(MeterRegistry meterRegistry, int parallelism, int parallelThreshold) {
+        this(meterRegistry, parallelism, parallelThreshold, -1);
+    }
+
+    /**
+     * Create a new ExtractorEngine.
+     *
+     * @param meterRegistry      The meter registry to register metrics with.
+     * @param parallelism        The number of workers used to extract the pages of a large document.
+     * @param parallelThreshold  The minimum number of pages for a document to be extracted in parallel.
+     * @param scratchMemoryBytes The heap used for the decoded streams of a document before they spill to a scratch file,
+     *                           negative to keep them in memory.
+     */
+    @Autowired
+    public ExtractorEngine(MeterRegistry meterRegistry,
+                           @Value("${doc_ext_search.extraction.parallelism}") int parallelism,
+                           @Value("${doc_ext_search.extraction.parallel_threshold}") int parallelThreshold,
+                           @Value("${doc_ext_search.extraction.scratch_memory_bytes}") long scratchMemoryBytes) {
+        this.parallelism = Math.max(1, parallelism);
+        this.parallelThreshold = parallelThreshold;
+        this.scratchMemoryBytes = scratchMemoryBytes;
+        this.extractionPool = this.parallelism > 1 ? Executors.newFixedThreadPool(this.parallelism, extractionThreadFactory()) : null;
+
         this.extractTextFromTimer = Timer
                 .builder("ExtractText")
                 .description("Time taken to extract text from PDF")
@@ -87,35 +151,78 @@ public class ExtractorEngine {
      * @throws DocumentExtractionException If an error occurs while processing the document.
      */
     public XDoc extractTextFromPDF(byte[] fileInBytes) throws DocumentExtractionException {
+        return extractTextFromPDF(fileInBytes, NO_COUNT);
+    }
+
+    /**
+     * Extract text from a PDF file, counting the pages as they are extracted.
+     *
+     * @param fileInBytes    The PDF byte array to extract text from.
+     * @param pagesExtracted Receives the number of pages extracted since it was last called.
+     * @return a XDoc object containing the extracted text.
+     * @throws DocumentExtractionException If an error occurs while processing the document.
+     */
+    public XDoc extractTextFromPDF(byte[] fileInBytes, IntConsumer pagesExtracted) throws DocumentExtractionException {
 
         //check for null 
         if (fileInBytes == null) {
             throw new DocumentExtractionException("File is null");
         }
+        return extract(() -> Loader.loadPDF(fileInBytes, "", null, null, streamCache()), pagesExtracted);
+    }
+
+    /**
+     * Extract text from a PDF file on disk.
+     * The file is read through a file-backed RandomAccessRead and the decoded streams spill to a scratch
+     * file, so the heap used does not grow with the size of the file.
+     *
+     * @param file The PDF file to extract text from.
+     * @return a XDoc object containing the extracted text.
+     * @throws DocumentExtractionException If an error occurs while processing the document.
+     */
+    public XDoc extractTextFromPDF(Path file) throws DocumentExtractionException {
+        return extractTextFromPDF(file, NO_COUNT);
+    }
+
+    /**
+     * Extract text from a PDF file on disk, counting the pages as they are extracted.
+     *
+     * @param file           The PDF file to extract text from.
+     * @param pagesExtracted Receives the number of pages extracted since it was last called.
+     * @return a XDoc object containing the extracted text.
+     * @throws DocumentExtractionException If an error occurs while processing the document.
+     */
+    public XDoc extractTextFromPDF(Path file, IntConsumer pagesExtracted) throws DocumentExtractionException {
+        if (file == null) {
+            throw new DocumentExtractionException("File is null");
+        }
+        return extract(() -> load(file), pagesExtracted);
+    }
+
+    /**
+     * Extract the text of a document, in parallel when it is large enough.
+     *
+     * @param source         The source to load the document from.
+     * @param pagesExtracted Receives the number of pages extracted, from the workers when extracting in parallel.
+     * @return a XDoc object containing the extracted text.
+     * @throws DocumentExtractionException If an error occurs while processing the document.
+     */
+    private XDoc extract(DocumentSource source, IntConsumer pagesExtracted) throws DocumentExtractionException {
         Timer.Sample sample = Timer.start();
         try {
 
             XDoc xDoc = new XDoc();
-            try (PDDocument pdDocument = Loader.loadPDF(fileInBytes)) {
+            try (PDDocument pdDocument = source.load()) {
                 xDoc.setDocTitle(getTitle(pdDocument));
                 xDoc.setFilename(NameUtils.DEFAULT_FILENAME);
+                xDoc.addDefaultMetadata();
 
-
-                List<XPage> pages = new ArrayList<>();
-
-                PDFTextStripper pdfStripper = new PDFTextStripper();
-                for (int i = 1; i <= pdDocument.getNumberOfPages(); i++) {
-                    pdfStripper.setStartPage(i);
-                    pdfStripper.setEndPage(i);
-                    String pageText = pdfStripper.getText(pdDocument);
-                    var xPage = new XPage();
-                    xPage.setPageNumber(i);
-                    xPage.setText(pageText);
-                    pages.add(xPage);
-
+                int nPages = pdDocument.getNumberOfPages();
+                if (extractionPool != null && nPages >= parallelThreshold) {
+                    xDoc.setPages(extractPagesInParallel(source, nPages, pagesExtracted));
+                } else {
+                    xDoc.setPages(extractPages(pdDocument, 1, nPages, pagesExtracted));
                 }
-
-                xDoc.setPages(pages);
                 successfulExtractsCounter.increment();
                 return xDoc;
             } catch (IOException e) {
@@ -127,6 +234,203 @@ public class ExtractorEngine {
     }
 
 
+    /**
+     * Extract text from a PDF file, handing every page to the consumer as soon as it is extracted.
+     * The title, the filename unless the caller set it, and the metadata derived from them are set on the
+     * document before the first page is handed over; the pages themselves are not collected on the document.
+     * Pages are extracted one by one in page order, so a consumer that embeds and indexes them overlaps its
+     * work with the extraction of the next pages.
+     *
+     * @param fileInBytes The PDF byte array to extract text from.
+     * @param document    The document to set the title and filename on.
+     * @param consumer    The consumer receiving the pages.
+     * @throws DocumentExtractionException If an error occurs while processing the document.
+     * @throws InterruptedException        If the consumer is interrupted.
+     */
+    public void extractTextFromPDF(byte[] fileInBytes, XDoc document, PageConsumer consumer) throws DocumentExtractionException, InterruptedException {
+        if (fileInBytes == null) {
+            throw new DocumentExtractionException("File is null");
+        }
+        extract(() -> Loader.loadPDF(fileInBytes, "", null, null, streamCache()), document, consumer);
+    }
+
+    /**
+     * Extract text from a PDF file on disk, handing every page to the consumer as soon as it is extracted.
+     * The file is read through a file-backed RandomAccessRead, see {@link #extractTextFromPDF(Path)}.
+     *
+     * @param file     The PDF file to extract text from.
+     * @param document The document to set the title and filename on.
+     * @param consumer The consumer receiving the pages.
+     * @throws DocumentExtractionException If an error occurs while processing the document.
+     * @throws InterruptedException        If the consumer is interrupted.
+     */
+    public void extractTextFromPDF(Path file, XDoc document, PageConsumer consumer) throws DocumentExtractionException, InterruptedException {
+        if (file == null) {
+            throw new DocumentExtractionException("File is null");
+        }
+        extract(() -> load(file), document, consumer);
+    }
+
+    /**
+     * Extract the text of a document page by page, handing every page to the consumer.
+     */
+    private void extract(DocumentSource source, XDoc document, PageConsumer consumer) throws DocumentExtractionException, InterruptedException {
+        Timer.Sample sample = Timer.start();
+        try (PDDocument pdDocument = source.load()) {
+            document.setDocTitle(getTitle(pdDocument));
+            if (document.getFilename() == null) {
+                document.setFilename(NameUtils.DEFAULT_FILENAME);
+            }
+            document.addDefaultMetadata();
+
+            PDFTextStripper pdfStripper = new PDFTextStripper();
+            int nPages = pdDocument.getNumberOfPages();
+            consumer.begin(nPages);
+            for (int i = 1; i <= nPages; i++) {
+                pdfStripper.setStartPage(i);
+                pdfStripper.setEndPage(i);
+                var xPage = new XPage();
+                xPage.setPageNumber(i);
+                xPage.setText(pdfStripper.getText(pdDocument));
+                consumer.accept(xPage);
+            }
+            successfulExtractsCounter.increment();
+        } catch (IOException e) {
+            throw new DocumentExtractionException("Error extracting text from PDF", e);
+        } finally {
+            sample.stop(extractTextFromTimer);
+        }
+    }
+
+    /**
+     * Extract the text of a range of pages, one XPage per page.
+     *
+     * @param pdDocument     The PDF document to extract text from.
+     * @param startPage      The first page to extract, 1-based.
+     * @param endPage        The last page to extract, inclusive.
+     * @param pagesExtracted Receives one for every page extracted.
+     * @return The extracted pages, in page order.
+     * @throws IOException If an error occurs while reading the document.
+     */
+    private List<XPage> extractPages(PDDocument pdDocument, int startPage, int endPage, IntConsumer pagesExtracted) throws IOException {
+        List<XPage> pages = new ArrayList<>();
+        PDFTextStripper pdfStripper = new PDFTextStripper();
+        for (int i = startPage; i <= endPage; i++) {
+            pdfStripper.setStartPage(i);
+            pdfStripper.setEndPage(i);
+            String pageText = pdfStripper.getText(pdDocument);
+            var xPage = new XPage();
+            xPage.setPageNumber(i);
+            xPage.setText(pageText);
+            pages.add(xPage);
+            pagesExtracted.accept(1);
+        }
+        return pages;
+    }
+
+    /**
+     * Extract the text of all pages using the worker pool.
+     * The pages are split into one contiguous range per worker. PDDocument and PDFTextStripper are not
+     * thread-safe, so every worker loads its own copy of the document from the source.
+     *
+     * @param source The source to load the document from.
+     * @param nPages         The number of pages in the document.
+     * @param pagesExtracted Receives one for every page extracted, from the worker that extracted it.
+     * @return The extracted pages, in page order.
+     * @throws IOException                 If an error occurs while reading the document.
+     * @throws DocumentExtractionException If a worker fails or is interrupted.
+     */
+    private List<XPage> extractPagesInParallel(DocumentSource source, int nPages, IntConsumer pagesExtracted) throws IOException, DocumentExtractionException {
+        int workers = Math.min(parallelism, nPages);
+        int rangeSize = (nPages + workers - 1) / workers;
+        List<Future<List<XPage>>> ranges = new ArrayList<>();
+        for (int start = 1; start <= nPages; start += rangeSize) {
+            int startPage = start;
+            int endPage = Math.min(nPages, start + rangeSize - 1);
+            ranges.add(extractionPool.submit(() -> {
+                try (PDDocument workerDocument = source.load()) {
+                    return extractPages(workerDocument, startPage, endPage, pagesExtracted);
+                }
+            }));
+        }
+
+        List<XPage> pages = new ArrayList<>(nPages);
+        try {
+            for (Future<List<XPage>> range : ranges) {
+                pages.addAll(range.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentExtractionException("Interrupted while extracting text from PDF", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new DocumentExtractionException("Error extracting text from PDF", e.getCause());
+        } finally {
+            ranges.forEach(range -> range.cancel(true));
+        }
+        return pages;
+    }
+
+    /**
+     * Stop the worker pool used for parallel extraction.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (extractionPool != null) {
+            extractionPool.shutdownNow();
+        }
+    }
+
+    private static ThreadFactory extractionThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "pdf-extract-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Load a PDF file through a file-backed RandomAccessRead, which reads the file on demand
+     * instead of buffering it on the heap. The document closes the file when it is closed.
+     *
+     * @param file The PDF file.
+     * @return The loaded document.
+     * @throws IOException If the file cannot be read.
+     */
+    private PDDocument load(Path file) throws IOException {
+        RandomAccessRead read = new RandomAccessReadBufferedFile(file.toFile());
+        try {
+            return Loader.loadPDF(read, streamCache());
+        } catch (IOException e) {
+            read.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The cache PDFBox keeps the decoded streams of a document in: a bounded amount of heap
+     * spilling to a scratch file in the temporary directory, or the heap only.
+     *
+     * @return The stream cache factory.
+     */
+    private RandomAccessStreamCache.StreamCacheCreateFunction streamCache() {
+        if (scratchMemoryBytes < 0) {
+            return IOUtils.createMemoryOnlyStreamCache();
+        }
+        return MemoryUsageSetting.setupMixed(scratchMemoryBytes).streamCache;
+    }
+
+    /**
+     * Loads a PDDocument. Used to give every extraction worker its own copy of the document.
+     */
+    @FunctionalInterface
+    private interface DocumentSource {
+        PDDocument load() throws IOException;
+    }
+
     /**
      * Extract text from a PDF file. The extracted text is returned as a JSON object.
      * The JSON object contains the following fields:
@@ -142,26 +446,27 @@ public class ExtractorEngine {
 
         File f = new File(inputFile);
         String fileName = f.getName();
-        PDDocument pdDocument = Loader.loadPDF(f);
-        doc.put("doc_title", getTitle(pdDocument));
-        doc.put("filename", fileName);
+        try (PDDocument pdDocument = load(f.toPath())) {
+            doc.put("doc_title", getTitle(pdDocument));
+            doc.put("filename", fileName);
 
-        PDFTextStripper pdfStripper = new PDFTextStripper();
-        int nPages = pdDocument.getNumberOfPages();
-        doc.put("total_pages", String.valueOf(nPages));
-        JSONArray pages = new JSONArray();
+            PDFTextStripper pdfStripper = new PDFTextStripper();
+            int nPages = pdDocument.getNumberOfPages();
+            doc.put("total_pages", String.valueOf(nPages));
+            JSONArray pages = new JSONArray();
 
 
-        for (int i = 1; i <= nPages; i++) {
-            pdfStripper.setStartPage(i);
-            pdfStripper.setEndPage(i);
-            String pageText = pdfStripper.getText(pdDocument);
-            JSONObject page = new JSONObject();
-            page.put("page_number", String.valueOf(i));
-            page.put("page_text", pageText);
-            pages.put(page);
+            for (int i = 1; i <= nPages; i++) {
+                pdfStripper.setStartPage(i);
+                pdfStripper.setEndPage(i);
+                String pageText = pdfStripper.getText(pdDocument);
+                JSONObject page = new JSONObject();
+                page.put("page_number", String.valueOf(i));
+                page.put("page_text", pageText);
+                pages.put(page);
+            }
+            doc.put("pages", pages);
         }
-        doc.put("pages", pages);
 
         return doc;
     }
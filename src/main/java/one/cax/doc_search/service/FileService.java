@@ -1,15 +1,25 @@
 package one.cax.doc_search.service;
 
+import one.cax.doc_search.cache.ExtractionCache;
+import one.cax.doc_search.exception.DocumentExtractionException;
 import one.cax.doc_search.exception.FileServiceException;
 import one.cax.doc_search.model.NameUtils;
 import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.function.IntConsumer;
 
 
 /**
@@ -22,6 +32,9 @@ import java.nio.file.Paths;
  * Key functionalities:
  * - Extracting text from files specified by file path
  * - Extracting text from files provided as byte arrays
+ * - Counting the pages of a file as they are extracted
+ * - Streaming the pages of a file to a consumer as they are extracted
+ * - Serving files already extracted from a cache keyed by the SHA-256 of their content
  * - Handling different file types (currently supporting PDF)
  * 
  * @author Carlos Queiroz
@@ -31,28 +44,121 @@ import java.nio.file.Paths;
 @Service
 public class FileService {
 
+    /* The size of the buffer used to hash a file */
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
     private final ExtractorEngine extractorEngine;
 
+    /* The documents already extracted, by content hash, null when every file is extracted */
+    private ExtractionCache extractionCache;
+
     @Autowired
     public FileService(ExtractorEngine extractorEngine) {
         this.extractorEngine = extractorEngine;
     }
 
+    @Autowired(required = false)
+    public void setExtractionCache(ExtractionCache extractionCache) {
+        this.extractionCache = extractionCache;
+    }
+
     /**
-     * Extract text from a file
+     * Extract text from a file.
+     * The file is read from disk on demand instead of being loaded into memory first.
      *
      * @param filePath - path to the file
      * @return text
      */
     public XDoc extractTextFrom(String filePath) throws FileServiceException {
-        Path path = Paths.get(filePath);
-        byte[] asBytes = null;
+        return extractTextFrom(filePath, count -> {
+        });
+    }
+
+    /**
+     * Extract text from a file, counting the pages as they are extracted.
+     * The pages of a file found in the cache are counted at once.
+     *
+     * @param filePath       - path to the file
+     * @param pagesExtracted - receives the number of pages extracted since it was last called
+     * @return text
+     */
+    public XDoc extractTextFrom(String filePath, IntConsumer pagesExtracted) throws FileServiceException {
+        Path path = readable(filePath);
+        String key = extractionCache == null ? null : hash(path);
+        XDoc cached = key == null ? null : extractionCache.get(key);
+        if (cached != null) {
+            pagesExtracted.accept(cached.getTotalPages());
+            return cached;
+        }
         try {
-            asBytes = Files.readAllBytes(path);
-        } catch (IOException e) {
-            throw new FileServiceException("Error reading to memory: ", e);
+            XDoc document = extractorEngine.extractTextFromPDF(path, pagesExtracted);
+            if (key != null) {
+                extractionCache.put(key, document);
+            }
+            return document;
+        } catch (Exception e) {
+            throw new FileServiceException("Error extracting text from file type: " + NameUtils.APPLICATION_PDF, e);
+        }
+    }
+
+    /**
+     * Extract text from a file, handing every page to the consumer as soon as it is extracted.
+     * The title, the filename unless the caller set it, and the metadata derived from them are set on the
+     * document; its pages are not collected.
+     * A file found in the cache is handed over from the cache, without being parsed.
+     *
+     * @param filePath - path to the file
+     * @param document - the document to set the title and filename on
+     * @param consumer - the consumer receiving the pages
+     * @throws InterruptedException - if the consumer is interrupted
+     */
+    public void extractTextFrom(String filePath, XDoc document, PageConsumer consumer) throws FileServiceException, InterruptedException {
+        Path path = readable(filePath);
+        String key = extractionCache == null ? null : hash(path);
+        XDoc cached = key == null ? null : extractionCache.get(key);
+        if (cached != null) {
+            document.setDocTitle(cached.getDocTitle());
+            if (document.getFilename() == null) {
+                // the cache is keyed by content, the name is the one of this upload
+                document.setFilename(cached.getFilename());
+            }
+            document.addDefaultMetadata();
+            consumer.begin(cached.getTotalPages());
+            for (XPage page : cached.getPages()) {
+                consumer.accept(page);
+            }
+            return;
+        }
+        try {
+            if (key == null) {
+                extractorEngine.extractTextFromPDF(path, document, consumer);
+                return;
+            }
+            // the consumer may change the pages it gets, so the cache keeps its own copies
+            List<XPage> extracted = new ArrayList<>();
+            extractorEngine.extractTextFromPDF(path, document, new PageConsumer() {
+                @Override
+                public void begin(int totalPages) {
+                    consumer.begin(totalPages);
+                }
+
+                @Override
+                public void accept(XPage page) throws InterruptedException {
+                    var copy = new XPage();
+                    copy.setPageNumber(page.getPageNumber());
+                    copy.setText(page.getText());
+                    extracted.add(copy);
+                    consumer.accept(page);
+                }
+            });
+            var copy = new XDoc();
+            copy.setDocTitle(document.getDocTitle());
+            copy.setFilename(document.getFilename());
+            copy.setPages(extracted);
+            extractionCache.put(key, copy);
+        } catch (DocumentExtractionException e) {
+            throw new FileServiceException("Error extracting text from file type: " + NameUtils.APPLICATION_PDF, e);
         }
-        return extractTextFrom(asBytes, NameUtils.APPLICATION_PDF);
     }
 
     /**
@@ -64,12 +170,72 @@ public class FileService {
      * 
      */
     public XDoc extractTextFrom(byte[] fileInBytes, String fileType) throws FileServiceException {
+        return extractTextFrom(fileInBytes, fileType, count -> {
+        });
+    }
 
+    /**
+     * Extract text from a file in bytes, counting the pages as they are extracted.
+     * The pages of a file found in the cache are counted at once.
+     *
+     * @param fileInBytes    - file in bytes
+     * @param fileType       - file type
+     * @param pagesExtracted - receives the number of pages extracted since it was last called
+     * @return XDoc object
+     */
+    public XDoc extractTextFrom(byte[] fileInBytes, String fileType, IntConsumer pagesExtracted) throws FileServiceException {
+        String key = extractionCache == null || fileInBytes == null ? null : HexFormat.of().formatHex(sha256().digest(fileInBytes));
+        XDoc cached = key == null ? null : extractionCache.get(key);
+        if (cached != null) {
+            pagesExtracted.accept(cached.getTotalPages());
+            return cached;
+        }
         try {
-            return extractorEngine.extractTextFromPDF(fileInBytes);
+            XDoc document = extractorEngine.extractTextFromPDF(fileInBytes, pagesExtracted);
+            if (key != null) {
+                extractionCache.put(key, document);
+            }
+            return document;
         } catch (Exception e) {
             throw new FileServiceException("Error extracting text from file type: " + fileType, e);
         }
     }
 
+    private static Path readable(String filePath) throws FileServiceException {
+        Path path = Paths.get(filePath);
+        if (!Files.isReadable(path)) {
+            throw new FileServiceException("Error reading the file: " + filePath);
+        }
+        return path;
+    }
+
+    /**
+     * Compute the SHA-256 of a file, reading it in chunks so that it is never held in memory.
+     *
+     * @param path - the file
+     * @return - the hex encoded hash
+     * @throws FileServiceException - if the file cannot be read
+     */
+    private static String hash(Path path) throws FileServiceException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new FileServiceException("Error reading the file: " + path, e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
 }
\ No newline at end of file
@@ -46,6 +46,14 @@ public class OpenAIEmbedderService implements Embedder {
     }
 
 
+    /**
+     * @return - the id of the OpenAI model used to create the embeddings
+     */
+    @Override
+    public String getModelId() {
+        return model;
+    }
+
     /**
      * Embed a text using OpenAI API
      *
@@ -86,16 +94,18 @@ public class OpenAIEmbedderService implements Embedder {
 
         EmbeddingsOptions embeddingsOptions = new EmbeddingsOptions(texts);
         Embeddings embeddings = openAIClient.getEmbeddings(model, embeddingsOptions);
-        var responseSize = embeddings.getData().size();
-        float[][] vectors = new float[responseSize][];
-        int index = 0;
+        if (embeddings.getData().size() != texts.size()) {
+            throw new EmbedderException(String.format("Expected %d embeddings but got %d", texts.size(), embeddings.getData().size()));
+        }
+        // the items are placed by prompt index, so every vector lines up with the text it was created from
+        float[][] vectors = new float[texts.size()][];
         for (EmbeddingItem item : embeddings.getData()) {
             var embedding = item.getEmbedding();
             float[] vectorArray = new float[embedding.size()];
             for (int i = 0; i < embedding.size(); i++) {
                 vectorArray[i] = embedding.get(i);
             }
-            vectors[index++] = vectorArray;
+            vectors[item.getPromptIndex()] = vectorArray;
         }
         return vectors;
     }
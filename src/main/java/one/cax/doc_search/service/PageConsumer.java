@@ -0,0 +1,25 @@
+package one.cax.doc_search.service;
+
+import one.cax.doc_search.model.XPage;
+
+/**
+ * PageConsumer receives the pages of a document one by one, as soon as they are extracted.
+ */
+@FunctionalInterface
+public interface PageConsumer {
+    /**
+     * Receives the next page of the document. Pages are received in page order.
+     *
+     * @param page The extracted page.
+     * @throws InterruptedException If the consumer is interrupted while waiting to accept the page.
+     */
+    void accept(XPage page) throws InterruptedException;
+
+    /**
+     * Receives the number of pages of the document, once it is known and before the first page.
+     *
+     * @param totalPages The number of pages of the document.
+     */
+    default void begin(int totalPages) {
+    }
+}
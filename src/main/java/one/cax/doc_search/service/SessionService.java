@@ -1,48 +1,283 @@
 package one.cax.doc_search.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.annotation.PreDestroy;
+import one.cax.doc_search.cache.SessionLog;
+import one.cax.doc_search.cache.SessionSnapshotStore;
+import one.cax.doc_search.cache.SessionSpillStore;
+import one.cax.doc_search.exception.SessionServiceException;
+import one.cax.doc_search.exception.VectorSearchException;
 import one.cax.doc_search.model.Session;
+import one.cax.doc_search.model.XDoc;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 /**
  * SessionService is responsible for managing user sessions.
- * 
+ *
  * This service provides methods to create, retrieve, and manage sessions
  * for users interacting with the document search system. It uses a
  * ConcurrentHashMap to store sessions, ensuring thread-safe operations.
- * 
+ *
  * Key functionalities:
  * - Creating new sessions with unique UUIDs
  * - Retrieving existing sessions by their UUID
  * - Checking if a session exists
  * - Ending (removing) sessions
- * 
+ * - Expiring sessions that have not been used for the idle timeout
+ * - Keeping the estimated heap of the sessions within a budget, evicting the least recently used first
+ * - Spilling evicted sessions to disk, when enabled, and loading them back when they are used again
+ * - Keeping the sessions across restarts, when enabled: on shutdown, once the operations in progress
+ *   are done, every session is written to a snapshot; on startup the snapshots, and the spilled sessions,
+ *   are registered and each session is restored the first time it is used
+ * - Logging the sessions created, documents added and sessions ended to a write-ahead log, when enabled with
+ *   the snapshots, so that a crash loses nothing acknowledged: the log is folded into the snapshots in the
+ *   background and its tail is replayed on startup
+ *
  * The service uses UUID as the key for identifying sessions, providing
- * a secure and unique identifier for each user session.
+ * a secure and unique identifier for each user session. Sessions used by an
+ * operation (see {@link Session#retain()}) are never expired nor evicted.
  */
 @Service
-public class SessionService {
+public class SessionService implements SmartLifecycle {
+
+    private static final Logger logger = Logger.getLogger(SessionService.class.getName());
+
+    /* How often shutdown checks whether the operations using sessions are done */
+    private static final long DRAIN_POLL_MILLIS = 50;
 
     /* The session repository - stores all the content per user session */
     private final ConcurrentHashMap<UUID, Session> sessionRepository;
 
+    /* The sessions spilled to disk, with when they were last used, in nanoseconds */
+    private final ConcurrentHashMap<UUID, Long> spilledSessions = new ConcurrentHashMap<>();
+
+    /* The sessions of a previous run not restored yet, with when they were registered, in nanoseconds */
+    private final ConcurrentHashMap<UUID, Long> snapshotSessions = new ConcurrentHashMap<>();
+
+    /* How long a session may stay unused before it is ended, 0 to keep sessions until they are ended */
+    private final long idleTtlNanos;
+
+    /* The estimated heap the sessions in memory may use, 0 for no limit */
+    private final long maxBytes;
+
+    /* The store of the evicted sessions, null to drop them */
+    private final SessionSpillStore spillStore;
+
+    /* The store of the sessions kept across restarts, null to lose them on shutdown */
+    private final SessionSnapshotStore snapshotStore;
+
+    /* How long shutdown waits for the operations using sessions before writing the snapshots */
+    private final long drainTimeoutNanos;
+
+    /* The write-ahead log of the sessions, null when the sessions are not logged */
+    private final SessionLog log;
+
+    /* The sessions with records in the log that are not in their snapshot yet, with the last of those records */
+    private final ConcurrentHashMap<UUID, Long> unsnapshotted = new ConcurrentHashMap<>();
+
+    /* The thread expiring and evicting sessions, null when neither is enabled */
+    private final ScheduledExecutorService sweeper;
+
+    /* The thread folding the log into the snapshots, null when the sessions are not logged */
+    private final ScheduledExecutorService compactor;
+
+    private volatile boolean running;
+
+    private final Counter expired;
+    private final Counter spilled;
+    private final Counter dropped;
+    private final Counter reloaded;
+    private final Counter restored;
+    private final Counter compactions;
+
     /**
-     * Create a new SessionService.
+     * Create a new SessionService that keeps every session in memory until it is ended.
      */
     public SessionService() {
+        this(0, 0, 0, null, null, 0, null, 0, new SimpleMeterRegistry());
+    }
+
+    /**
+     * Create a new SessionService.
+     *
+     * @param idleTtlSeconds       - how long a session may stay unused before it is ended, 0 to never expire sessions
+     * @param maxBytes             - the estimated heap the sessions in memory may use, 0 for no limit
+     * @param sweepIntervalSeconds - how often idle sessions and the budget are checked
+     * @param spillEnabled         - whether evicted sessions are written to disk
+     * @param spillDirectory       - the directory of the evicted sessions
+     * @param snapshotEnabled      - whether sessions are kept across restarts
+     * @param snapshotDirectory    - the directory of the session snapshots
+     * @param drainTimeoutSeconds  - how long shutdown waits for the operations using sessions
+     * @param walEnabled           - whether the sessions are logged, only with the snapshots
+     * @param walDirectory         - the directory of the write-ahead log
+     * @param walSegmentBytes      - the size of the segments of the log
+     * @param compactIntervalSeconds - how often the log is folded into the snapshots
+     * @param meterRegistry        - the meter registry to register metrics with
+     * @throws IOException - if the spill, snapshot or log directory cannot be created or listed
+     */
+    @Autowired
+    public SessionService(@Value("${doc_ext_search.session.idle_ttl_seconds}") long idleTtlSeconds,
+                          @Value("${doc_ext_search.session.max_bytes}") long maxBytes,
+                          @Value("${doc_ext_search.session.sweep_interval_seconds}") long sweepIntervalSeconds,
+                          @Value("${doc_ext_search.session.spill.enabled}") boolean spillEnabled,
+                          @Value("${doc_ext_search.session.spill.dir}") String spillDirectory,
+                          @Value("${doc_ext_search.session.snapshot.enabled}") boolean snapshotEnabled,
+                          @Value("${doc_ext_search.session.snapshot.dir}") String snapshotDirectory,
+                          @Value("${doc_ext_search.session.snapshot.drain_timeout_seconds}") long drainTimeoutSeconds,
+                          @Value("${doc_ext_search.session.wal.enabled}") boolean walEnabled,
+                          @Value("${doc_ext_search.session.wal.dir}") String walDirectory,
+                          @Value("${doc_ext_search.session.wal.segment_bytes}") long walSegmentBytes,
+                          @Value("${doc_ext_search.session.wal.compact_interval_seconds}") long compactIntervalSeconds,
+                          MeterRegistry meterRegistry) throws IOException {
+        this(idleTtlSeconds, maxBytes, sweepIntervalSeconds,
+                spillEnabled ? new SessionSpillStore(Path.of(spillDirectory)) : null,
+                snapshotEnabled ? new SessionSnapshotStore(Path.of(snapshotDirectory)) : null,
+                drainTimeoutSeconds,
+                walEnabled && snapshotEnabled ? new SessionLog(Path.of(walDirectory), walSegmentBytes, meterRegistry) : null,
+                compactIntervalSeconds, meterRegistry);
+        if (walEnabled && !snapshotEnabled) {
+            logger.warning("The session write-ahead log needs the snapshots, it is disabled");
+        }
+    }
+
+    /**
+     * Create a new SessionService that does not keep sessions across restarts.
+     *
+     * @param idleTtlSeconds       - how long a session may stay unused before it is ended, 0 to never expire sessions
+     * @param maxBytes             - the estimated heap the sessions in memory may use, 0 for no limit
+     * @param sweepIntervalSeconds - how often idle sessions and the budget are checked, 0 to only check on {@link #sweep()}
+     * @param spillStore           - the store of the evicted sessions, or null to drop them
+     * @param meterRegistry        - the meter registry to register metrics with
+     */
+    public SessionService(long idleTtlSeconds, long maxBytes, long sweepIntervalSeconds, SessionSpillStore spillStore, MeterRegistry meterRegistry) {
+        this(idleTtlSeconds, maxBytes, sweepIntervalSeconds, spillStore, null, 0, null, 0, meterRegistry);
+    }
+
+    /**
+     * Create a new SessionService.
+     *
+     * @param idleTtlSeconds       - how long a session may stay unused before it is ended, 0 to never expire sessions
+     * @param maxBytes             - the estimated heap the sessions in memory may use, 0 for no limit
+     * @param sweepIntervalSeconds - how often idle sessions and the budget are checked, 0 to only check on {@link #sweep()}
+     * @param spillStore           - the store of the evicted sessions, or null to drop them
+     * @param snapshotStore        - the store of the sessions kept across restarts, or null to lose them on shutdown
+     * @param drainTimeoutSeconds  - how long shutdown waits for the operations using sessions
+     * @param log                  - the write-ahead log of the sessions, or null; replayed here, requires the snapshot store
+     * @param compactIntervalSeconds - how often the log is folded into the snapshots, 0 to only fold it on {@link #compact()}
+     * @param meterRegistry        - the meter registry to register metrics with
+     */
+    public SessionService(long idleTtlSeconds, long maxBytes, long sweepIntervalSeconds, SessionSpillStore spillStore,
+                          SessionSnapshotStore snapshotStore, long drainTimeoutSeconds, SessionLog log,
+                          long compactIntervalSeconds, MeterRegistry meterRegistry) {
         this.sessionRepository = new ConcurrentHashMap<>();
+        this.idleTtlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, idleTtlSeconds));
+        this.maxBytes = Math.max(0, maxBytes);
+        this.spillStore = spillStore;
+        this.snapshotStore = snapshotStore;
+        this.drainTimeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(0, drainTimeoutSeconds));
+        this.log = snapshotStore != null ? log : null;
+
+        Gauge.builder("sessionsActive", sessionRepository, Map::size)
+                .description("Number of sessions in memory")
+                .register(meterRegistry);
+        Gauge.builder("sessionsSpilled", spilledSessions, Map::size)
+                .description("Number of sessions spilled to disk")
+                .register(meterRegistry);
+        Gauge.builder("sessionsSnapshotted", snapshotSessions, Map::size)
+                .description("Number of sessions of a previous run waiting to be restored")
+                .register(meterRegistry);
+        Gauge.builder("sessionBytes", this, SessionService::estimatedBytes)
+                .description("Estimated heap used by the sessions in memory")
+                .register(meterRegistry);
+        this.expired = Counter.builder("sessionsExpired")
+                .description("Number of sessions ended after the idle timeout")
+                .register(meterRegistry);
+        this.spilled = Counter.builder("sessionEvictions")
+                .description("Number of sessions evicted to keep the sessions within the memory budget")
+                .tag("outcome", "spilled")
+                .register(meterRegistry);
+        this.dropped = Counter.builder("sessionEvictions")
+                .description("Number of sessions evicted to keep the sessions within the memory budget")
+                .tag("outcome", "dropped")
+                .register(meterRegistry);
+        this.reloaded = Counter.builder("sessionsReloaded")
+                .description("Number of spilled sessions loaded back into memory")
+                .register(meterRegistry);
+        this.restored = Counter.builder("sessionsRestored")
+                .description("Number of sessions of a previous run restored from their snapshot")
+                .register(meterRegistry);
+        this.compactions = Counter.builder("walCompactions")
+                .description("Number of times the session write-ahead log was folded into the snapshots")
+                .register(meterRegistry);
+
+        if (sweepIntervalSeconds > 0 && (this.idleTtlNanos > 0 || this.maxBytes > 0)) {
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "session-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.sweeper.scheduleWithFixedDelay(this::sweep, sweepIntervalSeconds, sweepIntervalSeconds, TimeUnit.SECONDS);
+        } else {
+            this.sweeper = null;
+        }
+        if (snapshotStore != null) {
+            register();
+        }
+        if (this.log != null) {
+            replay();
+        }
+        if (this.log != null && compactIntervalSeconds > 0) {
+            this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "session-wal-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.compactor.scheduleWithFixedDelay(this::compact, compactIntervalSeconds, compactIntervalSeconds, TimeUnit.SECONDS);
+        } else {
+            this.compactor = null;
+        }
     }
 
     /**
-     * Get the session
+     * Get the session, loading it back from disk if it was spilled.
+     * The session may be evicted once returned; operations that must not lose their changes
+     * retain the session and check that it was not evicted in the meantime.
      *
      * @param sessionId - the session id
-     * @return - the session as UUID
+     * @return - the session, or null if it does not exist
      */
     public Session getSession(UUID sessionId) {
-        return sessionRepository.get(sessionId);
+        Session session = sessionRepository.get(sessionId);
+        if (session == null && spillStore != null && spilledSessions.containsKey(sessionId)) {
+            session = reload(sessionId);
+        }
+        if (session == null && snapshotStore != null && snapshotSessions.containsKey(sessionId)) {
+            session = restore(sessionId);
+        }
+        if (session != null) {
+            session.touch();
+        }
+        return session;
     }
 
     /**
@@ -52,7 +287,8 @@ public class SessionService {
      * @return - true if the session exists, false otherwise
      */
     public boolean sessionExists(UUID sessionId) {
-        return sessionRepository.containsKey(sessionId);
+        return sessionRepository.containsKey(sessionId) || spilledSessions.containsKey(sessionId)
+                || snapshotSessions.containsKey(sessionId);
     }
 
     /**
@@ -62,18 +298,493 @@ public class SessionService {
      */
     public UUID createSession() {
         UUID sessionId = UUID.randomUUID();
-        Session session = new Session();
-        session.setSessionId(sessionId);
-        sessionRepository.put(sessionId, session);
+        newSession(sessionId);
+        if (log != null) {
+            try {
+                log.sync(log.appendCreated(sessionId));
+                unsnapshotted.put(sessionId, 0L);
+            } catch (IOException e) {
+                // the session is logged with its first document
+                logger.warning("Error logging the session " + sessionId + ": " + e.getMessage());
+            }
+        }
         return sessionId;
     }
 
     /**
-     * Ends the current user session. Removes the session from the repository.
+     * Append a document added to a session to the write-ahead log. Callers hold the session lock and add
+     * the document to the session under it, then wait for the record with {@link #awaitDurable(long)}
+     * once the lock is released, so that concurrent ingests share their fsyncs.
+     *
+     * @param session  - the session
+     * @param document - the document added to the session
+     * @return - the sequence number of the record, 0 when the sessions are not logged
+     * @throws SessionServiceException - if the record cannot be written
+     */
+    public long logDocument(Session session, XDoc document) throws SessionServiceException {
+        if (log == null) {
+            return 0;
+        }
+        try {
+            long lsn = log.appendDocument(session.getSessionId(), document, session.getIndex());
+            unsnapshotted.put(session.getSessionId(), lsn);
+            return lsn;
+        } catch (IOException e) {
+            throw new SessionServiceException("Error logging the document " + document.getId() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Wait until a record of the write-ahead log is on disk.
+     *
+     * @param lsn - the sequence number returned by {@link #logDocument}
+     * @throws SessionServiceException - if the log cannot be synced
+     */
+    public void awaitDurable(long lsn) throws SessionServiceException {
+        if (log == null || lsn == 0) {
+            return;
+        }
+        try {
+            log.sync(lsn);
+        } catch (IOException e) {
+            throw new SessionServiceException("Error syncing the session write-ahead log: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Ends the current user session. Removes the session from the repository; searches and ingests still
+     * using it finish against its index, which is closed when the last of them ends, and cannot add documents.
      *
      * @param uuid - the session id
      */
     public void endSession(UUID uuid) {
-        sessionRepository.remove(uuid);
+        Session session = sessionRepository.get(uuid);
+        if (session != null) {
+            // an ingest in progress either published under the lock before, or finds the session evicted after
+            synchronized (session) {
+                remove(session);
+            }
+        }
+        if (spilledSessions.remove(uuid) != null) {
+            spillStore.delete(uuid);
+        }
+        forget(uuid);
+    }
+
+    /**
+     * Expire the idle sessions, then evict the least recently used sessions until the sessions in memory fit the budget.
+     */
+    public void sweep() {
+        try {
+            if (idleTtlNanos > 0) {
+                expireIdleSessions();
+            }
+            if (maxBytes > 0) {
+                enforceBudget(null);
+            }
+        } catch (RuntimeException e) {
+            logger.warning("Error sweeping the sessions: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return - the estimated heap used by the sessions in memory
+     */
+    public long estimatedBytes() {
+        return sessionRepository.values().stream().mapToLong(Session::estimatedBytes).sum();
+    }
+
+    /**
+     * Write a snapshot of every session in memory and release them. Operations still using sessions
+     * are given the drain timeout to finish first; a session still in use afterwards is written as it is.
+     * Spilled sessions and sessions not restored yet are already on disk.
+     */
+    public void snapshot() {
+        if (snapshotStore == null) {
+            return;
+        }
+        long deadline = System.nanoTime() + drainTimeoutNanos;
+        while (sessionRepository.values().stream().anyMatch(Session::isInUse) && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int written = 0;
+        int failed = 0;
+        long bytes = 0;
+        for (Session session : sessionRepository.values()) {
+            synchronized (session) {
+                if (session.isInUse()) {
+                    logger.warning("Session " + session.getSessionId() + " is still in use, its snapshot may miss pages");
+                }
+                try {
+                    bytes += snapshotStore.write(session);
+                    written++;
+                    unsnapshotted.remove(session.getSessionId());
+                    remove(session);
+                } catch (SessionServiceException e) {
+                    failed++;
+                    logger.warning(e.getMessage());
+                }
+            }
+        }
+        logger.info(String.format("Wrote the snapshots of %d sessions, %d bytes", written, bytes));
+        if (log != null) {
+            try {
+                if (failed == 0) {
+                    // every session is in a snapshot or spilled, nothing is left to replay
+                    log.deleteUpTo(log.roll());
+                }
+            } catch (IOException e) {
+                logger.warning("Error truncating the session write-ahead log: " + e.getMessage());
+            }
+            log.close();
+        }
+    }
+
+    /**
+     * Fold the write-ahead log into the snapshots: seal the current segment, write the snapshots of the sessions
+     * with records in it, then delete the sealed segments. Sessions spilled meanwhile are on disk already.
+     * When a snapshot cannot be written, the segments are kept and folded by the next compaction.
+     */
+    public void compact() {
+        if (log == null) {
+            return;
+        }
+        try {
+            long sealed = log.roll();
+            for (UUID sessionId : List.copyOf(unsnapshotted.keySet())) {
+                Long lsn = unsnapshotted.get(sessionId);
+                Session session = sessionRepository.get(sessionId);
+                if (session != null) {
+                    synchronized (session) {
+                        if (!session.isEvicted()) {
+                            snapshotStore.write(session);
+                        }
+                    }
+                }
+                if (lsn != null) {
+                    // a session logged again meanwhile stays to be written by the next compaction
+                    unsnapshotted.remove(sessionId, lsn);
+                }
+            }
+            log.deleteUpTo(sealed);
+            compactions.increment();
+        } catch (IOException | SessionServiceException | RuntimeException e) {
+            logger.warning("Error compacting the session write-ahead log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop the sweeper, then write the snapshots. Runs after the web server finished the requests in progress,
+     * and before the services the operations depend on are destroyed.
+     */
+    @Override
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        if (compactor != null) {
+            // not interrupted: an interrupt would close the log file under a running compaction
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(drainTimeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        snapshot();
+        running = false;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // stopped after the graceful shutdown of the web server
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        if (compactor != null) {
+            compactor.shutdown();
+        }
+    }
+
+    /**
+     * Register the snapshots, and the sessions spilled by a previous run, to be restored when they are used.
+     */
+    private void register() {
+        long now = System.nanoTime();
+        try {
+            snapshotStore.list().forEach(sessionId -> snapshotSessions.put(sessionId, now));
+            if (spillStore != null) {
+                spillStore.list().forEach(sessionId -> spilledSessions.put(sessionId, now));
+            }
+        } catch (IOException e) {
+            logger.warning("Error listing the sessions of the previous run: " + e.getMessage());
+        }
+        if (!snapshotSessions.isEmpty() || !spilledSessions.isEmpty()) {
+            logger.info(String.format("Registered %d session snapshots and %d spilled sessions", snapshotSessions.size(), spilledSessions.size()));
+        }
+    }
+
+    private void expireIdleSessions() {
+        for (Session session : sessionRepository.values()) {
+            if (isIdle(session.getLastAccessNanos())) {
+                boolean removed;
+                synchronized (session) {
+                    removed = !session.isInUse() && !session.isEvicted() && isIdle(session.getLastAccessNanos()) && remove(session);
+                }
+                if (removed) {
+                    forget(session.getSessionId());
+                    expired.increment();
+                }
+            }
+        }
+        spilledSessions.forEach((sessionId, lastAccess) -> {
+            if (isIdle(lastAccess) && spilledSessions.remove(sessionId, lastAccess)) {
+                spillStore.delete(sessionId);
+                forget(sessionId);
+                expired.increment();
+            }
+        });
+        snapshotSessions.forEach((sessionId, registered) -> {
+            if (isIdle(registered) && snapshotSessions.remove(sessionId, registered)) {
+                forget(sessionId);
+                expired.increment();
+            }
+        });
+    }
+
+    /**
+     * Evict the least recently used sessions until the sessions in memory fit the budget.
+     *
+     * @param keep - a session that is not evicted, or null
+     */
+    private void enforceBudget(Session keep) {
+        Map<Session, Long> sizes = new HashMap<>();
+        long total = 0;
+        for (Session session : sessionRepository.values()) {
+            long size = session.estimatedBytes();
+            sizes.put(session, size);
+            total += size;
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        List<Session> leastRecentlyUsed = new ArrayList<>(sizes.keySet());
+        leastRecentlyUsed.sort(Comparator.comparingLong(Session::getLastAccessNanos));
+        for (Session session : leastRecentlyUsed) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (session != keep && evict(session)) {
+                total -= sizes.get(session);
+            }
+        }
+        if (total > maxBytes) {
+            logger.warning(String.format("Sessions in use hold %d bytes, over the budget of %d bytes", total, maxBytes));
+        }
+    }
+
+    /**
+     * Evict a session that is not in use, writing it to disk first when spilling is enabled.
+     *
+     * @param session - the session
+     * @return - true if the session was evicted
+     */
+    private boolean evict(Session session) {
+        synchronized (session) {
+            if (session.isInUse() || session.isEvicted()) {
+                return false;
+            }
+            if (spillStore != null) {
+                try {
+                    spillStore.write(session);
+                } catch (SessionServiceException e) {
+                    // keep it in memory rather than lose it
+                    logger.warning(e.getMessage());
+                    return false;
+                }
+                // listed as spilled before it leaves the repository, so that it always exists
+                spilledSessions.put(session.getSessionId(), session.getLastAccessNanos());
+            }
+            if (!remove(session)) {
+                spilledSessions.remove(session.getSessionId());
+                return false;
+            }
+            if (spillStore == null) {
+                forget(session.getSessionId());
+            }
+        }
+        (spillStore != null ? spilled : dropped).increment();
+        return true;
+    }
+
+    /**
+     * Remove a session from memory and release its index once no operation uses it. Callers hold the session lock.
+     */
+    private boolean remove(Session session) {
+        if (!sessionRepository.remove(session.getSessionId(), session)) {
+            return false;
+        }
+        session.evict();
+        session.closeIndex();
+        return true;
+    }
+
+    /**
+     * Load a spilled session back into memory. The index of the session is rebuilt on first use.
+     */
+    private Session reload(UUID sessionId) {
+        Session session = sessionRepository.computeIfAbsent(sessionId, id -> {
+            if (!spilledSessions.containsKey(id)) {
+                return null;
+            }
+            try {
+                Session loaded = spillStore.read(id);
+                spilledSessions.remove(id);
+                spillStore.delete(id);
+                reloaded.increment();
+                return loaded;
+            } catch (SessionServiceException e) {
+                logger.warning(e.getMessage());
+                return null;
+            }
+        });
+        if (session != null && maxBytes > 0) {
+            // the session was just asked for, make room for it rather than evict it again
+            enforceBudget(session);
+        }
+        return session;
+    }
+
+    /**
+     * Replay the tail of the write-ahead log: the sessions it touches are restored, or created, and the
+     * documents not in their snapshot yet are added back with their vectors, so nothing is embedded again.
+     */
+    private void replay() {
+        try {
+            int replayed = log.replay(new SessionLog.Handler() {
+                @Override
+                public void created(UUID sessionId) {
+                    if (!sessionExists(sessionId)) {
+                        newSession(sessionId);
+                    }
+                    unsnapshotted.put(sessionId, 0L);
+                }
+
+                @Override
+                public void documentAdded(UUID sessionId, XDoc document) {
+                    Session session = getSession(sessionId);
+                    if (session == null) {
+                        session = newSession(sessionId);
+                    }
+                    if (session.getDocuments().stream().anyMatch(d -> d.getId().equals(document.getId()))) {
+                        // already in the snapshot
+                        return;
+                    }
+                    if (session.getIndex() != null) {
+                        try {
+                            session.getIndex().add(document);
+                        } catch (VectorSearchException e) {
+                            logger.warning("Skipping the logged document " + document.getId() + ": " + e.getMessage());
+                            return;
+                        }
+                    }
+                    session.addDocument(document);
+                    unsnapshotted.put(sessionId, 0L);
+                }
+
+                @Override
+                public void ended(UUID sessionId) {
+                    Session session = sessionRepository.remove(sessionId);
+                    if (session != null && session.getIndex() != null) {
+                        session.getIndex().close();
+                    }
+                    if (spilledSessions.remove(sessionId) != null) {
+                        spillStore.delete(sessionId);
+                    }
+                    snapshotSessions.remove(sessionId);
+                    snapshotStore.delete(sessionId);
+                    unsnapshotted.remove(sessionId);
+                }
+            });
+            if (replayed > 0) {
+                logger.info(String.format("Replayed %d records of the session write-ahead log", replayed));
+            }
+        } catch (IOException e) {
+            logger.warning("Error replaying the session write-ahead log: " + e.getMessage());
+        }
+    }
+
+    private Session newSession(UUID sessionId) {
+        Session session = new Session();
+        session.setSessionId(sessionId);
+        sessionRepository.put(sessionId, session);
+        return session;
+    }
+
+    /**
+     * Delete the snapshot of a session that is gone, and log its end so that the log does not bring it back.
+     */
+    private void forget(UUID sessionId) {
+        if (snapshotStore != null) {
+            snapshotSessions.remove(sessionId);
+            snapshotStore.delete(sessionId);
+        }
+        if (log != null) {
+            unsnapshotted.remove(sessionId);
+            try {
+                log.appendEnded(sessionId);
+            } catch (IOException e) {
+                logger.warning("Error logging the end of the session " + sessionId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Restore a session of a previous run from its snapshot. The graphs are mapped, not rebuilt.
+     */
+    private Session restore(UUID sessionId) {
+        Session session = sessionRepository.computeIfAbsent(sessionId, id -> {
+            if (!snapshotSessions.containsKey(id)) {
+                return null;
+            }
+            try {
+                Session loaded = snapshotStore.read(id);
+                snapshotSessions.remove(id);
+                restored.increment();
+                return loaded;
+            } catch (SessionServiceException e) {
+                logger.warning(e.getMessage());
+                snapshotSessions.remove(id);
+                return null;
+            }
+        });
+        if (session != null && maxBytes > 0) {
+            enforceBudget(session);
+        }
+        return session;
+    }
+
+    private boolean isIdle(long lastAccessNanos) {
+        return System.nanoTime() - lastAccessNanos > idleTtlNanos;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,290 @@
+package one.cax.doc_search.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import one.cax.doc_search.exception.UploadRejectedException;
+import one.cax.doc_search.model.XPage;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * UploadAdmission bounds the work the application extracts at the same time.
+ *
+ * Every upload asks for a permit for its size in bytes before it is extracted, and counts its pages
+ * on the permit as they are extracted. A permit is granted while the bytes and pages in flight stay
+ * within the budget; otherwise the upload waits in a short queue, in arrival order, and is rejected
+ * when the queue is full or the wait is over, so callers can answer 429 with a Retry-After.
+ * An upload larger than the whole budget is admitted once nothing else is in flight.
+ *
+ * The number of pages of an upload is only known once it is extracted, so the page limit is a soft cap:
+ * uploads are admitted while the pages counted so far are under it, and an admitted upload may take the
+ * pages in flight over it by its own pages. The uploads after it wait until enough pages are released.
+ *
+ * Key components:
+ * - maxBytes, maxPages: The budget of bytes and pages in flight
+ * - waiters: The uploads waiting for the budget, served first come first served
+ * - metrics: Bytes and pages in flight, queue length, time spent waiting and rejected uploads
+ */
+public class UploadAdmission {
+
+    private final long maxBytes;
+    private final long maxPages;
+    private final long maxWaitNanos;
+    private final int maxQueued;
+    private final long retryAfterSeconds;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    /* The uploads waiting for a permit, the first one is served first */
+    private final Deque<Object> waiters = new ArrayDeque<>();
+
+    private long bytesInFlight;
+    private long pagesInFlight;
+
+    private final Timer admissionWait;
+    private final Counter rejected;
+
+    /**
+     * Create a new UploadAdmission.
+     *
+     * @param maxBytes          - the maximum size of the uploads in flight
+     * @param maxPages          - the maximum number of pages extracted and not yet released
+     * @param maxWaitMillis     - the maximum time an upload waits for the budget before it is rejected
+     * @param maxQueued         - the maximum number of uploads waiting for the budget
+     * @param retryAfterSeconds - the time rejected callers are asked to wait before trying again
+     * @param meterRegistry     - the meter registry to register metrics with
+     */
+    public UploadAdmission(long maxBytes, long maxPages, long maxWaitMillis, int maxQueued, long retryAfterSeconds, MeterRegistry meterRegistry) {
+        this.maxBytes = maxBytes;
+        this.maxPages = maxPages;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+        this.maxQueued = Math.max(0, maxQueued);
+        this.retryAfterSeconds = retryAfterSeconds;
+
+        Gauge.builder("uploadsInFlightBytes", this, UploadAdmission::bytesInFlight)
+                .description("Size of the uploads being extracted")
+                .register(meterRegistry);
+        Gauge.builder("uploadsInFlightPages", this, UploadAdmission::pagesInFlight)
+                .description("Number of pages extracted from uploads still in flight")
+                .register(meterRegistry);
+        Gauge.builder("uploadsQueued", this, UploadAdmission::queued)
+                .description("Number of uploads waiting for the extraction budget")
+                .register(meterRegistry);
+        this.admissionWait = Timer.builder("uploadAdmissionWait")
+                .description("Time an upload waits for the extraction budget")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("uploadsRejected")
+                .description("Number of uploads rejected because the extraction budget was used up")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Get a permit for an upload, waiting at most the maximum wait time for the budget.
+     *
+     * @param bytes - the size of the upload
+     * @return - the permit, to be closed once the upload and its pages are no longer held
+     * @throws UploadRejectedException - if the queue is full, the wait is over or the caller is interrupted
+     */
+    public Permit acquire(long bytes) throws UploadRejectedException {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (waiters.isEmpty() && fits(bytes)) {
+                return grant(bytes, start);
+            }
+            if (waiters.size() >= maxQueued) {
+                rejected.increment();
+                throw new UploadRejectedException("Too many uploads in progress");
+            }
+            var ticket = new Object();
+            waiters.addLast(ticket);
+            try {
+                long remaining = maxWaitNanos;
+                while (waiters.peekFirst() != ticket || !fits(bytes)) {
+                    if (remaining <= 0) {
+                        rejected.increment();
+                        throw new UploadRejectedException("Too many uploads in progress");
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+                return grant(bytes, start);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UploadRejectedException("Interrupted while waiting for the upload budget", e);
+            } finally {
+                waiters.remove(ticket);
+                // the next upload in the queue may fit now
+                released.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get a permit for an upload, waiting as long as it takes. Used by work that was already
+     * accepted, like background jobs, which should wait for the budget rather than fail.
+     *
+     * @param bytes - the size of the upload
+     * @return - the permit, to be closed once the upload and its pages are no longer held
+     * @throws InterruptedException - if the caller is interrupted while waiting
+     */
+    public Permit await(long bytes) throws InterruptedException {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            var ticket = new Object();
+            waiters.addLast(ticket);
+            try {
+                while (waiters.peekFirst() != ticket || !fits(bytes)) {
+                    released.await();
+                }
+                return grant(bytes, start);
+            } finally {
+                waiters.remove(ticket);
+                released.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return - the time rejected callers are asked to wait before trying again, in seconds
+     */
+    public long retryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public long bytesInFlight() {
+        lock.lock();
+        try {
+            return bytesInFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long pagesInFlight() {
+        lock.lock();
+        try {
+            return pagesInFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int queued() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* The pages of the upload asking are not known yet, only the pages already counted are checked */
+    private boolean fits(long bytes) {
+        if (bytesInFlight == 0 && pagesInFlight == 0) {
+            return true;
+        }
+        return bytesInFlight + bytes <= maxBytes && pagesInFlight < maxPages;
+    }
+
+    private Permit grant(long bytes, long start) {
+        bytesInFlight += bytes;
+        admissionWait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return new Permit(this, bytes);
+    }
+
+    private void release(long bytes, long pages) {
+        lock.lock();
+        try {
+            bytesInFlight -= bytes;
+            pagesInFlight -= pages;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addPages(long pages) {
+        lock.lock();
+        try {
+            pagesInFlight += pages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The share of the budget held by one upload. Closing it gives the bytes and pages back.
+     */
+    public static final class Permit implements AutoCloseable {
+
+        /* A permit that holds nothing, for when admission control is disabled */
+        public static final Permit NONE = new Permit(null, 0);
+
+        private final UploadAdmission admission;
+        private final long bytes;
+        private long pages;
+        private boolean closed;
+
+        private Permit(UploadAdmission admission, long bytes) {
+            this.admission = admission;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Count pages extracted for the upload, they are held until the permit is closed.
+         *
+         * @param count - the number of pages
+         */
+        public synchronized void addPages(int count) {
+            if (admission == null || closed) {
+                return;
+            }
+            pages += count;
+            admission.addPages(count);
+        }
+
+        /**
+         * Wrap a consumer so that every page it receives is counted on this permit.
+         *
+         * @param consumer - the consumer receiving the pages
+         * @return - the counting consumer
+         */
+        public PageConsumer counting(PageConsumer consumer) {
+            if (admission == null) {
+                return consumer;
+            }
+            return new PageConsumer() {
+                @Override
+                public void begin(int totalPages) {
+                    consumer.begin(totalPages);
+                }
+
+                @Override
+                public void accept(XPage page) throws InterruptedException {
+                    addPages(1);
+                    consumer.accept(page);
+                }
+            };
+        }
+
+        @Override
+        public synchronized void close() {
+            if (admission == null || closed) {
+                return;
+            }
+            closed = true;
+            admission.release(bytes, pages);
+        }
+    }
+}
@@ -1,29 +1,54 @@
 package one.cax.doc_search.service;
 
-import io.github.jbellis.jvector.graph.*;
-import io.github.jbellis.jvector.graph.similarity.BuildScoreProvider;
-import io.github.jbellis.jvector.graph.similarity.SearchScoreProvider;
-import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
-import io.github.jbellis.jvector.vector.VectorizationProvider;
-import io.github.jbellis.jvector.vector.types.VectorFloat;
-import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+import one.cax.doc_search.cache.QueryEmbeddingCache;
 import one.cax.doc_search.exception.EmbedderException;
+import one.cax.doc_search.exception.SessionServiceException;
 import one.cax.doc_search.exception.VectorSearchException;
+import one.cax.doc_search.index.IndexSettings;
+import one.cax.doc_search.index.IndexedPage;
+import one.cax.doc_search.index.RankFusion;
+import one.cax.doc_search.index.SessionIndex;
+import one.cax.doc_search.model.SearchFilter;
+import one.cax.doc_search.model.SearchMode;
+import one.cax.doc_search.model.Session;
 import one.cax.doc_search.model.XDoc;
 import one.cax.doc_search.model.XPage;
 import org.json.JSONException;
 import org.json.JSONObject;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 
 /**
@@ -31,21 +56,36 @@ import java.util.logging.Logger;
  * 
  * This service provides methods to add documents to a vector space, perform similarity
  * searches, and manage the underlying vector representations of documents and queries.
- * It integrates with OpenAIEmbedderService for generating embeddings and SessionService
+ * It integrates with an Embedder (OpenAIEmbedderService, possibly behind a cache) for generating embeddings and SessionService
  * for managing user sessions.
  * 
  * Key functionalities:
  * - Adding documents to the vector space
- * - Performing similarity searches on the vector space
+ * - Performing similarity searches on the vector space, one query or a batch of queries at a time
  * - Managing document embeddings and search configurations
  * 
  * The service uses configurable parameters for top-K results and similarity functions,
- * allowing for flexible and customizable search behavior.
+ * allowing for flexible and customizable search behavior. Pages are embedded in batches
+ * bounded by page count and estimated tokens, several batches at a time. Each session keeps a long-lived
+ * SessionIndex that is updated as documents are added, so searches never rebuild the graph;
+ * small sessions skip the graph and are searched with an exact scan. Searches can be filtered by document,
+ * page range and metadata; the filter is applied during the graph traversal. Every session also keeps
+ * an inverted index of its page texts, so queries can be matched by BM25, by embedding or by both.
+ * Pages added with a vector of the session dimension are indexed without calling the embedder.
+ * Uploaded files can be ingested as a pipeline, embedding and indexing pages while later pages are still extracted.
+ * The vectors of recent queries are cached, so repeated queries do not call the embedder.
+ * Large sessions move their graph and vectors to memory-mapped files on disk, optionally
+ * searched through product-quantized vectors with exact re-ranking; a sample of those searches
+ * is repeated with full vectors to report the recall of the compressed search.
  */
 @Service
 public class VectorSearch {
     private static final Logger logger = Logger.getLogger(VectorSearch.class.getName());
-    private static final VectorTypeSupport vts = VectorizationProvider.getInstance().getVectorTypeSupport();
+
+    /* Queued by the extraction stage of a pipeline after the last page */
+    private static final XPage END_OF_DOCUMENT = new XPage();
+    /* How often the pipeline checks for a failed extraction while waiting for pages */
+    private static final long PIPELINE_POLL_MILLIS = 50;
 
     /* The top K results to return */
     @Value("${doc_ext_search.topK}")
@@ -55,14 +95,114 @@ public class VectorSearch {
     @Value("${doc_ext_search.similarity.function}")
     private String similarityFunctionName;
 
+    /* The maximum number of pages sent in one embedding request */
+    @Value("${doc_ext_search.embedding.batch_size}")
+    private int batchSize;
+
+    /* The maximum number of estimated tokens sent in one embedding request */
+    @Value("${doc_ext_search.embedding.batch_max_tokens}")
+    private int batchMaxTokens;
+
+    /* The number of embedding batches of a document sent at the same time, 1 to send them one by one */
+    @Value("${doc_ext_search.embedding.parallel_batches}")
+    private int parallelBatches;
+
+    /* Whether pages that already carry a vector are indexed with it instead of being embedded again */
+    @Value("${doc_ext_search.embedding.accept_precomputed}")
+    private boolean acceptPrecomputed;
+
+    /* The pool sending the embedding batches of a document, null when they are sent one by one */
+    private ExecutorService embeddingPool;
+
+    /* Whether uploaded files are extracted, embedded and indexed as a pipeline instead of one phase after the other */
+    @Value("${doc_ext_search.ingest.pipeline.enabled}")
+    private boolean pipelineEnabled;
+
+    /* The maximum number of extracted pages waiting to be embedded */
+    @Value("${doc_ext_search.ingest.pipeline.queue_size}")
+    private int pipelineQueueSize;
+
+    /* The maximum number of pages sent in one embedding request by the pipeline */
+    @Value("${doc_ext_search.ingest.pipeline.batch_size}")
+    private int pipelineBatchSize;
+
+    /* The pool running the extraction stage of the pipelines, one thread per upload */
+    private final ExecutorService pipelinePool = Executors.newCachedThreadPool(daemonThreadFactory("ingest-extract-"));
+
+    /* The number of vectors up to which a session is searched with an exact scan instead of a graph */
+    @Value("${doc_ext_search.index.exact_scan_threshold}")
+    private int exactScanThreshold;
+
+    /* The number of vectors at which a session writes its on-heap graph to disk, 0 to stay on heap */
+    @Value("${doc_ext_search.index.ondisk_threshold}")
+    private int onDiskThreshold;
+
+    /* The directory the on-disk graphs are written to */
+    @Value("${doc_ext_search.index.dir}")
+    private String indexDir;
+
+    /* Whether on-disk graphs are searched through product-quantized vectors */
+    @Value("${doc_ext_search.index.pq.enabled}")
+    private boolean pqEnabled;
+
+    /* The size of a full vector divided by the size of its compressed code */
+    @Value("${doc_ext_search.index.pq.compression_ratio}")
+    private int pqCompressionRatio;
+
+    /* The minimum number of vectors needed to train the codebook of a session */
+    @Value("${doc_ext_search.index.pq.min_vectors}")
+    private int pqMinVectors;
+
+    /* The number of candidates re-ranked with full vectors after a compressed search */
+    @Value("${doc_ext_search.index.pq.rerank_depth}")
+    private int rerankDepth;
+
+    /* The fraction of compressed searches repeated with full vectors to measure recall */
+    @Value("${doc_ext_search.index.pq.recall_sample_rate}")
+    private double recallSampleRate;
+
+    /* How hybrid searches fuse the vector and the lexical rankings: RRF or WEIGHTED */
+    @Value("${doc_ext_search.hybrid.fusion}")
+    private RankFusion.Method fusionMethod;
+
+    /* The rank constant of reciprocal rank fusion */
+    @Value("${doc_ext_search.hybrid.rrf_k}")
+    private int rrfK;
+
+    /* The weight of the vector scores in weighted fusion, the lexical scores get the rest */
+    @Value("${doc_ext_search.hybrid.vector_weight}")
+    private float vectorWeight;
+
+    /* The number of candidates taken from each ranking before fusion */
+    @Value("${doc_ext_search.hybrid.candidates}")
+    private int hybridCandidates;
+
+    /* Whether to record metrics for every embedding batch */
+    @Value("${doc_ext_search.embedding.batch_metrics}")
+    private boolean batchMetrics;
+
+    /* Per-batch embedding metrics */
+    private Timer embedBatchTimer;
+    private DistributionSummary embedBatchPages;
+    private DistributionSummary embedBatchTokens;
+
+    /* The number of pages indexed with the vector they were added with */
+    private Counter precomputedVectors;
+
+    /* Recall of the compressed searches against full-vector searches */
+    private DistributionSummary pqRecall;
+
     /* The EmbedderService - creates embeddings from talking to the LLM model */
-    private OpenAIEmbedderService embedderService;
+    private Embedder embedderService;
 
     /* The SessionService - manages the user sessions */
     private SessionService sessionService;
 
+    /* The vectors of recent queries, null when queries are always embedded */
+    private QueryEmbeddingCache queryCache;
+
     @Autowired
-    public void setEmbedderService(OpenAIEmbedderService embedderService) {
+    public void setEmbedderService(Embedder embedderService) {
         this.embedderService = embedderService;
     }
 
@@ -71,8 +211,40 @@ public class VectorSearch {
         this.sessionService = sessionService;
     }
 
+    @Autowired
+    public void setQueryEmbeddingCache(QueryEmbeddingCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.embedBatchTimer = Timer
+                .builder("EmbedBatch")
+                .description("Time taken to embed a batch of pages")
+                .register(meterRegistry);
+        this.embedBatchPages = DistributionSummary
+                .builder("embedBatchPages")
+                .description("Number of pages per embedding batch")
+                .register(meterRegistry);
+        this.embedBatchTokens = DistributionSummary
+                .builder("embedBatchTokens")
+                .description("Estimated number of tokens per embedding batch")
+                .register(meterRegistry);
+        this.precomputedVectors = Counter
+                .builder("precomputedPageVectors")
+                .description("Number of pages indexed with a vector supplied with the page")
+                .register(meterRegistry);
+        this.pqRecall = DistributionSummary
+                .builder("pqRecall")
+                .description("Fraction of the full-vector results found by a sampled compressed search")
+                .register(meterRegistry);
+    }
+
     /**
      * Add a document to the vector space.
+     * When precomputed vectors are accepted, pages that already carry a vector are validated against the
+     * dimension of the session and indexed as they are; only the other pages are embedded. Otherwise every
+     * page is embedded again.
      *
      * @param sessionId - the session id
      * @param document  - the document to add
@@ -81,31 +253,450 @@ public class VectorSearch {
      */
     public UUID addDocument(UUID sessionId, XDoc document) throws VectorSearchException {
 
-        AtomicInteger processedPages = new AtomicInteger(0);
+        int processedPages;
 
         if (sessionService.sessionExists(sessionId)) {
 
-            document.getPages().forEach(p -> {
-                try {
-                    p.setVector(embedderService.embed(p.getText()));
-                    processedPages.incrementAndGet();
-                } catch (EmbedderException e) {
-                    logger.warning("error creating the embedding for a page");
-                }
-            });
+            var session = useSession(sessionId);
+            try {
+                int precomputedPages = precomputedPages(session, document.getPages());
+                processedPages = precomputedPages + embedPages(document.getPages());
 
-            var session = sessionService.getSession(sessionId);
-            session.addDocument(document);
+                awaitDurable(publish(session, document));
+            } finally {
+                session.release();
+            }
 
         } else {
             logger.warning("Session does not exist");
             throw new VectorSearchException("Session does not exist!");
         }
-        if (processedPages.get() != document.getTotalPages()) {
-            throw new VectorSearchException(String.format("Only %d out of %d pages were processed", processedPages.get(), document.getTotalPages()));
+        if (processedPages != document.getTotalPages()) {
+            throw new VectorSearchException(String.format("Only %d out of %d pages were processed", processedPages, document.getTotalPages()));
+        }
+        return document.getId();
+
+    }
+
+    /**
+     * @return - true if pages that already carry a vector are indexed with it
+     */
+    public boolean acceptsPrecomputed() {
+        return acceptPrecomputed;
+    }
+
+    /**
+     * Check the vectors the pages were added with, or drop them when precomputed vectors are not accepted.
+     * A precomputed vector must be finite and have the dimension of the session index; while the session
+     * is still empty, all precomputed vectors of the document must have the same dimension.
+     *
+     * @param session - the session the pages are added to
+     * @param pages   - the pages of the document
+     * @return - the number of pages with an accepted vector
+     * @throws VectorSearchException - if a vector is not valid
+     */
+    private int precomputedPages(Session session, List<XPage> pages) throws VectorSearchException {
+        if (!acceptPrecomputed) {
+            pages.forEach(p -> p.setVector(null));
+            return 0;
+        }
+        int dimension = indexFor(session).dimension();
+        int accepted = 0;
+        for (XPage page : pages) {
+            float[] vector = page.getVector();
+            if (vector == null) {
+                continue;
+            }
+            if (dimension == 0) {
+                dimension = vector.length;
+            }
+            if (vector.length == 0 || vector.length != dimension) {
+                throw new VectorSearchException(String.format("Page %d has a vector of dimension %d, expected %d", page.getPageNumber(), vector.length, dimension));
+            }
+            for (float v : vector) {
+                if (!Float.isFinite(v)) {
+                    throw new VectorSearchException(String.format("Page %d has a vector with a non-finite value", page.getPageNumber()));
+                }
+            }
+            accepted++;
+        }
+        if (accepted > 0 && precomputedVectors != null) {
+            precomputedVectors.increment(accepted);
+        }
+        return accepted;
+    }
+
+    /**
+     * Add a document to the vector space while it is being extracted.
+     * The producer runs on a pipeline thread and hands over the pages as they are extracted; they flow
+     * through a bounded queue into embedding batches. Page N is thus embedded while page N+1 is still being
+     * extracted, and the bounded queues keep a fast stage from running ahead of a slow one.
+     * The embedded pages are staged on the document and published at once when the pipeline ends: they are
+     * indexed, logged and added to the session in one step under the session lock. A document is published only
+     * when it was extracted and every page was embedded, so a failed or interrupted ingest leaves nothing
+     * searchable behind and can be retried.
+     * When the pipeline is disabled, the whole document is extracted first and then added.
+     *
+     * @param sessionId - the session id
+     * @param document  - the document to add, its pages are set from the produced pages
+     * @param producer  - extracts the pages of the document
+     * @return - the document id
+     * @throws VectorSearchException - if an error occurs
+     */
+    public UUID addDocument(UUID sessionId, XDoc document, PageProducer producer) throws VectorSearchException {
+        if (!sessionService.sessionExists(sessionId)) {
+            logger.warning("Session does not exist");
+            throw new VectorSearchException("Session does not exist!");
+        }
+        if (!pipelineEnabled) {
+            List<XPage> pages = new ArrayList<>();
+            try {
+                producer.produce(pages::add);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new VectorSearchException("Interrupted while extracting the document", e);
+            } catch (Exception e) {
+                throw new VectorSearchException("Error extracting the document: " + e.getMessage(), e);
+            }
+            document.setPages(pages);
+            return addDocument(sessionId, document);
+        }
+
+        var session = useSession(sessionId);
+        try {
+            return addDocument(session, document, producer);
+        } finally {
+            session.release();
+        }
+    }
+
+    /**
+     * Run the ingestion pipeline of a document into a session used by the caller.
+     */
+    private UUID addDocument(Session session, XDoc document, PageProducer producer) throws VectorSearchException {
+        BlockingQueue<XPage> extracted = new ArrayBlockingQueue<>(Math.max(1, pipelineQueueSize));
+        Future<?> extraction = pipelinePool.submit(() -> {
+            producer.produce(extracted::put);
+            extracted.put(END_OF_DOCUMENT);
+            return null;
+        });
+
+        List<XPage> received = new ArrayList<>();
+        Deque<Future<Integer>> inFlight = new ArrayDeque<>();
+        int processedPages = 0;
+        boolean drained = false;
+        try {
+            var batcher = new PageBatcher(pipelineBatchSize, batchMaxTokens);
+            XPage page;
+            while ((page = nextPage(extracted, extraction)) != null) {
+                received.add(page);
+                if (page.getText() == null || page.getText().isEmpty()) {
+                    continue;
+                }
+                List<XPage> batch = batcher.add(page);
+                if (batch != null) {
+                    processedPages += dispatch(batch, inFlight);
+                }
+            }
+            List<XPage> last = batcher.flush();
+            if (last != null) {
+                processedPages += dispatch(last, inFlight);
+            }
+            while (!inFlight.isEmpty()) {
+                processedPages += awaitBatch(inFlight.poll());
+            }
+            drained = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VectorSearchException("Interrupted while adding the document", e);
+        } finally {
+            if (!drained) {
+                extraction.cancel(true);
+                inFlight.forEach(f -> f.cancel(true));
+            }
+        }
+
+        Throwable extractionError = null;
+        try {
+            extraction.get();
+        } catch (ExecutionException e) {
+            extractionError = e.getCause();
+        } catch (CancellationException e) {
+            extractionError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VectorSearchException("Interrupted while adding the document", e);
+        }
+        document.setPages(received);
+        if (extractionError != null) {
+            throw new VectorSearchException("Error extracting the document: " + extractionError.getMessage(), extractionError);
         }
+        if (processedPages != document.getTotalPages()) {
+            throw new VectorSearchException(String.format("Only %d out of %d pages were processed", processedPages, document.getTotalPages()));
+        }
+        awaitDurable(publish(session, document));
         return document.getId();
+    }
 
+    /**
+     * Take the next extracted page, waiting for the extraction stage.
+     *
+     * @param extracted  - the queue of extracted pages
+     * @param extraction - the extraction stage
+     * @return - the next page, or null once the document is complete or the extraction failed
+     * @throws InterruptedException - if interrupted while waiting
+     */
+    private static XPage nextPage(BlockingQueue<XPage> extracted, Future<?> extraction) throws InterruptedException {
+        while (true) {
+            XPage page = extracted.poll(PIPELINE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (page == END_OF_DOCUMENT) {
+                return null;
+            }
+            if (page != null) {
+                return page;
+            }
+            // a failed extraction never queues the end of the document
+            if (extraction.isDone() && extracted.isEmpty()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Send a batch of the pipeline to the embedder, then collect the batches whose vectors are back.
+     * Without the embedding pool the batch is embedded on the calling thread. With the pool,
+     * the caller only waits when the maximum number of batches is in flight.
+     *
+     * @return - the number of pages embedded by the batches collected in this call
+     */
+    private int dispatch(List<XPage> batch, Deque<Future<Integer>> inFlight) throws InterruptedException {
+        if (embeddingPool == null) {
+            return embedBatch(batch);
+        }
+        inFlight.add(embeddingPool.submit(() -> embedBatch(batch)));
+        int maxInFlight = Math.max(1, parallelBatches);
+        int embedded = 0;
+        while (!inFlight.isEmpty() && (inFlight.peek().isDone() || inFlight.size() > maxInFlight)) {
+            embedded += awaitBatch(inFlight.poll());
+        }
+        return embedded;
+    }
+
+    /**
+     * Wait for a batch sent to the embedding pool.
+     *
+     * @return - the number of pages embedded
+     */
+    private int awaitBatch(Future<Integer> embedded) throws InterruptedException {
+        try {
+            return embedded.get();
+        } catch (ExecutionException e) {
+            logger.warning("error creating the embeddings for a batch: " + e.getCause().getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Start the pool used to send the embedding batches of a document in parallel.
+     */
+    @PostConstruct
+    public void startEmbeddingPool() {
+        if (parallelBatches > 1) {
+            embeddingPool = Executors.newFixedThreadPool(parallelBatches, daemonThreadFactory("embed-batch-"));
+        }
+    }
+
+    /**
+     * Stop the pools used to send embedding batches and to run the pipelines.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (embeddingPool != null) {
+            embeddingPool.shutdownNow();
+        }
+        pipelinePool.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Embed the pages of a document in batches.
+     * Pages are grouped into batches limited by the number of pages and the estimated number of tokens,
+     * each batch is embedded with a single call to the embedder and the vectors are set back on the pages.
+     * Several batches are sent at once when the embedding pool is running; the embedder decides how many
+     * of them actually reach the service at the same time.
+     * Pages that already have a vector are not embedded again.
+     * Pages without text, and pages of a batch that failed, are left without a vector.
+     *
+     * @param pages - the pages to embed
+     * @return - the number of pages that got a vector
+     */
+    private int embedPages(List<XPage> pages) {
+        var embeddable = pages.stream().filter(p -> p.getVector() == null && p.getText() != null && !p.getText().isEmpty()).toList();
+        var batches = partition(embeddable, batchSize, batchMaxTokens);
+        if (embeddingPool == null || batches.size() < 2) {
+            return batches.stream().mapToInt(this::embedBatch).sum();
+        }
+
+        List<Future<Integer>> results = new ArrayList<>();
+        for (List<XPage> batch : batches) {
+            results.add(embeddingPool.submit(() -> embedBatch(batch)));
+        }
+        int processedPages = 0;
+        for (Future<Integer> result : results) {
+            try {
+                processedPages += result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.forEach(r -> r.cancel(true));
+                break;
+            } catch (ExecutionException e) {
+                logger.warning("error creating the embeddings for a batch: " + e.getCause().getMessage());
+            }
+        }
+        return processedPages;
+    }
+
+    /**
+     * Embed one batch of pages and set the vectors back on the pages.
+     *
+     * @param batch - the pages of the batch
+     * @return - the number of pages that got a vector, 0 if the batch failed
+     */
+    private int embedBatch(List<XPage> batch) {
+        List<String> texts = batch.stream().map(XPage::getText).toList();
+        Timer.Sample sample = Timer.start();
+        try {
+            float[][] vectors = embedderService.embedBatch(texts);
+            if (vectors == null || vectors.length != batch.size()) {
+                logger.warning(String.format("expected %d embeddings for a batch but got %d", batch.size(), vectors == null ? 0 : vectors.length));
+                return 0;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).setVector(vectors[i]);
+            }
+            return batch.size();
+        } catch (EmbedderException e) {
+            logger.warning("error creating the embeddings for a batch of " + batch.size() + " pages");
+            return 0;
+        } finally {
+            recordBatch(sample, batch);
+        }
+    }
+
+    /**
+     * Record the metrics of an embedding batch, when batch metrics are enabled.
+     *
+     * @param sample - the timer sample started before the batch was sent
+     * @param batch  - the pages in the batch
+     */
+    private void recordBatch(Timer.Sample sample, List<XPage> batch) {
+        if (!batchMetrics || embedBatchTimer == null) {
+            return;
+        }
+        sample.stop(embedBatchTimer);
+        embedBatchPages.record(batch.size());
+        embedBatchTokens.record(batch.stream().mapToInt(p -> estimateTokens(p.getText())).sum());
+    }
+
+    /**
+     * Split the pages into batches of at most maxPages pages and maxTokens estimated tokens.
+     * A page that exceeds maxTokens on its own is sent in a batch of its own.
+     *
+     * @param pages     - the pages to split
+     * @param maxPages  - the maximum number of pages per batch
+     * @param maxTokens - the maximum number of estimated tokens per batch, no limit if not positive
+     * @return - the batches
+     */
+    private static List<List<XPage>> partition(List<XPage> pages, int maxPages, int maxTokens) {
+        var batcher = new PageBatcher(maxPages, maxTokens);
+        List<List<XPage>> batches = new ArrayList<>();
+        for (XPage page : pages) {
+            List<XPage> batch = batcher.add(page);
+            if (batch != null) {
+                batches.add(batch);
+            }
+        }
+        List<XPage> last = batcher.flush();
+        if (last != null) {
+            batches.add(last);
+        }
+        return batches;
+    }
+
+    /**
+     * Groups pages into batches of at most a number of pages and a number of estimated tokens, as the pages arrive.
+     * A batch is complete as soon as it holds the maximum number of pages, or when the next page would take it
+     * over the maximum number of tokens. A page that exceeds the maximum number of tokens on its own is a batch
+     * of its own.
+     */
+    private static final class PageBatcher {
+
+        private final int pageLimit;
+        private final long tokenLimit;
+        private List<XPage> current = new ArrayList<>();
+        private long currentTokens;
+
+        /**
+         * @param maxPages  - the maximum number of pages per batch
+         * @param maxTokens - the maximum number of estimated tokens per batch, no limit if not positive
+         */
+        PageBatcher(int maxPages, int maxTokens) {
+            this.pageLimit = Math.max(1, maxPages);
+            this.tokenLimit = maxTokens > 0 ? maxTokens : Long.MAX_VALUE;
+        }
+
+        /**
+         * Add the next page.
+         *
+         * @param page - the page
+         * @return - the batch completed by the page, or null if none is complete yet
+         */
+        List<XPage> add(XPage page) {
+            int tokens = estimateTokens(page.getText());
+            List<XPage> complete = null;
+            if (!current.isEmpty() && currentTokens + tokens > tokenLimit) {
+                complete = take();
+            }
+            current.add(page);
+            currentTokens += tokens;
+            if (current.size() >= pageLimit) {
+                // never after a token cut, which leaves a single page and only happens with a page limit above one
+                complete = take();
+            }
+            return complete;
+        }
+
+        /**
+         * @return - the pages not in a complete batch yet, or null if there are none
+         */
+        List<XPage> flush() {
+            return current.isEmpty() ? null : take();
+        }
+
+        private List<XPage> take() {
+            List<XPage> batch = current;
+            current = new ArrayList<>();
+            currentTokens = 0;
+            return batch;
+        }
+    }
+
+    /**
+     * Estimate the number of tokens of a text, using the usual average of four characters per token.
+     *
+     * @param text - the text
+     * @return - the estimated number of tokens
+     */
+    private static int estimateTokens(String text) {
+        return text == null ? 0 : (text.length() + 3) / 4;
     }
 
     /**
@@ -117,91 +708,380 @@ public class VectorSearch {
      * @throws VectorSearchException - if an error occurs
      */
     public JSONObject search(UUID sessionId, String query) throws VectorSearchException {
+        return search(sessionId, query, null);
+    }
+
+    /**
+     * Search for a query in the pages of the vector space accepted by a filter.
+     *
+     * @param sessionId - the session id
+     * @param query     - the query
+     * @param filter    - the filter on documents, page numbers and metadata, or null to search every page
+     * @return - the search result
+     * @throws VectorSearchException - if an error occurs
+     */
+    public JSONObject search(UUID sessionId, String query, SearchFilter filter) throws VectorSearchException {
+        return search(sessionId, query, filter, SearchMode.VECTOR);
+    }
+
+    /**
+     * Search for a query in the pages of the vector space accepted by a filter.
+     *
+     * @param sessionId - the session id
+     * @param query     - the query
+     * @param filter    - the filter on documents, page numbers and metadata, or null to search every page
+     * @param mode      - whether to match the query by embedding, by terms or both, null for embedding
+     * @return - the search result
+     * @throws VectorSearchException - if an error occurs
+     */
+    public JSONObject search(UUID sessionId, String query, SearchFilter filter, SearchMode mode) throws VectorSearchException {
 
         if (sessionService.sessionExists(sessionId)) {
             if (query == null || query.isEmpty()) {
                 throw new VectorSearchException("Query is empty!");
             }
-            var session = sessionService.getSession(sessionId);
-            float[] embeddedQuery = null;
+            var searchMode = mode == null ? SearchMode.VECTOR : mode;
+            var session = useSession(sessionId);
             try {
-                embeddedQuery = embedderService.embed(query);
-            } catch (EmbedderException e) {
-                throw new VectorSearchException("Error embedding the query: " + e.getMessage(), e);
-            }
-            var docs = session.getDocuments();
-            List<VectorFloat<?>> vectorArray = new ArrayList<>();
-            List<PageInfo> pageInfoList = new ArrayList<>();
-
-            for (XDoc doc : docs) {
-                for (XPage page : doc.getPages()) {
-                    vectorArray.add(vts.createFloatVector(page.getVector()));
-                    pageInfoList.add(new PageInfo(doc.getId(), page.getPageNumber(), page.getText()));
+                float[] embeddedQuery = searchMode == SearchMode.LEXICAL ? null : embedQueries(List.of(query))[0];
+                var index = indexFor(session);
+                var snapshot = index.snapshot();
+                if (snapshot.size() == 0) {
+                    throw new VectorSearchException("No documents to search!");
                 }
+                return convertSearchResult(search(index, snapshot, query, embeddedQuery, filter, searchMode), index);
+            } finally {
+                session.release();
             }
 
-            if (vectorArray.isEmpty()) {
-                throw new VectorSearchException("No documents to search!");
+        } else {
+            throw new VectorSearchException("Session does not exist!");
+        }
+    }
+
+    /**
+     * Search for several queries in the vector space.
+     * The queries are embedded in one batch and searched against the same snapshot of the session index,
+     * so documents added while the batch runs do not change its results.
+     *
+     * @param sessionId - the session id
+     * @param queries   - the queries
+     * @param filter    - the filter applied to every query, or null to search every page
+     * @param mode      - whether to match the queries by embedding, by terms or both, null for embedding
+     * @param parallel  - whether to run the searches in parallel
+     * @return - the search results, one entry per query in the order of the queries
+     * @throws VectorSearchException - if an error occurs
+     */
+    public JSONObject searchBatch(UUID sessionId, List<String> queries, SearchFilter filter, SearchMode mode, boolean parallel) throws VectorSearchException {
+
+        if (!sessionService.sessionExists(sessionId)) {
+            throw new VectorSearchException("Session does not exist!");
+        }
+        if (queries == null || queries.isEmpty()) {
+            throw new VectorSearchException("Queries are empty!");
+        }
+        if (queries.stream().anyMatch(q -> q == null || q.isEmpty())) {
+            throw new VectorSearchException("Query is empty!");
+        }
+        var searchMode = mode == null ? SearchMode.VECTOR : mode;
+        var session = useSession(sessionId);
+        try {
+            return searchBatch(session, queries, filter, searchMode, parallel);
+        } finally {
+            session.release();
+        }
+    }
+
+    /**
+     * Search for several queries in a session used by the caller.
+     */
+    private JSONObject searchBatch(Session session, List<String> queries, SearchFilter filter, SearchMode searchMode, boolean parallel) throws VectorSearchException {
+        float[][] vectors = searchMode == SearchMode.LEXICAL ? new float[queries.size()][] : embedQueries(queries);
+
+        var index = indexFor(session);
+        var snapshot = index.snapshot();
+        if (snapshot.size() == 0) {
+            throw new VectorSearchException("No documents to search!");
+        }
+        SearchResult[] results = new SearchResult[queries.size()];
+        try {
+            IntStream range = IntStream.range(0, queries.size());
+            (parallel ? range.parallel() : range).forEach(i -> {
+                try {
+                    results[i] = search(index, snapshot, queries.get(i), vectors[i], filter, searchMode);
+                } catch (VectorSearchException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof VectorSearchException vse) {
+                throw vse;
             }
+            throw e;
+        }
 
-            int originalDimension = vectorArray.get(0).length();
-            RandomAccessVectorValues ravv = new ListRandomAccessVectorValues(vectorArray, originalDimension);
-            var vQuery = vts.createFloatVector(embeddedQuery);
-            BuildScoreProvider bsp = BuildScoreProvider.randomAccessScoreProvider(ravv, VectorSimilarityFunction.valueOf(similarityFunctionName));
+        JSONObject response = new JSONObject();
+        List<JSONObject> perQuery = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            JSONObject result = convertSearchResult(results[i], index);
+            result.put("query", queries.get(i));
+            perQuery.add(result);
+        }
+        response.put("queries", perQuery);
+        return response;
+    }
 
-            try (GraphIndexBuilder builder = new GraphIndexBuilder(bsp, ravv.dimension(), 16, 100, 1.2f, 1.2f)) {
-                OnHeapGraphIndex index = builder.build(ravv);
+    /**
+     * Embed search queries, serving repeated queries from the query cache.
+     * A single missing query is embedded on its own, several are embedded in one batch.
+     *
+     * @param queries - the queries
+     * @return - the query vectors, in the order of the queries
+     * @throws VectorSearchException - if the queries cannot be embedded
+     */
+    private float[][] embedQueries(List<String> queries) throws VectorSearchException {
+        float[][] vectors = new float[queries.size()][];
+        String modelId = queryCache != null ? embedderService.getModelId() : null;
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            vectors[i] = queryCache != null ? queryCache.get(modelId, queries.get(i)) : null;
+            if (vectors[i] == null) {
+                missing.add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return vectors;
+        }
+
+        float[][] embedded;
+        try {
+            if (missing.size() == 1) {
+                embedded = new float[][]{embedderService.embed(queries.get(missing.get(0)))};
+            } else {
+                embedded = embedderService.embedBatch(missing.stream().map(queries::get).toList());
+            }
+        } catch (EmbedderException e) {
+            throw new VectorSearchException("Error embedding the query: " + e.getMessage(), e);
+        }
+        if (embedded == null || embedded.length != missing.size()) {
+            throw new VectorSearchException(String.format("Expected %d query embeddings but got %d",
+                    missing.size(), embedded == null ? 0 : embedded.length));
+        }
+        for (int m = 0; m < missing.size(); m++) {
+            int position = missing.get(m);
+            vectors[position] = embedded[m];
+            if (queryCache != null && embedded[m] != null) {
+                queryCache.put(modelId, queries.get(position), embedded[m]);
+            }
+        }
+        return vectors;
+    }
+
+    /**
+     * Search a snapshot of a session index in the given mode.
+     * Hybrid searches fetch the candidates of both rankings and fuse them.
+     *
+     * @param index    - the session index
+     * @param snapshot - the snapshot of the index to search
+     * @param query    - the query text
+     * @param vector   - the query vector, null in lexical mode
+     * @param filter   - the filter, or null
+     * @param mode     - the search mode
+     * @return - the search result
+     * @throws VectorSearchException - if the search fails
+     */
+    private SearchResult search(SessionIndex index, SessionIndex.Snapshot snapshot, String query, float[] vector,
+                                SearchFilter filter, SearchMode mode) throws VectorSearchException {
+        return switch (mode) {
+            case VECTOR -> searchVectors(index, snapshot, vector, filter, topK);
+            case LEXICAL -> snapshot.searchLexical(query, topK, filter);
+            case HYBRID -> {
+                int candidates = Math.max(topK, hybridCandidates);
+                SearchResult vectorResult = searchVectors(index, snapshot, vector, filter, candidates);
+                SearchResult lexicalResult = snapshot.searchLexical(query, candidates, filter);
+                yield fusionMethod == RankFusion.Method.WEIGHTED
+                        ? RankFusion.weighted(vectorWeight, topK, vectorResult, lexicalResult)
+                        : RankFusion.reciprocalRank(rrfK, topK, vectorResult, lexicalResult);
+            }
+        };
+    }
+
+    /**
+     * Search a snapshot of a session index by vector, sampling the recall of compressed searches.
+     *
+     * @param index    - the session index
+     * @param snapshot - the snapshot of the index to search
+     * @param query    - the query vector
+     * @param filter   - the filter, or null
+     * @param count    - the number of results to return
+     * @return - the search result
+     * @throws VectorSearchException - if the search fails
+     */
+    private SearchResult searchVectors(SessionIndex index, SessionIndex.Snapshot snapshot, float[] query,
+                                       SearchFilter filter, int count) throws VectorSearchException {
+        SearchResult sr = snapshot.search(query, count, filter, true);
+        if (pqRecall != null && index.compressedSize() > 0 && ThreadLocalRandom.current().nextDouble() < recallSampleRate) {
+            pqRecall.record(recall(sr, snapshot.search(query, count, filter, false)));
+        }
+        return sr;
+    }
+
+    /**
+     * Compute the fraction of the exact results that the approximate search also returned.
+     *
+     * @param approximate - the result of the compressed search
+     * @param exact       - the result of the full-vector search
+     * @return - the recall, 1 when the exact search returned nothing
+     */
+    private static double recall(SearchResult approximate, SearchResult exact) {
+        if (exact.getNodes().length == 0) {
+            return 1.0;
+        }
+        Set<Integer> found = new HashSet<>();
+        for (SearchResult.NodeScore ns : approximate.getNodes()) {
+            found.add(ns.node);
+        }
+        long hits = Arrays.stream(exact.getNodes()).filter(ns -> found.contains(ns.node)).count();
+        return (double) hits / exact.getNodes().length;
+    }
+
+    /**
+     * Extracts the pages of a document, handing each page to the consumer as soon as it is extracted.
+     */
+    @FunctionalInterface
+    public interface PageProducer {
+        void produce(PageConsumer consumer) throws Exception;
+    }
+
+    /**
+     * Get a session and retain it, so that it is neither expired nor evicted until it is released.
+     * A session evicted between the lookup and the retain is looked up again, which loads it back
+     * from disk when it was spilled.
+     *
+     * @param sessionId - the session id
+     * @return - the retained session
+     * @throws VectorSearchException - if the session does not exist anymore
+     */
+    private Session useSession(UUID sessionId) throws VectorSearchException {
+        while (true) {
+            var session = sessionService.getSession(sessionId);
+            if (session == null) {
+                throw new VectorSearchException("Session does not exist!");
+            }
+            session.retain();
+            if (!session.isEvicted()) {
+                return session;
+            }
+            session.release();
+        }
+    }
+
+    /**
+     * Index a document, log it and add it to the session in one step under the session lock,
+     * so that snapshots and the write-ahead log always see the document whole.
+     *
+     * @return - the sequence number of the log record, to wait for with {@link #awaitDurable(long)}
+     * @throws VectorSearchException - if the session was ended meanwhile or the document cannot be indexed
+     */
+    private long publish(Session session, XDoc document) throws VectorSearchException {
+        synchronized (session) {
+            if (session.isEvicted()) {
+                throw new VectorSearchException("Session does not exist!");
+            }
+            indexFor(session).add(document);
+            long lsn = logDocument(session, document);
+            session.addDocument(document);
+            return lsn;
+        }
+    }
+
+    /**
+     * Append a document to the write-ahead log of the sessions. Callers hold the session lock.
+     */
+    private long logDocument(Session session, XDoc document) throws VectorSearchException {
+        try {
+            return sessionService.logDocument(session, document);
+        } catch (SessionServiceException e) {
+            throw new VectorSearchException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Wait for a document to be on disk, sharing the fsync with the other documents logged meanwhile.
+     */
+    private void awaitDurable(long lsn) throws VectorSearchException {
+        try {
+            sessionService.awaitDurable(lsn);
+        } catch (SessionServiceException e) {
+            throw new VectorSearchException(e.getMessage(), e);
+        }
+    }
 
-                try (GraphSearcher searcher = new GraphSearcher(index)) {
-                    SearchScoreProvider ssp = SearchScoreProvider.exact(vQuery, VectorSimilarityFunction.valueOf(similarityFunctionName), ravv);
-                    SearchResult sr = searcher.search(ssp, topK, Bits.ALL);
-                    return convertSearchResult(sr, pageInfoList);
+    /**
+     * Get the index of a session, building it from the session documents the first time it is used.
+     * The index is kept on the session and updated incrementally as documents are added.
+     *
+     * @param session - the session
+     * @return - the session index
+     * @throws VectorSearchException - if the documents cannot be indexed
+     */
+    private SessionIndex indexFor(Session session) throws VectorSearchException {
+        synchronized (session) {
+            var index = session.getIndex();
+            if (index == null) {
+                index = new SessionIndex(indexSettings());
+                for (XDoc doc : session.getDocuments()) {
+                    index.add(doc);
                 }
-            } catch (IOException e) {
-                throw new VectorSearchException("Error building the graph index: " + e.getMessage(), e);
+                session.setIndex(index);
             }
+            return index;
+        }
+    }
 
-        } else {
-            throw new VectorSearchException("Session does not exist!");
+    /**
+     * @return - the settings of new session indexes
+     */
+    private IndexSettings indexSettings() {
+        var settings = new IndexSettings();
+        settings.setSimilarityFunction(VectorSimilarityFunction.valueOf(similarityFunctionName));
+        settings.setExactScanThreshold(exactScanThreshold);
+        settings.setOnDiskThreshold(onDiskThreshold);
+        settings.setPqEnabled(pqEnabled);
+        if (pqEnabled) {
+            settings.setPqCompressionRatio(pqCompressionRatio);
+            settings.setPqMinVectors(pqMinVectors);
+            settings.setRerankDepth(rerankDepth);
         }
+        if (indexDir != null) {
+            settings.setDirectory(Path.of(indexDir));
+        }
+        return settings;
     }
 
     /**
      * Convert a search result to a JSON object.
      *
-     * @param sr   - the search result
-     * @param pageInfoList - the list of page info
+     * @param sr    - the search result
+     * @param index - the index the search ran against
      * @return - the JSON object
      */
-    private JSONObject convertSearchResult(SearchResult sr, List<PageInfo> pageInfoList) throws JSONException {
+    private JSONObject convertSearchResult(SearchResult sr, SessionIndex index) throws JSONException {
 
         JSONObject response = new JSONObject();
         List<JSONObject> results = new ArrayList<>();
 
         for (SearchResult.NodeScore ns : sr.getNodes()) {
-            PageInfo pageInfo = pageInfoList.get(ns.node);
+            IndexedPage page = index.getPage(ns.node);
             JSONObject result = new JSONObject();
-            result.put("docId", pageInfo.docId);
-            result.put("pageNumber", pageInfo.pageNumber);
+            result.put("docId", page.getDocId());
+            result.put("pageNumber", page.getPageNumber());
             result.put("score", ns.score);
-            result.put("text", pageInfo.text);
+            result.put("text", page.getText());
             results.add(result);
         }
 
         response.put("results", results);
         return response;
     }
-
-    private static class PageInfo {
-        UUID docId;
-        int pageNumber;
-        String text;
-
-        PageInfo(UUID docId, int pageNumber, String text) {
-            this.docId = docId;
-            this.pageNumber = pageNumber;
-            this.text = text;
-        }
-    }
 }
-
@@ -0,0 +1,113 @@
+package one.cax.doc_search;
+
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.doc_search.exception.EmbedderException;
+import one.cax.doc_search.service.AdaptiveConcurrencyLimiter;
+import one.cax.doc_search.service.ConcurrencyLimitedEmbedder;
+import one.cax.doc_search.service.Embedder;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+class AdaptiveConcurrencyLimiterTests {
+
+    @Test
+    void limitGrowsAboutOnePerRoundOfSuccesses() throws InterruptedException {
+        var limiter = new AdaptiveConcurrencyLimiter(2, 1, 4, 0.5);
+
+        long first = limiter.acquire();
+        long second = limiter.acquire();
+        assertEquals(2, limiter.getInFlight());
+        limiter.release(first, false);
+        limiter.release(second, false);
+        assertEquals(2, limiter.getLimit());
+
+        limiter.release(limiter.acquire(), false);
+        assertEquals(3, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+
+        for (int i = 0; i < 20; i++) {
+            limiter.release(limiter.acquire(), false);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    void throttledRoundCutsTheLimitOnce() throws InterruptedException {
+        var limiter = new AdaptiveConcurrencyLimiter(8, 1, 8, 0.5);
+        long[] permits = new long[4];
+        for (int i = 0; i < permits.length; i++) {
+            permits[i] = limiter.acquire();
+        }
+        for (long permit : permits) {
+            limiter.release(permit, true);
+        }
+
+        assertEquals(4, limiter.getLimit());
+        assertEquals(4, limiter.getThrottledCount());
+
+        long next = limiter.acquire();
+        limiter.release(next, true);
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    void callsWaitForALimitSlot() throws Exception {
+        var limiter = new AdaptiveConcurrencyLimiter(1, 1, 1, 0.5);
+        long permit = limiter.acquire();
+
+        var waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return limiter.acquire();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertThrows(TimeoutException.class, () -> waiting.get(100, TimeUnit.MILLISECONDS));
+
+        limiter.release(permit, false);
+        waiting.get(1, TimeUnit.SECONDS);
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    void rateLimitResponsesAreReportedAsThrottled() throws EmbedderException {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        var limiter = new AdaptiveConcurrencyLimiter(4, 1, 8, 0.5);
+        Embedder delegate = mock(Embedder.class);
+        HttpResponse response = mock(HttpResponse.class);
+        when(response.getStatusCode()).thenReturn(429);
+        when(delegate.embedBatch(anyList())).thenThrow(new HttpResponseException("Too Many Requests", response));
+        var embedder = new ConcurrencyLimitedEmbedder(delegate, limiter, meterRegistry);
+
+        var e = assertThrows(EmbedderException.class, () -> embedder.embedBatch(List.of("text")));
+        assertInstanceOf(HttpResponseException.class, e.getCause());
+
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(1.0, meterRegistry.get("embeddingThrottled").functionCounter().count());
+        assertEquals(2.0, meterRegistry.get("embeddingConcurrencyLimit").gauge().value());
+    }
+
+    @Test
+    void otherFailuresLeaveTheLimitUnchanged() throws EmbedderException {
+        var limiter = new AdaptiveConcurrencyLimiter(4, 1, 8, 0.5);
+        Embedder delegate = mock(Embedder.class);
+        when(delegate.embed("text")).thenThrow(new EmbedderException("bad input"));
+        var embedder = new ConcurrencyLimitedEmbedder(delegate, limiter, new SimpleMeterRegistry());
+
+        assertThrows(EmbedderException.class, () -> embedder.embed("text"));
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getThrottledCount());
+    }
+}
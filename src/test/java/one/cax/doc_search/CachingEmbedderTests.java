@@ -0,0 +1,117 @@
+package one.cax.doc_search;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.doc_search.cache.MappedVectorStore;
+import one.cax.doc_search.exception.EmbedderException;
+import one.cax.doc_search.service.CachingEmbedder;
+import one.cax.doc_search.service.Embedder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class CachingEmbedderTests {
+
+    @Mock
+    private Embedder delegate;
+
+    private MeterRegistry meterRegistry;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setUp() throws EmbedderException {
+        MockitoAnnotations.openMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        when(delegate.getModelId()).thenReturn("test-model");
+        when(delegate.embed(anyString())).thenAnswer(invocation -> vectorFor(invocation.getArgument(0)));
+        when(delegate.embedBatch(anyList())).thenAnswer(invocation -> {
+            List<String> texts = invocation.getArgument(0);
+            return texts.stream().map(CachingEmbedderTests::vectorFor).toArray(float[][]::new);
+        });
+    }
+
+    private static float[] vectorFor(String text) {
+        return new float[]{text.strip().length(), 1.0f, 2.0f};
+    }
+
+    @Test
+    void repeatedTextIsEmbeddedOnce() throws EmbedderException {
+        var embedder = new CachingEmbedder(delegate, 1024, null, meterRegistry);
+
+        float[] first = embedder.embed("some page text");
+        float[] second = embedder.embed("  some   page\ntext ");
+
+        assertArrayEquals(first, second);
+        verify(delegate, times(1)).embed(anyString());
+        assertEquals(1.0, meterRegistry.get("embeddingCacheMisses").counter().count());
+        assertEquals(1.0, meterRegistry.get("embeddingCacheHits").tag("tier", "memory").counter().count());
+    }
+
+    @Test
+    void batchOnlyEmbedsDistinctMisses() throws EmbedderException {
+        var embedder = new CachingEmbedder(delegate, 1024, null, meterRegistry);
+        embedder.embed("cached");
+
+        float[][] vectors = embedder.embedBatch(List.of("new", "cached", "new", "other"));
+
+        assertEquals(4, vectors.length);
+        assertArrayEquals(vectors[0], vectors[2]);
+        assertArrayEquals(vectorFor("cached"), vectors[1]);
+        verify(delegate).embedBatch(List.of("new", "other"));
+    }
+
+    @Test
+    void cachedVectorsCannotBeModifiedByCallers() throws EmbedderException {
+        var embedder = new CachingEmbedder(delegate, 1024, null, meterRegistry);
+        embedder.embed("text")[0] = 42.0f;
+
+        assertArrayEquals(vectorFor("text"), embedder.embed("text"));
+    }
+
+    @Test
+    void memoryTierEvictsLeastRecentlyUsed() throws EmbedderException {
+        // room for two vectors of three floats
+        var embedder = new CachingEmbedder(delegate, 24, null, meterRegistry);
+        embedder.embed("a");
+        embedder.embed("b");
+        embedder.embed("c");
+        embedder.embed("a");
+
+        verify(delegate, times(2)).embed("a");
+        assertEquals(2.0, meterRegistry.get("embeddingCacheEvictions").functionCounter().count());
+    }
+
+    @Test
+    void diskTierSurvivesRestart() throws EmbedderException, IOException {
+        Path file = tempDir.resolve("embeddings.bin");
+        try (var embedder = new CachingEmbedder(delegate, 1024, new MappedVectorStore(file, 4096), meterRegistry)) {
+            embedder.embed("persisted text");
+        }
+
+        try (var restarted = new CachingEmbedder(delegate, 1024, new MappedVectorStore(file, 4096), new SimpleMeterRegistry())) {
+            assertArrayEquals(vectorFor("persisted text"), restarted.embed("persisted text"));
+        }
+        verify(delegate, times(1)).embed(anyString());
+    }
+
+    @Test
+    void emptyTextIsPassedToDelegate() throws EmbedderException {
+        when(delegate.embed("")).thenThrow(new EmbedderException("Text cannot be null or empty"));
+        var embedder = new CachingEmbedder(delegate, 1024, null, meterRegistry);
+
+        assertThrows(EmbedderException.class, () -> embedder.embed(""));
+    }
+}
@@ -0,0 +1,125 @@
+package one.cax.doc_search;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.doc_search.exception.EmbedderException;
+import one.cax.doc_search.service.CoalescingEmbedder;
+import one.cax.doc_search.service.Embedder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+class CoalescingEmbedderTests {
+
+    @Mock
+    private Embedder delegate;
+
+    private MeterRegistry meterRegistry;
+    private CoalescingEmbedder embedder;
+    private ExecutorService callers;
+
+    @BeforeEach
+    void setUp() throws EmbedderException {
+        MockitoAnnotations.openMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        callers = Executors.newFixedThreadPool(8);
+        when(delegate.embedBatch(anyList())).thenAnswer(invocation -> {
+            List<String> texts = invocation.getArgument(0);
+            float[][] vectors = new float[texts.size()][];
+            for (int i = 0; i < texts.size(); i++) {
+                vectors[i] = new float[]{texts.get(i).length()};
+            }
+            return vectors;
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        callers.shutdownNow();
+        if (embedder != null) {
+            embedder.close();
+        }
+    }
+
+    @Test
+    void concurrentCallsAreMergedIntoOneBatch() throws Exception {
+        embedder = new CoalescingEmbedder(delegate, 500, 8, 1, meterRegistry);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<float[]>> results = new ArrayList<>();
+        for (int i = 1; i <= 8; i++) {
+            String text = "x".repeat(i);
+            results.add(callers.submit(() -> {
+                start.await();
+                return embedder.embed(text);
+            }));
+        }
+        start.countDown();
+
+        for (int i = 0; i < 8; i++) {
+            assertArrayEquals(new float[]{i + 1}, results.get(i).get());
+        }
+        verify(delegate, times(1)).embedBatch(anyList());
+        verify(delegate, never()).embed(anyString());
+        assertEquals(8.0, meterRegistry.get("coalescedEmbedBatchSize").summary().totalAmount());
+    }
+
+    @Test
+    void batchesAreCutAtTheSizeCap() throws Exception {
+        embedder = new CoalescingEmbedder(delegate, 500, 3, 2, meterRegistry);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<float[]>> results = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            results.add(callers.submit(() -> {
+                start.await();
+                return embedder.embed("text");
+            }));
+        }
+        start.countDown();
+        for (Future<float[]> result : results) {
+            assertArrayEquals(new float[]{4}, result.get());
+        }
+        verify(delegate, atLeast(2)).embedBatch(argThat(texts -> texts.size() <= 3));
+    }
+
+    @Test
+    void batchFailureIsReportedToEveryCaller() throws EmbedderException {
+        reset(delegate);
+        when(delegate.embedBatch(anyList())).thenThrow(new EmbedderException("rate limited"));
+        embedder = new CoalescingEmbedder(delegate, 1, 8, 1, meterRegistry);
+
+        var e = assertThrows(EmbedderException.class, () -> embedder.embed("text"));
+        assertEquals("rate limited", e.getMessage());
+        assertEquals(1.0, meterRegistry.get("coalescedEmbedBatchFailures").counter().count());
+    }
+
+    @Test
+    void closeFailsTheTextsOfTheBatchBeingCollected() throws Exception {
+        embedder = new CoalescingEmbedder(delegate, 10_000, 8, 1, meterRegistry);
+        Future<float[]> result = callers.submit(() -> embedder.embed("text"));
+        // the dispatcher takes the text and waits for more until the deadline
+        Thread.sleep(200);
+
+        embedder.close();
+
+        var e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertEquals("Embedder is closed", e.getCause().getMessage());
+        verify(delegate, never()).embedBatch(anyList());
+    }
+}
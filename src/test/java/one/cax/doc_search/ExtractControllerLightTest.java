@@ -3,20 +3,44 @@ package one.cax.doc_search;
 import one.cax.doc_search.controller.ExtractController;
 import one.cax.doc_search.exception.DocumentExtractionException;
 import one.cax.doc_search.exception.FileServiceException;
+import one.cax.doc_search.model.ExtractionJob;
+import one.cax.doc_search.model.NameUtils;
 import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
+import one.cax.doc_search.service.ExtractionJobService;
 import one.cax.doc_search.service.ExtractorEngine;
 import one.cax.doc_search.service.FileService;
+import one.cax.doc_search.service.PageConsumer;
+import one.cax.doc_search.service.UploadAdmission;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntConsumer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -28,6 +52,9 @@ class ExtractControllerLightTest {
     @Mock
     private FileService fileService;
 
+    @Mock
+    private ExtractionJobService extractionJobService;
+
     @InjectMocks
     private ExtractController extractController;
 
@@ -37,18 +64,19 @@ class ExtractControllerLightTest {
 
         MockitoAnnotations.openMocks(this);
         ReflectionTestUtils.setField(extractController, "tempFolder", "/tmp/");
+        ReflectionTestUtils.setField(extractController, "retryAfterSeconds", 30L);
 
     }
 
     @Test
     void uploadFileReturnsOkWhenFileIsNotEmpty() throws FileServiceException {
         MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
-        when(fileService.extractTextFrom(anyString())).thenReturn(new XDoc());
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenReturn(new XDoc());
 
         ResponseEntity<Object> response = extractController.uploadFile(file);
 
         assertEquals(HttpStatus.OK, response.getStatusCode());
-        verify(fileService, times(1)).extractTextFrom(anyString());
+        verify(fileService, times(1)).extractTextFrom(anyString(), any(IntConsumer.class));
     }
 
     @Test
@@ -59,40 +87,143 @@ class ExtractControllerLightTest {
 
         assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
         assertEquals("Please upload a file!", response.getBody());
-        verify(fileService, never()).extractTextFrom(anyString());
+        verify(fileService, never()).extractTextFrom(anyString(), any(IntConsumer.class));
     }
 
     @Test
     void uploadFileReturnsExpectationFailedWhenExceptionOccurs() throws FileServiceException {
         MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
-        when(fileService.extractTextFrom(anyString())).thenThrow(FileServiceException.class);
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenThrow(FileServiceException.class);
 
         ResponseEntity<Object> response = extractController.uploadFile(file);
 
         assertEquals(HttpStatus.EXPECTATION_FAILED, response.getStatusCode());
         assertEquals("Could not upload the file: test.pdf!", response.getBody());
-        verify(fileService, times(1)).extractTextFrom(anyString());
+        verify(fileService, times(1)).extractTextFrom(anyString(), any(IntConsumer.class));
     }
 
 
     @Test
     void uploadFileGeneratesUniqueFileName() throws FileServiceException {
         MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
-        when(fileService.extractTextFrom(anyString())).thenReturn(new XDoc());
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenReturn(new XDoc());
 
         extractController.uploadFile(file);
 
-        verify(fileService, times(1)).extractTextFrom(matches(".+\\.pdf$"));
+        verify(fileService, times(1)).extractTextFrom(matches(".+\\.pdf$"), any(IntConsumer.class));
     }
 
     @Test
     void uploadFileSavesFileToTempFolder() throws FileServiceException {
         MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
-        when(fileService.extractTextFrom(anyString())).thenReturn(new XDoc());
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenReturn(new XDoc());
+
+        extractController.uploadFile(file);
+
+        verify(fileService, times(1)).extractTextFrom(matches("^" + ReflectionTestUtils.getField(extractController, "tempFolder") + ".+\\.pdf$"), any(IntConsumer.class));
+    }
+
+    @Test
+    void uploadFileDeletesTempFileAfterExtraction() throws FileServiceException {
+        MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
+        List<String> paths = new ArrayList<>();
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenAnswer(invocation -> {
+            String path = invocation.getArgument(0);
+            assertTrue(Files.exists(Path.of(path)));
+            paths.add(path);
+            return new XDoc();
+        });
 
         extractController.uploadFile(file);
 
-        verify(fileService, times(1)).extractTextFrom(matches("^" + ReflectionTestUtils.getField(extractController, "tempFolder") + ".+\\.pdf$"));
+        assertEquals(1, paths.size());
+        assertFalse(Files.exists(Path.of(paths.get(0))));
+    }
+
+    @Test
+    void uploadFileCountsThePagesOnTheBudgetAsTheyAreExtracted() throws Exception {
+        MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
+        var admission = new UploadAdmission(1000, 100, 0, 0, 7, new SimpleMeterRegistry());
+        extractController.setUploadAdmission(admission);
+        List<Long> inFlight = new ArrayList<>();
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenAnswer(invocation -> {
+            IntConsumer pagesExtracted = invocation.getArgument(1);
+            pagesExtracted.accept(1);
+            inFlight.add(admission.pagesInFlight());
+            pagesExtracted.accept(1);
+            inFlight.add(admission.pagesInFlight());
+            return new XDoc();
+        });
+
+        assertEquals(HttpStatus.OK, extractController.uploadFile(file).getStatusCode());
+        assertEquals(List.of(1L, 2L), inFlight);
+        assertEquals(0, admission.pagesInFlight());
+    }
+
+    @Test
+    void uploadFileAsStreamWritesOneLinePerPage() throws Exception {
+        MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
+        doAnswer(invocation -> {
+            PageConsumer consumer = invocation.getArgument(2);
+            for (int i = 1; i <= 2; i++) {
+                XPage page = new XPage();
+                page.setPageNumber(i);
+                page.setText("page " + i);
+                consumer.accept(page);
+            }
+            return null;
+        }).when(fileService).extractTextFrom(anyString(), any(XDoc.class), any(PageConsumer.class));
+
+        ResponseEntity<Object> response = extractController.uploadFileAsStream(file);
+        var out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) response.getBody()).writeTo(out);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(MediaType.APPLICATION_NDJSON, response.getHeaders().getContentType());
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+        assertEquals(1, new JSONObject(lines[0]).getInt(NameUtils.PAGE_NUMBER));
+        assertEquals("page 2", new JSONObject(lines[1]).getString(NameUtils.PAGE_TEXT));
+    }
+
+    @Test
+    void uploadFileAsStreamEndsWithErrorLineWhenExtractionFails() throws Exception {
+        MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
+        doThrow(new FileServiceException("broken")).when(fileService).extractTextFrom(anyString(), any(XDoc.class), any(PageConsumer.class));
+
+        ResponseEntity<Object> response = extractController.uploadFileAsStream(file);
+        var out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) response.getBody()).writeTo(out);
+
+        JSONObject last = new JSONObject(out.toString(StandardCharsets.UTF_8).trim());
+        assertEquals("Could not upload the file: test.pdf!", last.getString("error"));
+    }
+
+    @Test
+    void uploadFileAsStreamEndsWithErrorLineWhenInterrupted() throws Exception {
+        MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
+        doAnswer(invocation -> {
+            PageConsumer consumer = invocation.getArgument(2);
+            XPage page = new XPage();
+            page.setPageNumber(1);
+            page.setText("page 1");
+            consumer.accept(page);
+            throw new InterruptedException();
+        }).when(fileService).extractTextFrom(anyString(), any(XDoc.class), any(PageConsumer.class));
+
+        ResponseEntity<Object> response = extractController.uploadFileAsStream(file);
+        var out = new ByteArrayOutputStream();
+        try {
+            ((StreamingResponseBody) response.getBody()).writeTo(out);
+        } finally {
+            // clear the flag the body restores
+            assertTrue(Thread.interrupted());
+        }
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("page 1", new JSONObject(lines[0]).getString(NameUtils.PAGE_TEXT));
+        assertEquals("An error occurred while processing the file: test.pdf!", new JSONObject(lines[1]).getString("error"));
     }
 
     @Test
@@ -105,4 +236,87 @@ class ExtractControllerLightTest {
         assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, response.getStatusCode());
         assertEquals("An error occurred while processing the file: test.pdf!", response.getBody());
     }
+
+    @Test
+    void submitJobReturnsAcceptedWithTheJob() {
+        MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
+        ExtractionJob job = new ExtractionJob("test.pdf");
+        when(extractionJobService.submit(any(Path.class), eq("test.pdf"))).thenReturn(job);
+
+        ResponseEntity<Object> response = extractController.submitJob(file);
+
+        assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+        assertEquals("/extract/jobs/" + job.getJobId(), response.getHeaders().getFirst(HttpHeaders.LOCATION));
+        JSONObject body = new JSONObject((String) response.getBody());
+        assertEquals(job.getJobId().toString(), body.getString("jobId"));
+        assertEquals("QUEUED", body.getString("status"));
+    }
+
+    @Test
+    void submitJobReturnsServiceUnavailableWhenTheQueueIsFull() {
+        MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
+        when(extractionJobService.submit(any(Path.class), anyString())).thenThrow(new RejectedExecutionException());
+
+        ResponseEntity<Object> response = extractController.submitJob(file);
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+        assertEquals("30", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+    }
+
+    @Test
+    void getJobPagesReturnsTheRequestedRange() {
+        ExtractionJob job = new ExtractionJob("test.pdf");
+        job.running();
+        job.start(3);
+        for (int i = 1; i <= 3; i++) {
+            XPage page = new XPage();
+            page.setPageNumber(i);
+            page.setText("page " + i);
+            job.addPage(page);
+        }
+        job.complete("title");
+        when(extractionJobService.getJob(job.getJobId())).thenReturn(job);
+
+        JSONObject progress = new JSONObject((String) extractController.getJob(job.getJobId()).getBody());
+        JSONObject first = new JSONObject((String) extractController.getJobPages(job.getJobId(), 0, 2).getBody());
+        JSONObject last = new JSONObject((String) extractController.getJobPages(job.getJobId(), 2, 2).getBody());
+
+        assertEquals("COMPLETED", progress.getString("status"));
+        assertEquals(3, progress.getInt("pagesDone"));
+        assertEquals(3, progress.getInt("totalPages"));
+        assertEquals(2, first.getJSONArray(NameUtils.DOC_PAGES).length());
+        assertEquals(2, first.getInt("nextOffset"));
+        assertEquals("page 3", last.getJSONArray(NameUtils.DOC_PAGES).getJSONObject(0).getString(NameUtils.PAGE_TEXT));
+        assertFalse(last.has("nextOffset"));
+    }
+
+    @Test
+    void getJobReturnsNotFoundForUnknownJobs() {
+        UUID jobId = UUID.randomUUID();
+
+        assertEquals(HttpStatus.NOT_FOUND, extractController.getJob(jobId).getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, extractController.getJobPages(jobId, 0, 10).getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, extractController.cancelJob(jobId).getStatusCode());
+    }
+
+    @Test
+    void uploadFileReturnsTooManyRequestsWhenTheBudgetIsUsedUp() throws Exception {
+        MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
+        var admission = new UploadAdmission(10, 100, 0, 0, 7, new SimpleMeterRegistry());
+        extractController.setUploadAdmission(admission);
+
+        try (UploadAdmission.Permit held = admission.acquire(10)) {
+            ResponseEntity<Object> response = extractController.uploadFile(file);
+            ResponseEntity<Object> streamed = extractController.uploadFileAsStream(file);
+
+            assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+            assertEquals("7", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+            assertEquals(HttpStatus.TOO_MANY_REQUESTS, streamed.getStatusCode());
+        }
+        verify(fileService, never()).extractTextFrom(anyString(), any(IntConsumer.class));
+
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenReturn(new XDoc());
+        assertEquals(HttpStatus.OK, extractController.uploadFile(file).getStatusCode());
+        assertEquals(0, admission.bytesInFlight());
+    }
 }
@@ -7,6 +7,7 @@ import one.cax.doc_search.security.JwtTokenProvider;
 import one.cax.doc_search.security.JwtTokenProviderException;
 import one.cax.doc_search.security.JwtsWrapper;
 import one.cax.doc_search.security.SecurityConfig;
+import one.cax.doc_search.service.ExtractionJobService;
 import one.cax.doc_search.service.ExtractorEngine;
 import one.cax.doc_search.service.FileService;
 import org.junit.jupiter.api.BeforeEach;
@@ -36,6 +37,7 @@ import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.function.IntConsumer;
 
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.*;
@@ -57,6 +59,9 @@ class ExtractControllerTest {
     @MockBean
     private ExtractorEngine extractorEngine;
 
+    @MockBean
+    private ExtractionJobService extractionJobService;
+
     @InjectMocks
     private ExtractController extractController;
     @Mock
@@ -106,7 +111,7 @@ class ExtractControllerTest {
     void endpointReturnsUnauthorized() throws Exception {
         MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
 
-        when(fileService.extractTextFrom(anyString())).thenReturn(new XDoc());
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenReturn(new XDoc());
         mockMvc.perform(multipart("/extract/upload")
                         .file(file)
                         .contentType(MediaType.MULTIPART_FORM_DATA))
@@ -119,7 +124,8 @@ class ExtractControllerTest {
 
         XDoc mockXDoc = new XDoc();
         when(extractorEngine.extractTextFromPDF(any(byte[].class))).thenReturn(mockXDoc);
-        when(fileService.extractTextFrom(any(byte[].class), eq("application/pdf"))).thenReturn(mockXDoc);
+        when(fileService.extractTextFrom(any(byte[].class), eq("application/pdf"), any(IntConsumer.class))).thenReturn(mockXDoc);
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenReturn(mockXDoc);
 
         String jwtToken = generateToken("testUser");
 
@@ -140,7 +146,7 @@ class ExtractControllerTest {
     @Test
     void endpointReturnsUnauthorizedWithInvalidJwt() throws Exception {
         MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", TestUtils.createPdf("test data"));
-        when(fileService.extractTextFrom(anyString())).thenReturn(new XDoc());
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenReturn(new XDoc());
 
         String jwtToken = generateToken("testUser");
 
@@ -155,7 +161,7 @@ class ExtractControllerTest {
     @Test
     void endpointReturnsUnauthorizedWithExpiredJwt() throws Exception {
         MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", TestUtils.createPdf("test data"));
-        when(fileService.extractTextFrom(anyString())).thenReturn(new XDoc());
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenReturn(new XDoc());
 
         String jwtToken = Jwts.builder()
                 .setSubject("testUser")
@@ -174,7 +180,7 @@ class ExtractControllerTest {
     @Test
     void endpointReturnsUnauthorizedWithNullHeader() throws Exception {
         MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", TestUtils.createPdf("test data"));
-        when(fileService.extractTextFrom(anyString())).thenReturn(new XDoc());
+        when(fileService.extractTextFrom(anyString(), any(IntConsumer.class))).thenReturn(new XDoc());
 
         mockMvc.perform(multipart("/extract/upload")
                         .file(file)
@@ -0,0 +1,109 @@
+package one.cax.doc_search;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.doc_search.cache.ExtractionCache;
+import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExtractionCacheTests {
+
+    @TempDir
+    Path directory;
+
+    static XDoc document(String title, String... texts) {
+        var document = new XDoc();
+        document.setDocTitle(title);
+        document.setFilename("file.pdf");
+        List<XPage> pages = new ArrayList<>();
+        for (int i = 0; i < texts.length; i++) {
+            var page = new XPage();
+            page.setPageNumber(i + 1);
+            page.setText(texts[i]);
+            pages.add(page);
+        }
+        document.setPages(pages);
+        return document;
+    }
+
+    @Test
+    void hitsReturnNewCopiesOfTheDocument() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var cache = new ExtractionCache(1 << 20, 1 << 20, null, 0, registry);
+        XDoc original = document("title", "first page", "second page");
+
+        assertNull(cache.get("a"));
+        cache.put("a", original);
+        XDoc first = cache.get("a");
+        XDoc second = cache.get("a");
+
+        assertEquals("title", first.getDocTitle());
+        assertEquals("file.pdf", first.getFilename());
+        assertEquals(2, first.getTotalPages());
+        assertEquals("second page", first.getPages().get(1).getText());
+        assertNotEquals(original.getId(), first.getId());
+        assertNotEquals(first.getId(), second.getId());
+        first.getPages().get(0).setText("changed");
+        assertEquals("first page", cache.get("a").getPages().get(0).getText());
+        assertEquals(3, registry.get("extractionCacheHits").tag("tier", "memory").counter().count());
+        assertEquals(1, registry.get("extractionCacheMisses").counter().count());
+    }
+
+    @Test
+    void entriesLargerThanTheMaximumAreNotCached() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var cache = new ExtractionCache(1 << 20, 64, null, 0, registry);
+        var random = new java.util.Random(7);
+        var text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+
+        cache.put("big", document("title", text.toString()));
+
+        assertEquals(0, cache.size());
+        assertNull(cache.get("big"));
+        assertEquals(1, registry.get("extractionCacheSkipped").counter().count());
+    }
+
+    @Test
+    void diskTierSurvivesANewCache() throws Exception {
+        var cache = new ExtractionCache(1 << 20, 1 << 20, directory, 1 << 20, new SimpleMeterRegistry());
+        cache.put("a", document("on disk", "page"));
+        assertTrue(cache.diskBytes() > 0);
+
+        var registry = new SimpleMeterRegistry();
+        var reopened = new ExtractionCache(1 << 20, 1 << 20, directory, 1 << 20, registry);
+        XDoc document = reopened.get("a");
+
+        assertEquals("on disk", document.getDocTitle());
+        assertEquals("page", document.getPages().get(0).getText());
+        assertEquals(1, registry.get("extractionCacheHits").tag("tier", "disk").counter().count());
+        assertEquals(cache.diskBytes(), reopened.diskBytes());
+    }
+
+    @Test
+    void diskTierIsTrimmedToItsMaximumSize() throws Exception {
+        var probe = new ExtractionCache(1 << 20, 1 << 20, directory.resolve("probe"), 1 << 20, new SimpleMeterRegistry());
+        probe.put("probe", document("title", "page"));
+        long entrySize = probe.diskBytes();
+
+        var cache = new ExtractionCache(0, 1 << 20, directory.resolve("cache"), entrySize * 2, new SimpleMeterRegistry());
+        cache.put("a", document("title", "page"));
+        Files.setLastModifiedTime(directory.resolve("cache").resolve("a.json.gz"), java.nio.file.attribute.FileTime.fromMillis(1000));
+        cache.put("b", document("title", "page"));
+        cache.put("c", document("title", "page"));
+
+        assertTrue(cache.diskBytes() <= entrySize * 2);
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+    }
+}
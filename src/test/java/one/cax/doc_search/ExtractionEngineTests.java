@@ -4,10 +4,17 @@ import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import one.cax.doc_search.exception.DocumentExtractionException;
 import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
 import one.cax.doc_search.service.ExtractorEngine;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class ExtractionEngineTests {
@@ -54,6 +61,102 @@ class ExtractionEngineTests {
 
     }
 
+    @Test
+    void testExtractTextFromPDF_ParallelKeepsPageOrder() throws DocumentExtractionException {
+        String[] contents = new String[10];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = "content of page " + (i + 1);
+        }
+        byte[] fileInBytes = TestUtils.createMultiPagePdf(contents);
+
+        ExtractorEngine parallelEngine = new ExtractorEngine(meterRegistry, 3, 2);
+        try {
+            XDoc parallel = parallelEngine.extractTextFromPDF(fileInBytes);
+            XDoc sequential = new ExtractorEngine(meterRegistry).extractTextFromPDF(fileInBytes);
+
+            assertEquals(contents.length, parallel.getTotalPages());
+            for (int i = 0; i < contents.length; i++) {
+                assertEquals(i + 1, parallel.getPages().get(i).getPageNumber());
+                assertTrue(parallel.getPages().get(i).getText().contains(contents[i]));
+                assertEquals(sequential.getPages().get(i).getText(), parallel.getPages().get(i).getText());
+            }
+        } finally {
+            parallelEngine.shutdown();
+        }
+    }
+
+    @Test
+    void testExtractTextFromPDF_CountsPagesAsTheyAreExtracted() throws DocumentExtractionException {
+        String[] contents = new String[10];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = "content of page " + (i + 1);
+        }
+        byte[] fileInBytes = TestUtils.createMultiPagePdf(contents);
+
+        ExtractorEngine parallelEngine = new ExtractorEngine(meterRegistry, 3, 2);
+        try {
+            var counted = new AtomicInteger();
+            var calls = new AtomicInteger();
+            parallelEngine.extractTextFromPDF(fileInBytes, count -> {
+                counted.addAndGet(count);
+                calls.incrementAndGet();
+            });
+
+            assertEquals(contents.length, counted.get());
+            assertEquals(contents.length, calls.get());
+        } finally {
+            parallelEngine.shutdown();
+        }
+    }
+
+    @Test
+    void testExtractTextFromPDF_StreamsPagesInOrder() throws DocumentExtractionException, InterruptedException {
+        String[] contents = {"first page", "second page", "third page"};
+        byte[] fileInBytes = TestUtils.createMultiPagePdf(contents);
+        ExtractorEngine extractorEngine = new ExtractorEngine(meterRegistry);
+
+        XDoc streamed = new XDoc();
+        List<XPage> pages = new ArrayList<>();
+        extractorEngine.extractTextFromPDF(fileInBytes, streamed, pages::add);
+        XDoc extracted = extractorEngine.extractTextFromPDF(fileInBytes);
+
+        assertEquals(extracted.getDocTitle(), streamed.getDocTitle());
+        assertEquals(contents.length, pages.size());
+        for (int i = 0; i < contents.length; i++) {
+            assertEquals(i + 1, pages.get(i).getPageNumber());
+            assertEquals(extracted.getPages().get(i).getText(), pages.get(i).getText());
+        }
+    }
+
+    @Test
+    void testExtractTextFromPDF_FileOnDiskWithScratchFile() throws Exception {
+        String[] contents = {"first page on disk", "second page on disk"};
+        byte[] fileInBytes = TestUtils.createMultiPagePdf(contents);
+        Path file = Files.createTempFile("extract", ".pdf");
+        ExtractorEngine scratchEngine = new ExtractorEngine(meterRegistry, 1, Integer.MAX_VALUE, 0);
+        try {
+            Files.write(file, fileInBytes);
+
+            XDoc fromFile = scratchEngine.extractTextFromPDF(file);
+            XDoc fromBytes = new ExtractorEngine(meterRegistry).extractTextFromPDF(fileInBytes);
+
+            assertEquals(fromBytes.getDocTitle(), fromFile.getDocTitle());
+            assertEquals(contents.length, fromFile.getTotalPages());
+            for (int i = 0; i < contents.length; i++) {
+                assertEquals(fromBytes.getPages().get(i).getText(), fromFile.getPages().get(i).getText());
+            }
+        } finally {
+            scratchEngine.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void testExtractTextFromPDF_MissingFile() {
+        ExtractorEngine extractorEngine = new ExtractorEngine(meterRegistry);
+        assertThrows(DocumentExtractionException.class, () -> extractorEngine.extractTextFromPDF(Path.of("/nonexistent/missing.pdf")));
+    }
+
     @Test
     void testExtractTextFromPDF_Invalid() {
         ExtractorEngine extractorEngine = new ExtractorEngine(meterRegistry);
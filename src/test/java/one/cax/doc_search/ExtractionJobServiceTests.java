@@ -0,0 +1,117 @@
+package one.cax.doc_search;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.doc_search.model.ExtractionJob;
+import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.service.ExtractionJobService;
+import one.cax.doc_search.service.ExtractorEngine;
+import one.cax.doc_search.service.FileService;
+import one.cax.doc_search.service.PageConsumer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class ExtractionJobServiceTests {
+
+    @TempDir
+    Path directory;
+
+    private ExtractionJobService service;
+
+    @AfterEach
+    void tearDown() {
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    private static void awaitFinished(ExtractionJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!job.isFinished() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(job.isFinished());
+    }
+
+    @Test
+    void jobsExtractFilesInTheBackground() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        service = new ExtractionJobService(new FileService(new ExtractorEngine(registry)), 1, 4, 3600, registry);
+        Path file = Files.write(directory.resolve("upload.pdf"), TestUtils.createMultiPagePdf(new String[]{"first page", "second page", "third page"}));
+
+        ExtractionJob job = service.submit(file, "upload.pdf");
+        awaitFinished(job);
+
+        assertSame(job, service.getJob(job.getJobId()));
+        assertEquals(ExtractionJob.Status.COMPLETED, job.getStatus());
+        assertEquals(3, job.getTotalPages());
+        assertEquals(3, job.getPagesDone());
+        assertTrue(job.getPages(1, 1).get(0).getText().contains("second page"));
+        // the worker deletes the file right after the job finished
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (Files.exists(file) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(Files.exists(file));
+        assertEquals(1, registry.get("extractionJobLatency").tag("outcome", "completed").timer().count());
+    }
+
+    @Test
+    void failedJobsReportAnError() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        service = new ExtractionJobService(new FileService(new ExtractorEngine(registry)), 1, 4, 3600, registry);
+        Path file = Files.write(directory.resolve("broken.pdf"), "not a pdf".getBytes());
+
+        ExtractionJob job = service.submit(file, "broken.pdf");
+        awaitFinished(job);
+
+        assertEquals(ExtractionJob.Status.FAILED, job.getStatus());
+        assertEquals("Could not extract the file: broken.pdf!", job.getError());
+        assertFalse(Files.exists(file));
+        assertEquals(1, registry.get("extractionJobLatency").tag("outcome", "failed").timer().count());
+    }
+
+    @Test
+    void jobsAreRejectedWhenTheQueueIsFull() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        FileService fileService = mock(FileService.class);
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            return null;
+        }).when(fileService).extractTextFrom(anyString(), any(XDoc.class), any(PageConsumer.class));
+        service = new ExtractionJobService(fileService, 1, 1, 3600, registry);
+
+        ExtractionJob running = service.submit(Files.createFile(directory.resolve("a.pdf")), "a.pdf");
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        ExtractionJob queued = service.submit(Files.createFile(directory.resolve("b.pdf")), "b.pdf");
+        Path rejectedFile = Files.createFile(directory.resolve("c.pdf"));
+
+        assertThrows(RejectedExecutionException.class, () -> service.submit(rejectedFile, "c.pdf"));
+        assertFalse(Files.exists(rejectedFile));
+        assertEquals(1, service.queueDepth());
+        assertEquals(1, registry.get("extractionJobQueueDepth").gauge().value());
+        assertEquals(1, registry.get("extractionJobsRejected").counter().count());
+
+        assertTrue(service.cancel(queued.getJobId()));
+        assertNull(service.getJob(queued.getJobId()));
+        assertFalse(Files.exists(directory.resolve("b.pdf")));
+        release.countDown();
+        awaitFinished(running);
+        assertEquals(ExtractionJob.Status.COMPLETED, running.getStatus());
+    }
+}
@@ -0,0 +1,66 @@
+package one.cax.doc_search;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.doc_search.cache.ExtractionCache;
+import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
+import one.cax.doc_search.service.ExtractorEngine;
+import one.cax.doc_search.service.FileService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class FileServiceTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void identicalFilesAreExtractedOnce() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        ExtractorEngine engine = spy(new ExtractorEngine(registry));
+        var fileService = new FileService(engine);
+        fileService.setExtractionCache(new ExtractionCache(1 << 20, 1 << 20, null, 0, registry));
+
+        byte[] pdf = TestUtils.createMultiPagePdf(new String[]{"first page", "second page"});
+        Path upload = Files.write(directory.resolve("upload.pdf"), pdf);
+        Path sameContent = Files.write(directory.resolve("again.pdf"), pdf);
+
+        XDoc first = fileService.extractTextFrom(upload.toString());
+        XDoc second = fileService.extractTextFrom(sameContent.toString());
+        List<XPage> streamed = new ArrayList<>();
+        XDoc third = new XDoc();
+        fileService.extractTextFrom(upload.toString(), third, streamed::add);
+
+        verify(engine, times(1)).extractTextFromPDF(any(Path.class), any(IntConsumer.class));
+        assertEquals(first.getDocTitle(), second.getDocTitle());
+        assertEquals(first.getDocTitle(), third.getDocTitle());
+        assertEquals(2, streamed.size());
+        assertEquals(first.getPages().get(1).getText(), streamed.get(1).getText());
+        assertNotEquals(first.getId(), second.getId());
+    }
+
+    @Test
+    void streamedExtractionsAreCachedWithoutTheConsumerChanges() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        ExtractorEngine engine = spy(new ExtractorEngine(registry));
+        var fileService = new FileService(engine);
+        fileService.setExtractionCache(new ExtractionCache(1 << 20, 1 << 20, null, 0, registry));
+        Path upload = Files.write(directory.resolve("upload.pdf"), TestUtils.createMultiPagePdf(new String[]{"only page"}));
+
+        fileService.extractTextFrom(upload.toString(), new XDoc(), page -> page.setVector(new float[]{1f, 2f}));
+        XDoc cached = fileService.extractTextFrom(upload.toString());
+
+        verify(engine, never()).extractTextFromPDF(any(Path.class), any(IntConsumer.class));
+        assertNull(cached.getPages().get(0).getVector());
+        assertTrue(cached.getPages().get(0).getText().contains("only page"));
+    }
+}
@@ -0,0 +1,64 @@
+package one.cax.doc_search;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.doc_search.cache.QueryEmbeddingCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryEmbeddingCacheTests {
+
+    private MeterRegistry meterRegistry;
+    private AtomicLong now;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        now = new AtomicLong();
+    }
+
+    @Test
+    void repeatedQueriesAreServedFromTheCache() {
+        var cache = new QueryEmbeddingCache(10, Duration.ofMinutes(5), meterRegistry, now::get);
+
+        assertNull(cache.get("model", "what is the refund policy?"));
+        cache.put("model", "what is the refund policy?", new float[]{1f, 2f});
+
+        assertArrayEquals(new float[]{1f, 2f}, cache.get("model", "  what is  the refund policy? "));
+        assertNull(cache.get("other-model", "what is the refund policy?"));
+        assertEquals(1.0 / 3, cache.hitRatio(), 1e-9);
+        assertEquals(1.0 / 3, meterRegistry.get("queryEmbeddingCacheHitRatio").gauge().value(), 1e-9);
+        assertEquals(1.0, meterRegistry.get("queryEmbeddingCacheHits").counter().count());
+    }
+
+    @Test
+    void entriesExpireAfterTheirTimeToLive() {
+        var cache = new QueryEmbeddingCache(10, Duration.ofSeconds(60), meterRegistry, now::get);
+        cache.put("model", "query", new float[]{1f});
+
+        now.addAndGet(Duration.ofSeconds(59).toNanos());
+        assertNotNull(cache.get("model", "query"));
+
+        now.addAndGet(Duration.ofSeconds(1).toNanos());
+        assertNull(cache.get("model", "query"));
+        assertEquals(1.0, meterRegistry.get("queryEmbeddingCacheEvictions").functionCounter().count());
+    }
+
+    @Test
+    void leastRecentlyUsedQueriesAreEvicted() {
+        var cache = new QueryEmbeddingCache(2, Duration.ofMinutes(5), meterRegistry, now::get);
+        cache.put("model", "first", new float[]{1f});
+        cache.put("model", "second", new float[]{2f});
+        cache.get("model", "first");
+        cache.put("model", "third", new float[]{3f});
+
+        assertNotNull(cache.get("model", "first"));
+        assertNull(cache.get("model", "second"));
+        assertNotNull(cache.get("model", "third"));
+    }
+}
@@ -0,0 +1,45 @@
+package one.cax.doc_search;
+
+import io.github.jbellis.jvector.graph.SearchResult;
+import one.cax.doc_search.index.RankFusion;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RankFusionTests {
+
+    static SearchResult ranking(int[] nodes, float[] scores) {
+        var nodeScores = new SearchResult.NodeScore[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            nodeScores[i] = new SearchResult.NodeScore(nodes[i], scores[i]);
+        }
+        return new SearchResult(nodeScores, nodes.length, 0, nodes.length > 0 ? scores[nodes.length - 1] : 0f);
+    }
+
+    @Test
+    void reciprocalRankFavoursPagesInBothRankings() {
+        var vector = ranking(new int[]{1, 2, 3}, new float[]{0.9f, 0.8f, 0.7f});
+        var lexical = ranking(new int[]{3, 4}, new float[]{12f, 3f});
+
+        SearchResult fused = RankFusion.reciprocalRank(60, 3, vector, lexical);
+
+        assertEquals(3, fused.getNodes().length);
+        assertEquals(3, fused.getNodes()[0].node);
+        assertEquals(1f / 63 + 1f / 61, fused.getNodes()[0].score, 1e-6);
+        assertEquals(1, fused.getNodes()[1].node);
+    }
+
+    @Test
+    void weightedFusionNormalizesScores() {
+        var vector = ranking(new int[]{1, 2}, new float[]{0.9f, 0.1f});
+        var lexical = ranking(new int[]{2, 1}, new float[]{20f, 10f});
+
+        SearchResult lexicalFirst = RankFusion.weighted(0.3f, 2, vector, lexical);
+        assertEquals(2, lexicalFirst.getNodes()[0].node);
+        assertEquals(0.7f, lexicalFirst.getNodes()[0].score, 1e-6);
+
+        SearchResult vectorFirst = RankFusion.weighted(0.8f, 2, vector, lexical);
+        assertEquals(1, vectorFirst.getNodes()[0].node);
+        assertEquals(0.8f, vectorFirst.getNodes()[0].score, 1e-6);
+    }
+}
@@ -0,0 +1,279 @@
+package one.cax.doc_search;
+
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import one.cax.doc_search.exception.VectorSearchException;
+import one.cax.doc_search.index.IndexSettings;
+import one.cax.doc_search.index.SessionIndex;
+import one.cax.doc_search.model.SearchFilter;
+import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionIndexTests {
+
+    private SessionIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new SessionIndex(VectorSimilarityFunction.EUCLIDEAN);
+    }
+
+    static XDoc createDoc(float[]... vectors) {
+        XDoc doc = new XDoc();
+        List<XPage> pages = new ArrayList<>();
+        for (int i = 0; i < vectors.length; i++) {
+            XPage page = new XPage();
+            page.setPageNumber(i + 1);
+            page.setText("page " + (i + 1));
+            page.setVector(vectors[i]);
+            pages.add(page);
+        }
+        doc.setPages(pages);
+        return doc;
+    }
+
+    @Test
+    void searchReturnsClosestPage() throws VectorSearchException {
+        XDoc doc = createDoc(new float[]{1f, 0f, 0f}, new float[]{0f, 1f, 0f}, new float[]{0f, 0f, 1f});
+        assertEquals(3, index.add(doc));
+
+        SearchResult sr = index.search(new float[]{0f, 0.9f, 0.1f}, 1);
+
+        assertEquals(1, sr.getNodes().length);
+        var page = index.getPage(sr.getNodes()[0].node);
+        assertEquals(doc.getId(), page.getDocId());
+        assertEquals(2, page.getPageNumber());
+    }
+
+    @Test
+    void documentsAddedAfterSearchAreVisible() throws VectorSearchException {
+        index.add(createDoc(new float[]{1f, 0f, 0f}));
+        index.search(new float[]{1f, 0f, 0f}, 1);
+
+        XDoc second = createDoc(new float[]{0f, 0f, 1f});
+        index.add(second);
+
+        SearchResult sr = index.search(new float[]{0f, 0f, 1f}, 1);
+        assertEquals(2, index.size());
+        assertEquals(second.getId(), index.getPage(sr.getNodes()[0].node).getDocId());
+    }
+
+    @Test
+    void pagesWithoutVectorsAreSkipped() throws VectorSearchException {
+        XDoc doc = createDoc(new float[]{1f, 0f, 0f}, null);
+        assertEquals(1, index.add(doc));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void dimensionMismatchThrows() throws VectorSearchException {
+        index.add(createDoc(new float[]{1f, 0f, 0f}));
+        assertThrows(VectorSearchException.class, () -> index.add(createDoc(new float[]{1f, 0f})));
+        assertThrows(VectorSearchException.class, () -> index.search(new float[]{1f, 0f}, 1));
+    }
+
+    @Test
+    void largeIndexMovesSegmentsToDisk(@TempDir Path tempDir) throws VectorSearchException, IOException {
+        var settings = new IndexSettings();
+        settings.setOnDiskThreshold(2);
+        settings.setDirectory(tempDir);
+        var diskIndex = new SessionIndex(settings);
+
+        XDoc doc = createDoc(new float[]{1f, 0f, 0f}, new float[]{0f, 1f, 0f}, new float[]{0f, 0f, 1f},
+                new float[]{1f, 1f, 0f}, new float[]{0f, 1f, 1f});
+        diskIndex.add(doc);
+
+        assertEquals(5, diskIndex.size());
+        assertEquals(4, diskIndex.onDiskSize());
+        assertNull(doc.getPages().get(0).getVector());
+        assertNotNull(doc.getPages().get(4).getVector());
+
+        for (int i = 0; i < doc.getPages().size(); i++) {
+            float[] query = switch (i) {
+                case 0 -> new float[]{1f, 0f, 0f};
+                case 1 -> new float[]{0f, 1f, 0f};
+                case 2 -> new float[]{0f, 0f, 1f};
+                case 3 -> new float[]{1f, 1f, 0f};
+                default -> new float[]{0f, 1f, 1f};
+            };
+            SearchResult sr = diskIndex.search(query, 1);
+            assertEquals(i + 1, diskIndex.getPage(sr.getNodes()[0].node).getPageNumber());
+        }
+
+        diskIndex.close();
+        try (var files = Files.list(tempDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void exactScanMatchesGraphSearch() throws VectorSearchException {
+        var scanSettings = new IndexSettings();
+        scanSettings.setExactScanThreshold(60);
+        var scanIndex = new SessionIndex(scanSettings);
+        var graphIndex = new SessionIndex(new IndexSettings());
+
+        var random = new Random(7);
+        float[][] vectors = new float[50][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = new float[]{random.nextFloat(), random.nextFloat(), random.nextFloat(), random.nextFloat()};
+        }
+        XDoc doc = createDoc(vectors);
+        scanIndex.add(doc);
+        graphIndex.add(doc);
+
+        for (int q = 0; q < 10; q++) {
+            float[] query = {random.nextFloat(), random.nextFloat(), random.nextFloat(), random.nextFloat()};
+            SearchResult scanned = scanIndex.search(query, 5);
+            SearchResult searched = graphIndex.search(query, 5);
+            assertEquals(5, scanned.getNodes().length);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(searched.getNodes()[i].node, scanned.getNodes()[i].node);
+                assertEquals(searched.getNodes()[i].score, scanned.getNodes()[i].score, 1e-6);
+            }
+        }
+
+        // crossing the threshold builds the graph from the scanned vectors
+        scanIndex.add(createDoc(vectors));
+        assertEquals(100, scanIndex.size());
+        SearchResult sr = scanIndex.search(vectors[3], 2);
+        assertEquals(4, scanIndex.getPage(sr.getNodes()[0].node).getPageNumber());
+        assertEquals(4, scanIndex.getPage(sr.getNodes()[1].node).getPageNumber());
+    }
+
+    @Test
+    void compressedSegmentsAreRerankedExactly(@TempDir Path tempDir) throws VectorSearchException {
+        var settings = new IndexSettings();
+        settings.setOnDiskThreshold(400);
+        settings.setDirectory(tempDir);
+        settings.setPqEnabled(true);
+        settings.setPqCompressionRatio(8);
+        settings.setPqMinVectors(256);
+        settings.setRerankDepth(50);
+        var pqIndex = new SessionIndex(settings);
+
+        var random = new Random(42);
+        float[][] vectors = new float[500][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = new float[16];
+            for (int d = 0; d < 16; d++) {
+                vectors[i][d] = random.nextFloat();
+            }
+        }
+        pqIndex.add(createDoc(vectors));
+
+        assertEquals(400, pqIndex.compressedSize());
+        for (int i = 0; i < 400; i += 40) {
+            SearchResult sr = pqIndex.search(vectors[i], 1);
+            assertEquals(i + 1, pqIndex.getPage(sr.getNodes()[0].node).getPageNumber());
+            // re-ranked scores are exact, so they match the full-vector search
+            SearchResult exact = pqIndex.search(vectors[i], 1, false);
+            assertEquals(exact.getNodes()[0].score, sr.getNodes()[0].score, 1e-6);
+        }
+        pqIndex.close();
+    }
+
+    @Test
+    void smallSegmentsAreNotCompressed(@TempDir Path tempDir) throws VectorSearchException {
+        var settings = new IndexSettings();
+        settings.setOnDiskThreshold(2);
+        settings.setDirectory(tempDir);
+        settings.setPqEnabled(true);
+        var pqIndex = new SessionIndex(settings);
+
+        pqIndex.add(createDoc(new float[]{1f, 0f, 0f}, new float[]{0f, 1f, 0f}, new float[]{0f, 0f, 1f}));
+
+        assertEquals(2, pqIndex.onDiskSize());
+        assertEquals(0, pqIndex.compressedSize());
+        pqIndex.close();
+    }
+
+    @Test
+    void filtersRestrictResultsDuringSearch() throws VectorSearchException {
+        XDoc contract = createDoc(new float[]{1f, 0f, 0f}, new float[]{0.9f, 0.1f, 0f}, new float[]{0.8f, 0.2f, 0f});
+        contract.setMetadata(new HashMap<>(Map.of("type", "contract")));
+        XDoc invoice = createDoc(new float[]{1f, 0f, 0f}, new float[]{0f, 1f, 0f});
+        invoice.setMetadata(new HashMap<>(Map.of("type", "invoice")));
+        index.add(contract);
+        index.add(invoice);
+        var snapshot = index.snapshot();
+        float[] query = {1f, 0f, 0f};
+
+        var byDocument = new SearchFilter();
+        byDocument.setDocIds(List.of(invoice.getId()));
+        SearchResult sr = snapshot.search(query, 5, byDocument, true);
+        assertEquals(2, sr.getNodes().length);
+        for (SearchResult.NodeScore ns : sr.getNodes()) {
+            assertEquals(invoice.getId(), index.getPage(ns.node).getDocId());
+        }
+
+        var byPages = new SearchFilter();
+        byPages.setPageRanges(List.of(new SearchFilter.PageRange(2, 3)));
+        sr = snapshot.search(query, 5, byPages, true);
+        assertEquals(3, sr.getNodes().length);
+        assertEquals(contract.getId(), index.getPage(sr.getNodes()[0].node).getDocId());
+        assertEquals(2, index.getPage(sr.getNodes()[0].node).getPageNumber());
+
+        var byMetadata = new SearchFilter();
+        byMetadata.setMetadata(Map.of("type", "contract"));
+        byMetadata.setPageRanges(List.of(new SearchFilter.PageRange(3, null)));
+        sr = snapshot.search(query, 5, byMetadata, true);
+        assertEquals(1, sr.getNodes().length);
+        assertEquals(3, index.getPage(sr.getNodes()[0].node).getPageNumber());
+
+        var noMatch = new SearchFilter();
+        noMatch.setMetadata(Map.of("type", "memo"));
+        assertEquals(0, snapshot.search(query, 5, noMatch, true).getNodes().length);
+
+        var invalid = new SearchFilter();
+        invalid.setPageRanges(List.of(new SearchFilter.PageRange(3, 1)));
+        assertThrows(VectorSearchException.class, () -> snapshot.search(query, 5, invalid, true));
+    }
+
+    @Test
+    void lexicalSearchMatchesIdentifiersExactly() throws VectorSearchException {
+        XDoc doc = createDoc(new float[]{1f, 0f, 0f}, new float[]{0f, 1f, 0f}, new float[]{0f, 0f, 1f});
+        doc.getPages().get(0).setText("The pump uses part PN-4471-B for the seal.");
+        doc.getPages().get(1).setText("Clause 12.3 covers the warranty of the pump.");
+        doc.getPages().get(2).setText("Nothing relevant here.");
+        index.add(doc);
+        var snapshot = index.snapshot();
+
+        SearchResult sr = snapshot.searchLexical("replace pn-4471-b", 5, null);
+        assertEquals(1, sr.getNodes().length);
+        assertEquals(1, index.getPage(sr.getNodes()[0].node).getPageNumber());
+
+        sr = snapshot.searchLexical("clause 12.3", 5, null);
+        assertEquals(2, index.getPage(sr.getNodes()[0].node).getPageNumber());
+
+        sr = snapshot.searchLexical("pump", 5, null);
+        assertEquals(2, sr.getNodes().length);
+
+        var filter = new SearchFilter();
+        filter.setPageRanges(List.of(new SearchFilter.PageRange(2, 2)));
+        sr = snapshot.searchLexical("pump", 5, filter);
+        assertEquals(1, sr.getNodes().length);
+        assertEquals(2, index.getPage(sr.getNodes()[0].node).getPageNumber());
+
+        assertEquals(0, snapshot.searchLexical("turbine", 5, null).getNodes().length);
+    }
+
+    @Test
+    void searchOnEmptyIndexThrows() {
+        assertThrows(VectorSearchException.class, () -> index.search(new float[]{1f, 0f, 0f}, 1));
+    }
+}
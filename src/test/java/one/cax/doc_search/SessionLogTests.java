@@ -0,0 +1,130 @@
+package one.cax.doc_search;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.doc_search.cache.SessionLog;
+import one.cax.doc_search.model.XDoc;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionLogTests {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Collects the replayed records as strings.
+     */
+    private static class Recorder implements SessionLog.Handler {
+
+        private final List<String> records = new ArrayList<>();
+        private final List<XDoc> documents = new ArrayList<>();
+
+        @Override
+        public void created(UUID sessionId) {
+            records.add("created " + sessionId);
+        }
+
+        @Override
+        public void documentAdded(UUID sessionId, XDoc document) {
+            records.add("document " + sessionId);
+            documents.add(document);
+        }
+
+        @Override
+        public void ended(UUID sessionId) {
+            records.add("ended " + sessionId);
+        }
+    }
+
+    @Test
+    void recordsAreReplayedInOrderUpToATornRecord() throws Exception {
+        UUID sessionId = UUID.randomUUID();
+        XDoc document = SessionIndexTests.createDoc(new float[]{1f, 2f}, new float[]{3f, 4f});
+        var log = new SessionLog(directory, 1 << 20, new SimpleMeterRegistry());
+        log.appendCreated(sessionId);
+        log.sync(log.appendDocument(sessionId, document, null));
+        log.sync(log.appendEnded(sessionId));
+        log.close();
+        // a crash in the middle of an append
+        try (var files = Files.list(directory)) {
+            Files.write(files.findFirst().orElseThrow(), new byte[]{0, 0, 0, 42, 1}, StandardOpenOption.APPEND);
+        }
+
+        var recorder = new Recorder();
+        var reopened = new SessionLog(directory, 1 << 20, new SimpleMeterRegistry());
+
+        assertEquals(3, reopened.replay(recorder));
+        assertEquals(List.of("created " + sessionId, "document " + sessionId, "ended " + sessionId), recorder.records);
+        XDoc replayed = recorder.documents.get(0);
+        assertEquals(document.getId(), replayed.getId());
+        assertEquals("page 2", replayed.getPages().get(1).getText());
+        assertArrayEquals(new float[]{3f, 4f}, replayed.getPages().get(1).getVector());
+        reopened.close();
+    }
+
+    @Test
+    void oneSyncCoversEveryRecordAppendedBeforeIt() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var log = new SessionLog(directory, 1 << 20, registry);
+        long first = log.appendCreated(UUID.randomUUID());
+        long second = log.appendCreated(UUID.randomUUID());
+
+        log.sync(second);
+        log.sync(first);
+
+        assertEquals(1, registry.get("walSyncs").counter().count());
+
+        int writers = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        var start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                log.sync(log.appendCreated(UUID.randomUUID()));
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(2 + writers, registry.get("walAppends").counter().count());
+        assertTrue(registry.get("walSyncs").counter().count() <= 1 + writers);
+        log.close();
+    }
+
+    @Test
+    void sealedSegmentsAreDeletedAndOnlyTheTailIsReplayed() throws Exception {
+        var log = new SessionLog(directory, 1 << 20, new SimpleMeterRegistry());
+        UUID folded = UUID.randomUUID();
+        UUID tail = UUID.randomUUID();
+        log.appendCreated(folded);
+        long sealed = log.roll();
+        log.sync(log.appendCreated(tail));
+
+        log.deleteUpTo(sealed);
+        log.close();
+
+        var recorder = new Recorder();
+        var reopened = new SessionLog(directory, 1 << 20, new SimpleMeterRegistry());
+        assertEquals(1, reopened.replay(recorder));
+        assertEquals(List.of("created " + tail), recorder.records);
+        reopened.close();
+    }
+}
@@ -1,9 +1,24 @@
 package one.cax.doc_search;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.doc_search.cache.SessionLog;
+import one.cax.doc_search.cache.SessionSnapshotStore;
+import one.cax.doc_search.cache.SessionSpillStore;
+import one.cax.doc_search.exception.VectorSearchException;
+import one.cax.doc_search.index.IndexSettings;
+import one.cax.doc_search.index.SessionIndex;
+import one.cax.doc_search.model.Session;
+import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
 import one.cax.doc_search.service.SessionService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -12,11 +27,29 @@ class SessionServiceTests {
 
     private SessionService sessionService;
 
+    @TempDir
+    Path spillDirectory;
+
     @BeforeEach
     public void setup() {
         sessionService = new SessionService(); // Assuming a no-arg constructor
     }
 
+    private static XDoc document(String text, float[]... vectors) {
+        var document = new XDoc();
+        document.setDocTitle("title");
+        List<XPage> pages = new ArrayList<>();
+        for (int i = 0; i < vectors.length; i++) {
+            var page = new XPage();
+            page.setPageNumber(i + 1);
+            page.setText(text + " " + (i + 1));
+            page.setVector(vectors[i]);
+            pages.add(page);
+        }
+        document.setPages(pages);
+        return document;
+    }
+
     @Test
     void testCreateSession() {
         UUID sessionId = sessionService.createSession();
@@ -44,4 +77,203 @@ class SessionServiceTests {
         sessionService.endSession(sessionId);
         assertFalse(sessionService.sessionExists(sessionId));
     }
+
+    @Test
+    void idleSessionsExpireUnlessInUse() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var service = new SessionService(1, 0, 0, null, registry);
+        UUID idle = service.createSession();
+        UUID inUse = service.createSession();
+        Session used = service.getSession(inUse);
+        used.retain();
+
+        Thread.sleep(1100);
+        service.sweep();
+
+        assertFalse(service.sessionExists(idle));
+        assertFalse(used.isEvicted());
+        assertTrue(service.sessionExists(inUse));
+        assertEquals(1, registry.get("sessionsExpired").counter().count());
+        used.release();
+    }
+
+    @Test
+    void leastRecentlyUsedSessionsAreEvictedOverTheBudget() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var service = new SessionService(0, 120, 0, null, registry);
+        UUID oldest = service.createSession();
+        UUID pinned = service.createSession();
+        UUID newest = service.createSession();
+        service.getSession(oldest).addDocument(document("x".repeat(20), new float[]{1f, 2f}));
+        Session pinnedSession = service.getSession(pinned);
+        pinnedSession.addDocument(document("y".repeat(20), new float[]{1f, 2f}));
+        pinnedSession.retain();
+        Thread.sleep(2);
+        service.getSession(newest).addDocument(document("z".repeat(20), new float[]{1f, 2f}));
+        assertTrue(service.estimatedBytes() > 120);
+
+        service.sweep();
+
+        assertFalse(service.sessionExists(oldest));
+        assertTrue(service.sessionExists(pinned));
+        assertTrue(service.sessionExists(newest));
+        assertEquals(1, registry.get("sessionEvictions").tag("outcome", "dropped").counter().count());
+        pinnedSession.release();
+    }
+
+    @Test
+    void evictedSessionsAreSpilledAndLoadedBack() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var service = new SessionService(0, 1, 0, new SessionSpillStore(spillDirectory), registry);
+        UUID sessionId = service.createSession();
+        Session session = service.getSession(sessionId);
+        XDoc original = document("page", new float[]{1f, 0f, 0f}, new float[]{0f, 1f, 0f}, new float[]{0f, 0f, 1f});
+        original.setMetadata(new HashMap<>(java.util.Map.of("lang", "en")));
+        var settings = new IndexSettings();
+        settings.setOnDiskThreshold(2);
+        settings.setDirectory(spillDirectory.resolve("index"));
+        var index = new SessionIndex(settings);
+        index.add(original);
+        session.setIndex(index);
+        session.addDocument(original);
+        // the first two vectors only live in the on-disk segment now
+        assertNull(original.getPages().get(0).getVector());
+
+        service.sweep();
+
+        assertTrue(session.isEvicted());
+        assertTrue(service.sessionExists(sessionId));
+        assertEquals(1, registry.get("sessionsSpilled").gauge().value());
+        assertEquals(1, registry.get("sessionEvictions").tag("outcome", "spilled").counter().count());
+
+        Session reloaded = service.getSession(sessionId);
+
+        assertNotSame(session, reloaded);
+        assertNull(reloaded.getIndex());
+        XDoc document = reloaded.getDocuments().get(0);
+        assertEquals(original.getId(), document.getId());
+        assertEquals("en", document.getMetadata().get("lang"));
+        assertEquals("page 2", document.getPages().get(1).getText());
+        assertArrayEquals(new float[]{1f, 0f, 0f}, document.getPages().get(0).getVector());
+        assertArrayEquals(new float[]{0f, 1f, 0f}, document.getPages().get(1).getVector());
+        assertArrayEquals(new float[]{0f, 0f, 1f}, document.getPages().get(2).getVector());
+        assertEquals(0, registry.get("sessionsSpilled").gauge().value());
+        assertEquals(1, registry.get("sessionsReloaded").counter().count());
+
+        service.endSession(sessionId);
+        assertFalse(service.sessionExists(sessionId));
+    }
+
+    @Test
+    void sessionsAreSnapshottedOnShutdownAndRestoredOnFirstUse() throws Exception {
+        Path snapshots = spillDirectory.resolve("snapshots");
+        var service = new SessionService(0, 0, 0, null, new SessionSnapshotStore(snapshots), 5, null, 0, new SimpleMeterRegistry());
+        UUID sessionId = service.createSession();
+        Session session = service.getSession(sessionId);
+        XDoc original = document("page", new float[]{1f, 0f}, new float[]{0f, 1f});
+        var index = new SessionIndex(new IndexSettings());
+        index.add(original);
+        session.setIndex(index);
+        session.retain();
+        // an ingest still in progress when shutdown starts
+        var ingest = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (session) {
+                session.addDocument(original);
+            }
+            session.release();
+        });
+        ingest.start();
+
+        service.stop();
+        ingest.join();
+
+        assertTrue(session.isEvicted());
+        var registry = new SimpleMeterRegistry();
+        var restarted = new SessionService(0, 0, 0, null, new SessionSnapshotStore(snapshots), 5, null, 0, registry);
+        assertTrue(restarted.sessionExists(sessionId));
+        assertEquals(1, registry.get("sessionsSnapshotted").gauge().value());
+
+        Session restored = restarted.getSession(sessionId);
+
+        assertEquals(1, restored.getDocuments().size());
+        assertEquals(2, restored.getIndex().size());
+        assertEquals("page 2", restored.getIndex().getPage(1).getText());
+        assertEquals(1, registry.get("sessionsRestored").counter().count());
+        assertEquals(0, registry.get("sessionsSnapshotted").gauge().value());
+        restarted.endSession(sessionId);
+        assertFalse(restarted.sessionExists(sessionId));
+    }
+
+    @Test
+    void loggedDocumentsSurviveACrashAndAreFoldedIntoSnapshots() throws Exception {
+        Path snapshots = spillDirectory.resolve("snapshots");
+        Path wal = spillDirectory.resolve("wal");
+        var service = new SessionService(0, 0, 0, null, new SessionSnapshotStore(snapshots), 5,
+                new SessionLog(wal, 1 << 20, new SimpleMeterRegistry()), 0, new SimpleMeterRegistry());
+        UUID sessionId = service.createSession();
+        UUID ended = service.createSession();
+        Session session = service.getSession(sessionId);
+        XDoc first = document("first", new float[]{1f, 0f}, new float[]{0f, 1f});
+        synchronized (session) {
+            service.awaitDurable(service.logDocument(session, first));
+            session.addDocument(first);
+        }
+        service.endSession(ended);
+
+        // no shutdown: the sessions come back from the log alone
+        var registry = new SimpleMeterRegistry();
+        var recovered = new SessionService(0, 0, 0, null, new SessionSnapshotStore(snapshots), 5,
+                new SessionLog(wal, 1 << 20, registry), 0, registry);
+        assertFalse(recovered.sessionExists(ended));
+        Session replayed = recovered.getSession(sessionId);
+        assertEquals(1, replayed.getDocuments().size());
+        assertArrayEquals(new float[]{0f, 1f}, replayed.getDocuments().get(0).getPages().get(1).getVector());
+
+        XDoc second = document("second", new float[]{1f, 1f});
+        synchronized (replayed) {
+            recovered.awaitDurable(recovered.logDocument(replayed, second));
+            replayed.addDocument(second);
+        }
+        recovered.compact();
+        assertEquals(1, registry.get("walCompactions").counter().count());
+        assertEquals(0, registry.get("walBytes").gauge().value());
+
+        // after compaction the snapshot holds the documents and the log only what came after it
+        var restarted = new SessionService(0, 0, 0, null, new SessionSnapshotStore(snapshots), 5,
+                new SessionLog(wal, 1 << 20, new SimpleMeterRegistry()), 0, new SimpleMeterRegistry());
+        Session restored = restarted.getSession(sessionId);
+        assertEquals(2, restored.getDocuments().size());
+        assertEquals("second 1", restored.getDocuments().get(1).getPages().get(0).getText());
+    }
+
+    @Test
+    void endingASessionInUseClosesItsIndexWhenTheLastUserReleasesIt() throws Exception {
+        Path wal = spillDirectory.resolve("wal");
+        var service = new SessionService(0, 0, 0, null, new SessionSnapshotStore(spillDirectory.resolve("snapshots")), 5,
+                new SessionLog(wal, 1 << 20, new SimpleMeterRegistry()), 0, new SimpleMeterRegistry());
+        UUID sessionId = service.createSession();
+        Session session = service.getSession(sessionId);
+        var index = new SessionIndex(new IndexSettings());
+        index.add(document("page", new float[]{1f, 0f}));
+        session.setIndex(index);
+        // an ingest holding the session
+        session.retain();
+
+        service.endSession(sessionId);
+
+        assertFalse(service.sessionExists(sessionId));
+        assertTrue(session.isEvicted());
+        assertEquals(1, index.search(new float[]{1f, 0f}, 1).getNodes().length);
+        session.release();
+        assertThrows(VectorSearchException.class, () -> index.search(new float[]{1f, 0f}, 1));
+
+        var recovered = new SessionService(0, 0, 0, null, new SessionSnapshotStore(spillDirectory.resolve("snapshots")), 5,
+                new SessionLog(wal, 1 << 20, new SimpleMeterRegistry()), 0, new SimpleMeterRegistry());
+        assertFalse(recovered.sessionExists(sessionId));
+    }
 }
@@ -0,0 +1,167 @@
+package one.cax.doc_search;
+
+import io.github.jbellis.jvector.graph.SearchResult;
+import one.cax.doc_search.cache.SessionSnapshotStore;
+import one.cax.doc_search.index.IndexSettings;
+import one.cax.doc_search.index.SessionIndex;
+import one.cax.doc_search.model.Session;
+import one.cax.doc_search.model.XDoc;
+import one.cax.doc_search.model.XPage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionSnapshotStoreTests {
+
+    @TempDir
+    Path tempDir;
+
+    private static float[][] randomVectors(int count, int dimension) {
+        var random = new Random(42);
+        float[][] vectors = new float[count][];
+        for (int i = 0; i < count; i++) {
+            vectors[i] = new float[dimension];
+            for (int d = 0; d < dimension; d++) {
+                vectors[i][d] = random.nextFloat();
+            }
+        }
+        return vectors;
+    }
+
+    private static Session session(SessionIndex index, XDoc... documents) throws Exception {
+        var session = new Session();
+        session.setSessionId(UUID.randomUUID());
+        for (XDoc document : documents) {
+            index.add(document);
+            session.addDocument(document);
+        }
+        session.setIndex(index);
+        return session;
+    }
+
+    @Test
+    void sessionsAreRestoredWithTheirGraphsAndCompressedCodes() throws Exception {
+        var settings = new IndexSettings();
+        settings.setOnDiskThreshold(400);
+        settings.setDirectory(tempDir.resolve("index"));
+        settings.setPqEnabled(true);
+        settings.setPqCompressionRatio(8);
+        settings.setPqMinVectors(256);
+        settings.setRerankDepth(50);
+        float[][] vectors = randomVectors(500, 16);
+        XDoc document = SessionIndexTests.createDoc(vectors);
+        document.setMetadata(new HashMap<>(Map.of("lang", "en")));
+        Session session = session(new SessionIndex(settings), document);
+        var store = new SessionSnapshotStore(tempDir.resolve("snapshots"));
+
+        assertTrue(store.write(session) > 0);
+        assertEquals(List.of(session.getSessionId()), store.list());
+        Session restored = store.read(session.getSessionId());
+
+        // the snapshot stays on disk, the restored index has its own links to the graph files
+        assertTrue(store.contains(session.getSessionId()));
+        SessionIndex original = session.getIndex();
+        SessionIndex index = restored.getIndex();
+        assertEquals(500, index.size());
+        // the graph of the on-heap segment is restored from its file too
+        assertEquals(400, original.onDiskSize());
+        assertEquals(500, index.onDiskSize());
+        assertEquals(400, index.compressedSize());
+        assertEquals("en", restored.getDocuments().get(0).getMetadata().get("lang"));
+        assertSame(restored.getDocuments().get(0).getPages().get(7).getText(), index.getPage(7).getText());
+        for (int i = 0; i < 500; i += 50) {
+            SearchResult expected = original.search(vectors[i], 3);
+            SearchResult actual = index.search(vectors[i], 3);
+            assertEquals(expected.getNodes()[0].node, actual.getNodes()[0].node);
+            assertEquals(expected.getNodes()[0].score, actual.getNodes()[0].score, 1e-6);
+        }
+
+        // the restored index keeps growing after its restored segments
+        index.add(SessionIndexTests.createDoc(new float[16]));
+        assertEquals(501, index.size());
+        original.close();
+        index.close();
+        assertEquals(1, store.list().size());
+        Session again = store.read(session.getSessionId());
+        assertEquals(500, again.getIndex().size());
+        again.getIndex().close();
+    }
+
+    @Test
+    void exactlyScannedSegmentsAreRestoredFromTheirVectors() throws Exception {
+        var settings = new IndexSettings();
+        settings.setExactScanThreshold(64);
+        XDoc first = SessionIndexTests.createDoc(new float[]{1f, 0f, 0f}, new float[]{0f, 1f, 0f});
+        XDoc second = SessionIndexTests.createDoc(new float[]{0f, 0f, 1f});
+        second.getPages().add(new XPage());
+        Session session = session(new SessionIndex(settings), first, second);
+        var store = new SessionSnapshotStore(tempDir);
+
+        store.write(session);
+        Session restored = store.read(session.getSessionId());
+
+        SessionIndex index = restored.getIndex();
+        assertEquals(3, index.size());
+        assertEquals(2, restored.getDocuments().size());
+        assertEquals(2, restored.getDocuments().get(1).getPages().size());
+        SearchResult sr = index.search(new float[]{0f, 0.1f, 0.9f}, 1);
+        assertEquals(second.getId(), index.getPage(sr.getNodes()[0].node).getDocId());
+        assertArrayEquals(new float[]{0f, 1f, 0f}, index.vector(1));
+        index.close();
+    }
+
+    @Test
+    void interruptedSnapshotsAreDeletedOnStartup() throws Exception {
+        Files.createDirectories(tempDir.resolve(UUID.randomUUID() + ".tmp123"));
+        Files.createDirectories(tempDir.resolve(UUID.randomUUID().toString()));
+
+        var store = new SessionSnapshotStore(tempDir);
+
+        assertEquals(1, Files.list(tempDir).count());
+        assertTrue(store.list().isEmpty());
+    }
+
+    @Test
+    void aSnapshotSetAsideByAnInterruptedWriteIsPutBack() throws Exception {
+        Session session = session(new SessionIndex(new IndexSettings()), SessionIndexTests.createDoc(new float[]{1f, 0f}));
+        var store = new SessionSnapshotStore(tempDir);
+        store.write(session);
+        // the process stopped after setting the previous snapshot aside, before the new one was moved in place
+        UUID sessionId = session.getSessionId();
+        Files.move(tempDir.resolve(sessionId.toString()), tempDir.resolve(sessionId + ".old"));
+        Files.createDirectories(tempDir.resolve(sessionId + ".tmp123"));
+
+        var restarted = new SessionSnapshotStore(tempDir);
+
+        assertEquals(List.of(sessionId), restarted.list());
+        assertEquals(1, Files.list(tempDir).count());
+        Session restored = restarted.read(sessionId);
+        assertEquals(1, restored.getIndex().size());
+        restored.getIndex().close();
+        session.getIndex().close();
+    }
+
+    @Test
+    void aSnapshotSetAsideIsDeletedOnceItsReplacementIsInPlace() throws Exception {
+        Session session = session(new SessionIndex(new IndexSettings()), SessionIndexTests.createDoc(new float[]{1f, 0f}));
+        var store = new SessionSnapshotStore(tempDir);
+        store.write(session);
+        UUID sessionId = session.getSessionId();
+        Files.createDirectories(tempDir.resolve(sessionId + ".old"));
+
+        var restarted = new SessionSnapshotStore(tempDir);
+
+        assertEquals(List.of(sessionId), restarted.list());
+        assertEquals(1, Files.list(tempDir).count());
+        session.getIndex().close();
+    }
+}
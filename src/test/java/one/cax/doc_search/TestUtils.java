@@ -37,6 +37,34 @@ public class TestUtils {
         return output.toByteArray();
     }
 
+    /**
+     * Create a PDF with one page per content string.
+     *
+     * @param pageContents - the text of each page
+     * @return the PDF as bytes
+     */
+    public static byte[] createMultiPagePdf(String... pageContents) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (PDDocument document = new PDDocument()) {
+            PDFont font = new PDType1Font(Standard14Fonts.FontName.HELVETICA_BOLD);
+            for (String content : pageContents) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+                    contentStream.setFont(font, 12);
+                    contentStream.beginText();
+                    contentStream.newLineAtOffset(100, 700);
+                    contentStream.showText(content);
+                    contentStream.endText();
+                }
+            }
+            document.save(output);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return output.toByteArray();
+    }
+
     public static JSONObject getJsonObject() {
         JSONObject jsonDoc = new JSONObject();
         jsonDoc.put(NameUtils.DOC_TITLE, "Test document title");
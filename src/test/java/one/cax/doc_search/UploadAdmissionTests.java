@@ -0,0 +1,114 @@
+package one.cax.doc_search;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.doc_search.exception.UploadRejectedException;
+import one.cax.doc_search.model.XPage;
+import one.cax.doc_search.service.PageConsumer;
+import one.cax.doc_search.service.UploadAdmission;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadAdmissionTests {
+
+    @Test
+    void uploadsWithinTheBudgetAreAdmitted() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var admission = new UploadAdmission(100, 1000, 0, 0, 5, registry);
+
+        try (UploadAdmission.Permit first = admission.acquire(60); UploadAdmission.Permit second = admission.acquire(40)) {
+            assertEquals(100, admission.bytesInFlight());
+            assertEquals(100, registry.get("uploadsInFlightBytes").gauge().value());
+            assertThrows(UploadRejectedException.class, () -> admission.acquire(1));
+        }
+
+        assertEquals(0, admission.bytesInFlight());
+        assertEquals(1, registry.get("uploadsRejected").counter().count());
+    }
+
+    @Test
+    void uploadsLargerThanTheBudgetAreAdmittedAlone() throws Exception {
+        var admission = new UploadAdmission(100, 1000, 0, 0, 5, new SimpleMeterRegistry());
+
+        try (UploadAdmission.Permit permit = admission.acquire(500)) {
+            assertEquals(500, admission.bytesInFlight());
+            assertThrows(UploadRejectedException.class, () -> admission.acquire(1));
+        }
+    }
+
+    @Test
+    void pagesAreCountedUntilThePermitIsClosed() throws Exception {
+        var admission = new UploadAdmission(1000, 2, 0, 0, 5, new SimpleMeterRegistry());
+        List<XPage> received = new ArrayList<>();
+        List<Integer> totals = new ArrayList<>();
+        PageConsumer consumer = new PageConsumer() {
+            @Override
+            public void begin(int totalPages) {
+                totals.add(totalPages);
+            }
+
+            @Override
+            public void accept(XPage page) {
+                received.add(page);
+            }
+        };
+
+        UploadAdmission.Permit permit = admission.acquire(10);
+        PageConsumer counting = permit.counting(consumer);
+        counting.begin(2);
+        counting.accept(new XPage());
+        counting.accept(new XPage());
+
+        assertEquals(List.of(2), totals);
+        assertEquals(2, received.size());
+        assertEquals(2, admission.pagesInFlight());
+        assertThrows(UploadRejectedException.class, () -> admission.acquire(10));
+        permit.close();
+        permit.close();
+        assertEquals(0, admission.pagesInFlight());
+        assertEquals(0, admission.bytesInFlight());
+    }
+
+    @Test
+    void queuedUploadsAreAdmittedWhenTheBudgetIsReleased() throws Exception {
+        var registry = new SimpleMeterRegistry();
+        var admission = new UploadAdmission(100, 1000, 10_000, 1, 5, registry);
+        UploadAdmission.Permit held = admission.acquire(100);
+
+        CompletableFuture<UploadAdmission.Permit> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.acquire(50);
+            } catch (UploadRejectedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (admission.queued() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, registry.get("uploadsQueued").gauge().value());
+        // the queue holds one upload, the next one is rejected at once
+        assertThrows(UploadRejectedException.class, () -> admission.acquire(1));
+
+        held.close();
+        try (UploadAdmission.Permit permit = queued.get(10, TimeUnit.SECONDS)) {
+            assertEquals(50, admission.bytesInFlight());
+            assertEquals(0, admission.queued());
+        }
+    }
+
+    @Test
+    void uploadsAreRejectedWhenTheWaitIsOver() throws Exception {
+        var admission = new UploadAdmission(100, 1000, 20, 4, 5, new SimpleMeterRegistry());
+
+        try (UploadAdmission.Permit held = admission.acquire(100)) {
+            assertThrows(UploadRejectedException.class, () -> admission.acquire(10));
+            assertEquals(0, admission.queued());
+        }
+    }
+}
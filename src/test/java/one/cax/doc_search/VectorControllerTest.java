@@ -8,6 +8,7 @@ import one.cax.doc_search.security.JwtTokenProvider;
 import one.cax.doc_search.security.JwtsWrapper;
 import one.cax.doc_search.security.SecurityConfig;
 import one.cax.doc_search.service.ExtractorEngine;
+import one.cax.doc_search.service.FileService;
 import one.cax.doc_search.service.VectorSearch;
 import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
@@ -20,15 +21,25 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.WebApplicationContext;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.springframework.security.test.web.servlet.setup.SecurityMockMvcConfigurers.springSecurity;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -52,6 +63,9 @@ class VectorControllerTest {
     @Mock
     private JwtsWrapper jwtsWrapper;
 
+    @MockBean
+    private FileService fileService;
+
     @MockBean
     private JwtTokenProvider jwtTokenProvider;
 
@@ -126,13 +140,77 @@ class VectorControllerTest {
                 .andExpect(status().isInternalServerError());
     }
 
+    @Test
+    void testUploadDocument_IngestsAsPipeline() throws Exception {
+        UUID docId = UUID.randomUUID();
+        Mockito.when(vectorSearch.addDocument(any(UUID.class), any(XDoc.class), any(VectorSearch.PageProducer.class))).thenReturn(docId);
+        MockMultipartFile file = new MockMultipartFile("file", "test.pdf", "application/pdf", "test data".getBytes());
+
+        var response = new AddTextResponse();
+        response.setSessionId(sessionId);
+        response.setTextId(docId.toString());
+        response.setResponseText("File uploaded and added successfully!");
+        mockMvc.perform(multipart(TestUtils.getURIForSearch(sessionId, "addFile")).file(file))
+                .andExpect(status().isOk())
+                .andExpect(content().string(new ObjectMapper().writeValueAsString(response)));
+        Mockito.verify(vectorSearch).addDocument(eq(UUID.fromString(sessionId)), any(XDoc.class), any(VectorSearch.PageProducer.class));
+    }
+
+    @Test
+    void testAddVectors_DecodesBinaryVectors() throws Exception {
+        UUID docId = UUID.randomUUID();
+        Mockito.when(vectorSearch.acceptsPrecomputed()).thenReturn(true);
+        Mockito.when(vectorSearch.addDocument(any(UUID.class), any(XDoc.class))).thenReturn(docId);
+        String document = "{\"docTitle\":\"title\",\"docPages\":[{\"pageNumber\":1,\"pageText\":\"one\"},{\"pageNumber\":2,\"pageText\":\"two\"}]}";
+        ByteBuffer blob = ByteBuffer.allocate(2 * 3 * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (float v : new float[]{1f, 2f, 3f, 4f, 5f, 6f}) {
+            blob.putFloat(v);
+        }
+
+        mockMvc.perform(multipart(TestUtils.getURIForSearch(sessionId, "addVectors"))
+                        .file(new MockMultipartFile("vectors", "vectors.bin", "application/octet-stream", blob.array()))
+                        .param("document", document)
+                        .param("dimension", "3"))
+                .andExpect(status().isOk());
+        Mockito.verify(vectorSearch).addDocument(eq(UUID.fromString(sessionId)), argThat(doc ->
+                doc.getTotalPages() == 2
+                        && Arrays.equals(doc.getPages().get(0).getVector(), new float[]{1f, 2f, 3f})
+                        && Arrays.equals(doc.getPages().get(1).getVector(), new float[]{4f, 5f, 6f})));
+    }
+
+    @Test
+    void testAddVectors_RejectedWhenPrecomputedVectorsAreDisabled() throws Exception {
+        String document = "{\"docTitle\":\"title\",\"docPages\":[{\"pageNumber\":1,\"pageText\":\"one\"}]}";
+
+        mockMvc.perform(multipart(TestUtils.getURIForSearch(sessionId, "addVectors"))
+                        .file(new MockMultipartFile("vectors", "vectors.bin", "application/octet-stream", new byte[3 * Float.BYTES]))
+                        .param("document", document)
+                        .param("dimension", "3"))
+                .andExpect(status().isBadRequest());
+        Mockito.verify(vectorSearch, Mockito.never()).addDocument(any(UUID.class), any(XDoc.class));
+    }
+
+    @Test
+    void testAddVectors_SizeMismatch() throws Exception {
+        Mockito.when(vectorSearch.acceptsPrecomputed()).thenReturn(true);
+        String document = "{\"docTitle\":\"title\",\"docPages\":[{\"pageNumber\":1,\"pageText\":\"one\"}]}";
+
+        mockMvc.perform(multipart(TestUtils.getURIForSearch(sessionId, "addVectors"))
+                        .file(new MockMultipartFile("vectors", "vectors.bin", "application/octet-stream", new byte[10]))
+                        .param("document", document)
+                        .param("dimension", "3")
+                        .param("encoding", "float16"))
+                .andExpect(status().isBadRequest());
+        Mockito.verify(vectorSearch, Mockito.never()).addDocument(any(UUID.class), any(XDoc.class));
+    }
+
     @Test
     void testSearch_Success() throws Exception {
         ObjectMapper objectMapper = new ObjectMapper();
         JSONObject searchResult = new JSONObject();
         searchResult.put("result", "search result");
 
-        Mockito.when(vectorSearch.search(any(UUID.class), anyString())).thenReturn(searchResult);
+        Mockito.when(vectorSearch.search(any(UUID.class), anyString(), any(), any())).thenReturn(searchResult);
         var request = new SearchRequest();
         request.setQuery("Test query");
         var requestJson = objectMapper.writeValueAsString(request);
@@ -147,9 +225,38 @@ class VectorControllerTest {
                 .andExpect(content().string(responseJson));
     }
 
+    @Test
+    void testSearch_PassesFilter() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        JSONObject searchResult = new JSONObject();
+        searchResult.put("result", "filtered result");
+        var docId = UUID.randomUUID();
+
+        Mockito.when(vectorSearch.search(any(UUID.class), anyString(), argThat(filter -> filter != null
+                && filter.getDocIds().equals(List.of(docId))
+                && filter.getPageRanges().get(0).getFrom() == 2
+                && filter.getPageRanges().get(0).getTo() == null), any())).thenReturn(searchResult);
+        var filter = new SearchFilter();
+        filter.setDocIds(List.of(docId));
+        filter.setPageRanges(List.of(new SearchFilter.PageRange(2, null)));
+        var request = new SearchRequest();
+        request.setQuery("Test query");
+        request.setFilter(filter);
+        var requestJson = objectMapper.writeValueAsString(request);
+        var searchResponse = new SearchResponse();
+        searchResponse.setSessionId(sessionId);
+        searchResponse.setResponseText(searchResult.toString());
+        var responseJson = objectMapper.writeValueAsString(searchResponse);
+        mockMvc.perform(post(TestUtils.getURIForSearch(sessionId, "run"))
+                        .content(requestJson)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().string(responseJson));
+    }
+
     @Test
     void testSearch_VectorSearchException() throws Exception {
-        Mockito.when(vectorSearch.search(any(UUID.class), anyString())).thenThrow(new VectorSearchException("Failed to process query"));
+        Mockito.when(vectorSearch.search(any(UUID.class), anyString(), any(), any())).thenThrow(new VectorSearchException("Failed to process query"));
         ObjectMapper objectMapper = new ObjectMapper();
         var request = new SearchRequest();
         request.setQuery("Test query");
@@ -169,7 +276,7 @@ class VectorControllerTest {
 
     @Test
     void testSearch_InternalServerError() throws Exception {
-        Mockito.when(vectorSearch.search(any(UUID.class), anyString())).thenThrow(new RuntimeException("Unexpected error"));
+        Mockito.when(vectorSearch.search(any(UUID.class), anyString(), any(), any())).thenThrow(new RuntimeException("Unexpected error"));
         ObjectMapper objectMapper = new ObjectMapper();
         var request = new SearchRequest();
         request.setQuery("Test query");
@@ -185,4 +292,46 @@ class VectorControllerTest {
                 .andExpect(status().isInternalServerError())
                 .andExpect(content().string(responseJson));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testSearchBatch_Success() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        JSONObject searchResult = new JSONObject();
+        searchResult.put("queries", List.of());
+
+        Mockito.when(vectorSearch.searchBatch(any(UUID.class), anyList(), any(), any(), eq(true))).thenReturn(searchResult);
+        var request = new BatchSearchRequest();
+        request.setQueries(List.of("first query", "second query"));
+        request.setParallel(true);
+        var requestJson = objectMapper.writeValueAsString(request);
+        var searchResponse = new SearchResponse();
+        searchResponse.setSessionId(sessionId);
+        searchResponse.setResponseText(searchResult.toString());
+        var responseJson = objectMapper.writeValueAsString(searchResponse);
+        mockMvc.perform(post(TestUtils.getURIForSearch(sessionId, "runBatch"))
+                        .content(requestJson)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().string(responseJson));
+    }
+
+    @Test
+    void testSearchBatch_VectorSearchException() throws Exception {
+        Mockito.when(vectorSearch.searchBatch(any(UUID.class), anyList(), any(), any(), anyBoolean())).thenThrow(new VectorSearchException("Query is empty!"));
+        ObjectMapper objectMapper = new ObjectMapper();
+        var request = new BatchSearchRequest();
+        request.setQueries(List.of("first query", ""));
+        var requestJson = objectMapper.writeValueAsString(request);
+
+        var response = new SearchResponse();
+        response.setSessionId(sessionId);
+        response.setResponseText("An error occurred while processing the queries: Query is empty!");
+        var responseJson = objectMapper.writeValueAsString(response);
+
+        mockMvc.perform(post(TestUtils.getURIForSearch(sessionId, "runBatch"))
+                        .content(requestJson)
+                        .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().string(responseJson));
+    }
+}
@@ -0,0 +1,58 @@
+package one.cax.doc_search;
+
+import one.cax.doc_search.model.VectorEncoding;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VectorEncodingTests {
+
+    @Test
+    void float32VectorsAreDecodedLittleEndian() throws Exception {
+        float[][] expected = {{1.0f, -2.5f, 3.25f}, {0.0f, Float.MIN_VALUE, -1e30f}};
+        ByteBuffer buffer = ByteBuffer.allocate(2 * 3 * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (float[] vector : expected) {
+            for (float v : vector) {
+                buffer.putFloat(v);
+            }
+        }
+
+        float[][] decoded = VectorEncoding.FLOAT32.decode(new ByteArrayInputStream(buffer.array()), 2, 3);
+
+        assertArrayEquals(expected[0], decoded[0]);
+        assertArrayEquals(expected[1], decoded[1]);
+    }
+
+    @Test
+    void float16VectorsAreWidened() throws Exception {
+        // 1.0, -2.0, 65504 (largest half), 2^-24 (smallest subnormal), -0.0, infinity
+        short[] halves = {0x3C00, (short) 0xC000, 0x7BFF, 0x0001, (short) 0x8000, 0x7C00};
+        ByteBuffer buffer = ByteBuffer.allocate(halves.length * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (short half : halves) {
+            buffer.putShort(half);
+        }
+
+        float[][] decoded = VectorEncoding.FLOAT16.decode(new ByteArrayInputStream(buffer.array()), 1, halves.length);
+
+        assertArrayEquals(new float[]{1.0f, -2.0f, 65504.0f, 0x1p-24f, -0.0f, Float.POSITIVE_INFINITY}, decoded[0]);
+        assertEquals(Float.floatToIntBits(-0.0f), Float.floatToIntBits(decoded[0][4]));
+    }
+
+    @Test
+    void truncatedInputIsRejected() {
+        byte[] encoded = new byte[2 * 4 * Float.BYTES - 1];
+        assertThrows(EOFException.class, () -> VectorEncoding.FLOAT32.decode(new ByteArrayInputStream(encoded), 2, 4));
+    }
+
+    @Test
+    void encodingNamesAreCaseInsensitive() {
+        assertEquals(VectorEncoding.FLOAT16, VectorEncoding.fromName("float16"));
+        assertEquals(VectorEncoding.FLOAT32, VectorEncoding.fromName(" FLOAT32 "));
+        assertThrows(IllegalArgumentException.class, () -> VectorEncoding.fromName("int8"));
+    }
+}
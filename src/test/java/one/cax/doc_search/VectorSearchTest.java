@@ -4,34 +4,55 @@ import io.github.jbellis.jvector.vector.VectorUtil;
 import io.github.jbellis.jvector.vector.VectorizationProvider;
 import io.github.jbellis.jvector.vector.types.VectorFloat;
 import io.github.jbellis.jvector.vector.types.VectorTypeSupport;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import one.cax.doc_search.cache.ExtractionCache;
+import one.cax.doc_search.cache.QueryEmbeddingCache;
+import one.cax.doc_search.controller.VectorController;
 import one.cax.doc_search.exception.EmbedderException;
 import one.cax.doc_search.exception.VectorSearchException;
+import one.cax.doc_search.model.AddTextRequest;
+import one.cax.doc_search.model.SearchFilter;
+import one.cax.doc_search.model.SearchMode;
+import one.cax.doc_search.model.SearchRequest;
 import one.cax.doc_search.model.Session;
 import one.cax.doc_search.model.XDoc;
 import one.cax.doc_search.model.XPage;
+import one.cax.doc_search.service.ExtractorEngine;
+import one.cax.doc_search.service.FileService;
 import one.cax.doc_search.service.OpenAIEmbedderService;
 import one.cax.doc_search.service.SessionService;
 import one.cax.doc_search.service.VectorSearch;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -95,11 +116,11 @@ public class VectorSearchTest {
     }
 
     @Test
-    void testAddDocument_Success() throws VectorSearchException {
+    void testAddDocument_Success() throws VectorSearchException, EmbedderException {
         when(sessionService.sessionExists(sessionId)).thenReturn(true);
         Session session = mock(Session.class);
         when(sessionService.getSession(sessionId)).thenReturn(session);
-
+        when(embedderService.embedBatch(anyList())).thenReturn(new float[][]{{1.0f, 2.0f, 3.0f}});
 
         vectorSearch.addDocument(sessionId, document);
 
@@ -107,6 +128,102 @@ public class VectorSearchTest {
         assertEquals(1, documents.size());
     }
 
+    @Test
+    void testAddDocument_EmbedsPagesInBatches() throws VectorSearchException, EmbedderException {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        when(sessionService.getSession(sessionId)).thenReturn(mock(Session.class));
+        when(embedderService.embedBatch(anyList())).thenAnswer(invocation -> {
+            List<String> texts = invocation.getArgument(0);
+            float[][] vectors = new float[texts.size()][];
+            for (int i = 0; i < texts.size(); i++) {
+                vectors[i] = new float[]{i, 1.0f, 2.0f};
+            }
+            return vectors;
+        });
+        ReflectionTestUtils.setField(vectorSearch, "batchSize", 2);
+
+        XDoc bigDocument = new XDoc();
+        List<XPage> pages = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            XPage page = new XPage();
+            page.setPageNumber(i);
+            page.setText("page " + i);
+            pages.add(page);
+        }
+        bigDocument.setPages(pages);
+
+        vectorSearch.addDocument(sessionId, bigDocument);
+
+        verify(embedderService, times(3)).embedBatch(anyList());
+        verify(embedderService, never()).embed(anyString());
+        assertTrue(bigDocument.getPages().stream().allMatch(p -> p.getVector() != null));
+    }
+
+    @Test
+    void testAddDocument_PipelineCutsTheSameBatches() throws Exception {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        when(sessionService.getSession(sessionId)).thenReturn(mock(Session.class));
+        List<Integer> batchSizes = new ArrayList<>();
+        when(embedderService.embedBatch(anyList())).thenAnswer(invocation -> {
+            List<String> texts = invocation.getArgument(0);
+            synchronized (batchSizes) {
+                batchSizes.add(texts.size());
+            }
+            float[][] vectors = new float[texts.size()][];
+            for (int i = 0; i < texts.size(); i++) {
+                vectors[i] = new float[]{i, 1.0f, 2.0f};
+            }
+            return vectors;
+        });
+        ReflectionTestUtils.setField(vectorSearch, "batchSize", 2);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineBatchSize", 2);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineQueueSize", 8);
+        ReflectionTestUtils.setField(vectorSearch, "batchMaxTokens", 10);
+        // estimated tokens per page: a page limit cut, a page over the token limit alone, then a token limit cut
+        int[] tokens = {4, 4, 12, 1, 1, 1};
+
+        XDoc document = new XDoc();
+        List<XPage> pages = new ArrayList<>();
+        for (int i = 0; i < tokens.length; i++) {
+            pages.add(page(i + 1, "x".repeat(tokens[i] * 4)));
+        }
+        document.setPages(pages);
+        vectorSearch.addDocument(sessionId, document);
+        List<Integer> phased = new ArrayList<>(batchSizes);
+
+        batchSizes.clear();
+        ReflectionTestUtils.setField(vectorSearch, "pipelineEnabled", true);
+        try {
+            vectorSearch.addDocument(sessionId, new XDoc(), consumer -> {
+                for (int i = 0; i < tokens.length; i++) {
+                    consumer.accept(page(i + 1, "x".repeat(tokens[i] * 4)));
+                }
+            });
+        } finally {
+            vectorSearch.shutdown();
+        }
+
+        assertEquals(List.of(2, 1, 2, 1), phased);
+        assertEquals(phased, batchSizes);
+    }
+
+    private static XPage page(int pageNumber, String text) {
+        XPage page = new XPage();
+        page.setPageNumber(pageNumber);
+        page.setText(text);
+        return page;
+    }
+
+    @Test
+    void testAddDocument_BatchFailureReportsUnprocessedPages() throws EmbedderException {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        when(sessionService.getSession(sessionId)).thenReturn(mock(Session.class));
+        when(embedderService.embedBatch(anyList())).thenThrow(new EmbedderException("rate limited"));
+
+        var e = assertThrows(VectorSearchException.class, () -> vectorSearch.addDocument(sessionId, document));
+        assertEquals("Only 0 out of 1 pages were processed", e.getMessage());
+    }
+
     @Test
     void testAddDocument_SessionDoesNotExist() {
         when(sessionService.sessionExists(sessionId)).thenReturn(false);
@@ -137,4 +254,484 @@ public class VectorSearchTest {
 
         assertThrows(VectorSearchException.class, () -> vectorSearch.search(sessionId, "query"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testSearchBatch_EmbedsQueriesOnce() throws VectorSearchException, EmbedderException {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = mock(Session.class);
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        when(session.getDocuments()).thenReturn(documents);
+        when(embedderService.embedBatch(anyList())).thenReturn(new float[][]{{1.0f, 2.0f, 3.0f}, {0f, 0f, 0f}, {3.0f, 2.0f, 1.0f}});
+        ReflectionTestUtils.setField(vectorSearch, "topK", 5);
+
+        JSONObject result = vectorSearch.searchBatch(sessionId, List.of("first", "second", "third"), null, null, true);
+
+        verify(embedderService, times(1)).embedBatch(anyList());
+        verify(embedderService, never()).embed(anyString());
+        var queries = result.getJSONArray("queries");
+        assertEquals(3, queries.length());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(List.of("first", "second", "third").get(i), queries.getJSONObject(i).getString("query"));
+            assertEquals(1, queries.getJSONObject(i).getJSONArray("results").length());
+        }
+    }
+
+    @Test
+    void testSearchBatch_EmptyQueryThrows() {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+
+        assertThrows(VectorSearchException.class, () -> vectorSearch.searchBatch(sessionId, List.of("query", ""), null, null, false));
+    }
+
+    @Test
+    void testSearch_LexicalModeSkipsEmbedding() throws VectorSearchException, EmbedderException {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = mock(Session.class);
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        when(session.getDocuments()).thenReturn(documents);
+        ReflectionTestUtils.setField(vectorSearch, "topK", 5);
+
+        JSONObject result = vectorSearch.search(sessionId, "similarityFunctionName", null, SearchMode.LEXICAL);
+
+        verify(embedderService, never()).embed(anyString());
+        assertEquals(1, result.getJSONArray("results").length());
+    }
+
+    @Test
+    void testSearch_HybridModeFusesRankings() throws VectorSearchException, EmbedderException {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = mock(Session.class);
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        when(session.getDocuments()).thenReturn(documents);
+        when(embedderService.embed("similarityFunctionName")).thenReturn(new float[]{1.0f, 2.0f, 3.0f});
+        ReflectionTestUtils.setField(vectorSearch, "topK", 5);
+        ReflectionTestUtils.setField(vectorSearch, "rrfK", 60);
+
+        JSONObject result = vectorSearch.search(sessionId, "similarityFunctionName", null, SearchMode.HYBRID);
+
+        var results = result.getJSONArray("results");
+        assertEquals(1, results.length());
+        assertEquals(2f / 61, results.getJSONObject(0).getFloat("score"), 1e-6);
+    }
+
+    @Test
+    void testSearch_RepeatedQueryIsEmbeddedOnce() throws VectorSearchException, EmbedderException {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = mock(Session.class);
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        when(session.getDocuments()).thenReturn(documents);
+        when(embedderService.embed(anyString())).thenReturn(new float[]{1.0f, 2.0f, 3.0f});
+        vectorSearch.setQueryEmbeddingCache(new QueryEmbeddingCache(10, Duration.ofMinutes(5), new SimpleMeterRegistry()));
+
+        vectorSearch.search(sessionId, "what is the refund policy?");
+        vectorSearch.search(sessionId, "what is the  refund policy?");
+
+        verify(embedderService, times(1)).embed(anyString());
+    }
+
+    @Test
+    void testAddDocument_EmbedsBatchesInParallel() throws VectorSearchException, EmbedderException, InterruptedException {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        when(sessionService.getSession(sessionId)).thenReturn(mock(Session.class));
+        var inFlight = new AtomicInteger();
+        var maxInFlight = new AtomicInteger();
+        when(embedderService.embedBatch(anyList())).thenAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(50);
+            inFlight.decrementAndGet();
+            List<String> texts = invocation.getArgument(0);
+            float[][] vectors = new float[texts.size()][];
+            for (int i = 0; i < texts.size(); i++) {
+                vectors[i] = new float[]{i, 1.0f, 2.0f};
+            }
+            return vectors;
+        });
+        ReflectionTestUtils.setField(vectorSearch, "batchSize", 1);
+        ReflectionTestUtils.setField(vectorSearch, "parallelBatches", 4);
+        vectorSearch.startEmbeddingPool();
+
+        XDoc bigDocument = new XDoc();
+        List<XPage> pages = new ArrayList<>();
+        for (int i = 1; i <= 8; i++) {
+            XPage page = new XPage();
+            page.setPageNumber(i);
+            page.setText("page " + i);
+            pages.add(page);
+        }
+        bigDocument.setPages(pages);
+
+        try {
+            vectorSearch.addDocument(sessionId, bigDocument);
+        } finally {
+            vectorSearch.shutdown();
+        }
+
+        verify(embedderService, times(8)).embedBatch(anyList());
+        assertTrue(maxInFlight.get() > 1);
+        assertTrue(bigDocument.getPages().stream().allMatch(p -> p.getVector() != null));
+    }
+
+    @Test
+    void testAddDocument_PipelineEmbedsPagesWhileExtracting() throws VectorSearchException, EmbedderException, InterruptedException {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = mock(Session.class);
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        var firstBatchEmbedded = new CountDownLatch(1);
+        when(embedderService.embedBatch(anyList())).thenAnswer(invocation -> {
+            List<String> texts = invocation.getArgument(0);
+            float[][] vectors = new float[texts.size()][];
+            for (int i = 0; i < texts.size(); i++) {
+                vectors[i] = new float[]{i, 1.0f, 2.0f};
+            }
+            firstBatchEmbedded.countDown();
+            return vectors;
+        });
+        ReflectionTestUtils.setField(vectorSearch, "pipelineEnabled", true);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineQueueSize", 4);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineBatchSize", 2);
+
+        XDoc streamed = new XDoc();
+        var embeddedBeforeLastPage = new AtomicBoolean();
+        try {
+            vectorSearch.addDocument(sessionId, streamed, pages -> {
+                for (int i = 1; i <= 4; i++) {
+                    if (i == 3) {
+                        // the first batch is embedded while the rest of the document is still being extracted
+                        embeddedBeforeLastPage.set(firstBatchEmbedded.await(5, TimeUnit.SECONDS));
+                    }
+                    XPage page = new XPage();
+                    page.setPageNumber(i);
+                    page.setText("page " + i);
+                    pages.accept(page);
+                }
+            });
+        } finally {
+            vectorSearch.shutdown();
+        }
+
+        assertTrue(embeddedBeforeLastPage.get());
+        verify(embedderService, times(2)).embedBatch(anyList());
+        verify(session).addDocument(streamed);
+        assertEquals(4, streamed.getTotalPages());
+        assertTrue(streamed.getPages().stream().allMatch(p -> p.getVector() != null));
+    }
+
+    @Test
+    void testAddDocument_PipelineExtractionFailurePublishesNothing() throws Exception {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = new Session();
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        when(embedderService.embedBatch(anyList())).thenReturn(new float[][]{{1.0f, 2.0f, 3.0f}});
+        ReflectionTestUtils.setField(vectorSearch, "pipelineEnabled", true);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineQueueSize", 4);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineBatchSize", 1);
+
+        XDoc streamed = new XDoc();
+        var e = assertThrows(VectorSearchException.class, () -> vectorSearch.addDocument(sessionId, streamed, pages -> {
+            XPage page = new XPage();
+            page.setPageNumber(1);
+            page.setText("page 1");
+            pages.accept(page);
+            throw new IOException("truncated file");
+        }));
+        vectorSearch.shutdown();
+
+        assertTrue(e.getMessage().contains("truncated file"));
+        assertTrue(session.getDocuments().isEmpty());
+        assertNull(session.getIndex());
+        verify(sessionService, never()).logDocument(any(), any());
+    }
+
+    @Test
+    void testAddDocument_PipelineBatchFailurePublishesNothing() throws Exception {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = new Session();
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        var calls = new AtomicInteger();
+        when(embedderService.embedBatch(anyList())).thenAnswer(invocation -> {
+            if (calls.incrementAndGet() == 2) {
+                throw new EmbedderException("rate limited");
+            }
+            return new float[][]{{1.0f, 2.0f, 3.0f}};
+        });
+        ReflectionTestUtils.setField(vectorSearch, "pipelineEnabled", true);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineQueueSize", 4);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineBatchSize", 1);
+
+        XDoc streamed = new XDoc();
+        var e = assertThrows(VectorSearchException.class, () -> vectorSearch.addDocument(sessionId, streamed, pages -> {
+            for (int i = 1; i <= 3; i++) {
+                XPage page = new XPage();
+                page.setPageNumber(i);
+                page.setText("page " + i);
+                pages.accept(page);
+            }
+        }));
+        vectorSearch.shutdown();
+
+        assertEquals("Only 2 out of 3 pages were processed", e.getMessage());
+        assertTrue(session.getDocuments().isEmpty());
+        assertNull(session.getIndex());
+        verify(sessionService, never()).logDocument(any(), any());
+    }
+
+    @Test
+    void testAddDocument_SessionEndedDuringTheIngestIsNotWrittenTo() throws Exception {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = new Session();
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        when(embedderService.embedBatch(anyList())).thenReturn(new float[][]{{1.0f, 2.0f, 3.0f}});
+        ReflectionTestUtils.setField(vectorSearch, "pipelineEnabled", true);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineQueueSize", 4);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineBatchSize", 1);
+
+        XDoc streamed = new XDoc();
+        var e = assertThrows(VectorSearchException.class, () -> vectorSearch.addDocument(sessionId, streamed, pages -> {
+            XPage page = new XPage();
+            page.setPageNumber(1);
+            page.setText("page 1");
+            pages.accept(page);
+            // the session is ended while the document is extracted, as SessionService.endSession does
+            synchronized (session) {
+                session.evict();
+                session.closeIndex();
+            }
+        }));
+        vectorSearch.shutdown();
+
+        assertEquals("Session does not exist!", e.getMessage());
+        assertTrue(session.getDocuments().isEmpty());
+        verify(sessionService, never()).logDocument(any(), any());
+    }
+
+    @Test
+    void testAddDocument_PipelineIndexingFailureLeavesNothingSearchable() throws VectorSearchException, EmbedderException {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = new Session();
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        var calls = new AtomicInteger();
+        // the second batch of the streamed document comes back with vectors of another dimension
+        when(embedderService.embedBatch(anyList())).thenAnswer(invocation ->
+                calls.incrementAndGet() == 3 ? new float[][]{{1.0f, 2.0f}} : new float[][]{{1.0f, 2.0f, 3.0f}});
+        ReflectionTestUtils.setField(vectorSearch, "pipelineEnabled", true);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineQueueSize", 4);
+        ReflectionTestUtils.setField(vectorSearch, "pipelineBatchSize", 1);
+        ReflectionTestUtils.setField(vectorSearch, "topK", 5);
+        XDoc kept = new XDoc();
+        XPage keptPage = new XPage();
+        keptPage.setPageNumber(1);
+        keptPage.setText("kept");
+        kept.setPages(List.of(keptPage));
+        vectorSearch.addDocument(sessionId, kept);
+
+        XDoc streamed = new XDoc();
+        assertThrows(VectorSearchException.class, () -> vectorSearch.addDocument(sessionId, streamed, pages -> {
+            for (int i = 1; i <= 2; i++) {
+                XPage page = new XPage();
+                page.setPageNumber(i);
+                page.setText("streamed " + i);
+                pages.accept(page);
+            }
+        }));
+        vectorSearch.shutdown();
+
+        assertEquals(3, calls.get());
+        assertEquals(List.of(kept), session.getDocuments());
+        assertEquals(1, session.getIndex().size());
+        assertEquals(0, session.getIndex().ordinals(streamed.getId()).length);
+        JSONArray results = vectorSearch.search(sessionId, "streamed", null, SearchMode.LEXICAL).getJSONArray("results");
+        assertEquals(0, results.length());
+    }
+
+    @Test
+    void testAddDocument_PrecomputedVectorsSkipEmbedding() throws VectorSearchException, EmbedderException {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = new Session();
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        when(embedderService.embedBatch(anyList())).thenReturn(new float[][]{{0.0f, 1.0f, 0.0f}});
+        ReflectionTestUtils.setField(vectorSearch, "acceptPrecomputed", true);
+
+        XPage embedded = new XPage();
+        embedded.setPageNumber(2);
+        embedded.setText("page without a vector");
+        List<XPage> pages = new ArrayList<>(document.getPages());
+        pages.add(embedded);
+        document.setPages(pages);
+
+        vectorSearch.addDocument(sessionId, document);
+
+        verify(embedderService).embedBatch(List.of("page without a vector"));
+        assertArrayEquals(new float[]{1.0f, 2.0f, 3.0f}, document.getPages().get(0).getVector());
+        assertEquals(2, session.getIndex().size());
+        assertEquals(3, session.getIndex().dimension());
+    }
+
+    @Test
+    void testAddDocument_PrecomputedVectorOfWrongDimensionIsRejected() throws VectorSearchException {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = new Session();
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        ReflectionTestUtils.setField(vectorSearch, "acceptPrecomputed", true);
+        vectorSearch.addDocument(sessionId, document);
+
+        XDoc other = new XDoc();
+        XPage page = new XPage();
+        page.setPageNumber(1);
+        page.setText("wrong dimension");
+        page.setVector(new float[]{1.0f, 2.0f});
+        other.setPages(List.of(page));
+
+        var e = assertThrows(VectorSearchException.class, () -> vectorSearch.addDocument(sessionId, other));
+        assertEquals("Page 1 has a vector of dimension 2, expected 3", e.getMessage());
+        verifyNoInteractions(embedderService);
+        assertEquals(1, session.getDocuments().size());
+    }
+
+    @Test
+    void testAddDocument_NonFinitePrecomputedVectorIsRejected() {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        when(sessionService.getSession(sessionId)).thenReturn(new Session());
+        ReflectionTestUtils.setField(vectorSearch, "acceptPrecomputed", true);
+        document.getPages().get(0).setVector(new float[]{1.0f, Float.NaN, 3.0f});
+
+        assertThrows(VectorSearchException.class, () -> vectorSearch.addDocument(sessionId, document));
+        verifyNoInteractions(embedderService);
+    }
+
+    @Test
+    void testAddDocument_ParallelUploadsIntoOneSessionWhileItIsRead() throws Exception {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = new Session();
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        ReflectionTestUtils.setField(vectorSearch, "acceptPrecomputed", true);
+        int uploaders = 8;
+        int uploads = 50;
+        var start = new CountDownLatch(1);
+        var done = new AtomicBoolean();
+        var failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < uploaders; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < uploads; i++) {
+                        XPage page = new XPage();
+                        page.setPageNumber(1);
+                        page.setText("page");
+                        page.setVector(new float[]{1.0f, 2.0f, 3.0f});
+                        XDoc upload = new XDoc();
+                        upload.setPages(List.of(page));
+                        vectorSearch.addDocument(sessionId, upload);
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+        // a reader iterating the documents while they are added
+        var reader = new Thread(() -> {
+            while (!done.get()) {
+                List<XDoc> view = session.getDocuments();
+                int pages = 0;
+                for (XDoc doc : view) {
+                    pages += doc.getPages().size();
+                }
+                if (pages != view.size()) {
+                    failures.incrementAndGet();
+                }
+            }
+        });
+        threads.forEach(Thread::start);
+        reader.start();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        reader.join();
+
+        assertEquals(0, failures.get());
+        assertEquals(uploaders * uploads, session.getDocuments().size());
+        assertEquals(uploaders * uploads, session.getIndex().size());
+        assertThrows(UnsupportedOperationException.class, () -> session.getDocuments().add(new XDoc()));
+    }
+
+    @Test
+    void testAddText_MetadataFilterSelectsIngestedDocument() throws Exception {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = new Session();
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        when(embedderService.embedBatch(anyList())).thenReturn(new float[][]{{1.0f, 2.0f, 3.0f}});
+        ReflectionTestUtils.setField(vectorSearch, "topK", 5);
+        var controller = new VectorController(null);
+        controller.setVectorService(vectorSearch);
+
+        var contract = new AddTextRequest();
+        contract.setContent("{\"docTitle\":\"Contract\",\"docFilename\":\"contract.pdf\",\"docMetadata\":{\"lang\":\"de\"},"
+                + "\"docPages\":[{\"pageNumber\":1,\"pageText\":\"the terms of payment\"}]}");
+        var invoice = new AddTextRequest();
+        invoice.setContent("{\"docTitle\":\"Invoice\",\"docPages\":[{\"pageNumber\":1,\"pageText\":\"the payment is due\"}]}");
+        String contractId = controller.addDocument(contract, sessionId.toString()).getBody().getTextId();
+        String invoiceId = controller.addDocument(invoice, sessionId.toString()).getBody().getTextId();
+
+        for (Map<String, String> metadata : List.of(Map.of("filename", "contract.pdf"), Map.of("lang", "de"), Map.of("title", "Invoice"))) {
+            var filter = new SearchFilter();
+            filter.setMetadata(metadata);
+            var request = new SearchRequest();
+            request.setQuery("payment");
+            request.setMode(SearchMode.LEXICAL);
+            request.setFilter(filter);
+
+            var response = controller.search(request, sessionId.toString());
+
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            JSONArray results = new JSONObject(response.getBody().getResponseText()).getJSONArray("results");
+            assertEquals(1, results.length());
+            assertEquals(metadata.containsKey("title") ? invoiceId : contractId, results.getJSONObject(0).getString("docId"));
+        }
+    }
+
+    @Test
+    void testAddFile_SameFileUploadedTwiceIsFilteredByItsOwnFilename(@TempDir Path tempDir) throws Exception {
+        when(sessionService.sessionExists(sessionId)).thenReturn(true);
+        Session session = new Session();
+        when(sessionService.getSession(sessionId)).thenReturn(session);
+        when(embedderService.embedBatch(anyList())).thenAnswer(invocation -> {
+            List<String> texts = invocation.getArgument(0);
+            float[][] vectors = new float[texts.size()][];
+            for (int i = 0; i < texts.size(); i++) {
+                vectors[i] = new float[]{1.0f, 2.0f, 3.0f};
+            }
+            return vectors;
+        });
+        ReflectionTestUtils.setField(vectorSearch, "topK", 5);
+        var registry = new SimpleMeterRegistry();
+        var fileService = new FileService(new ExtractorEngine(registry));
+        fileService.setExtractionCache(new ExtractionCache(1 << 20, 1 << 20, null, 0, registry));
+        var controller = new VectorController(fileService);
+        controller.setVectorService(vectorSearch);
+        ReflectionTestUtils.setField(controller, "tempFolder", tempDir.toString());
+        byte[] pdf = TestUtils.createMultiPagePdf(new String[]{"terms of payment"});
+
+        String firstId = controller.uploadDocument(new MockMultipartFile("file", "first.pdf", "application/pdf", pdf), sessionId.toString())
+                .getBody().getTextId();
+        // the second upload of the same bytes is served from the extraction cache
+        String secondId = controller.uploadDocument(new MockMultipartFile("file", "second.pdf", "application/pdf", pdf), sessionId.toString())
+                .getBody().getTextId();
+
+        for (String filename : List.of("first.pdf", "second.pdf")) {
+            var filter = new SearchFilter();
+            filter.setMetadata(Map.of("filename", filename));
+            var request = new SearchRequest();
+            request.setQuery("payment");
+            request.setMode(SearchMode.LEXICAL);
+            request.setFilter(filter);
+
+            JSONArray results = new JSONObject(controller.search(request, sessionId.toString()).getBody().getResponseText())
+                    .getJSONArray("results");
+
+            assertEquals(1, results.length());
+            assertEquals(filename.equals("first.pdf") ? firstId : secondId, results.getJSONObject(0).getString("docId"));
+        }
+    }
+}